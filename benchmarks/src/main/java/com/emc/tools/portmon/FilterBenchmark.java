@@ -0,0 +1,116 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ways of narrowing a table down: filters applied by the sources while
+ * parsing, and queries resolved through the index of a snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private byte[] netstat;
+    private byte[] procNetTcp;
+    private PortSnapshot snapshot;
+
+    private PortFilter listeningOnly;
+    private PortFilter fivePorts;
+    private PortQuery fivePortsQuery;
+    private PortQuery rangeQuery;
+
+    private final NetstatSocketSource netstatSource = new NetstatSocketSource();
+    private final ProcNetSocketSource procSource = new ProcNetSocketSource();
+    private final PortSnapshot.Builder builder = new PortSnapshot.Builder();
+
+    @Setup
+    public void setUp() {
+        netstat = Fixtures.netstat(rows);
+        procNetTcp = Fixtures.procNetTcp(rows);
+        snapshot = Fixtures.snapshot(rows);
+        listeningOnly = new PortFilter(true);
+        int[] ports = Fixtures.listeningPorts(rows, 5);
+        fivePorts = new PortFilter(false, ports);
+        StringBuilder terms = new StringBuilder();
+        for (int port : ports) {
+            terms.append(port).append(',');
+        }
+        fivePortsQuery = PortQuery.parse(terms.toString());
+        rangeQuery = PortQuery.parse("1-1024");
+    }
+
+    @Benchmark
+    public PortSnapshot netstatListeningOnly() throws IOException {
+        netstatSource.parse(new ByteArrayInputStream(netstat), listeningOnly, builder);
+        return builder.build(0, 0, 0);
+    }
+
+    @Benchmark
+    public PortSnapshot netstatPorts() throws IOException {
+        netstatSource.parse(new ByteArrayInputStream(netstat), fivePorts, builder);
+        return builder.build(0, 0, 0);
+    }
+
+    @Benchmark
+    public PortSnapshot procNetListeningOnly() throws IOException {
+        procSource.parse(new ByteArrayInputStream(procNetTcp), "TCP", listeningOnly, builder);
+        return builder.build(0, 0, 0);
+    }
+
+    @Benchmark
+    public PortSnapshot procNetPorts() throws IOException {
+        procSource.parse(new ByteArrayInputStream(procNetTcp), "TCP", fivePorts, builder);
+        return builder.build(0, 0, 0);
+    }
+
+    @Benchmark
+    public PortIndex buildIndex() {
+        return new PortIndex(snapshot);
+    }
+
+    /**
+     * Steady state polling: the index of the previous scan holds the same
+     * ports.
+     */
+    @Benchmark
+    public PortIndex rebuildIndex() {
+        return new PortIndex(snapshot, snapshot.index());
+    }
+
+    /**
+     * Queries against a snapshot whose index is already built.
+     */
+    @Benchmark
+    public PortSnapshot queryPorts() {
+        return fivePortsQuery.apply(snapshot);
+    }
+
+    @Benchmark
+    public PortSnapshot queryRange() {
+        return rangeQuery.apply(snapshot);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Socket tables of a given size in the formats of netstat and
+ * /proc/net/tcp. Rows follow the mix seen on a busy server: one in twenty
+ * is a listener owned by one of 50 processes, the rest are connections to
+ * them, most established and some in TIME_WAIT. The same size always gives
+ * the same table.
+ */
+final class Fixtures {
+
+    /**
+     * Share of listening rows, the rest are connections.
+     */
+    private static final double LISTENING_SHARE = 0.05;
+
+    private static final String NETSTAT_HEADER = "\r\n"
+            + "Active Connections\r\n"
+            + "\r\n"
+            + "  Proto  Local Address          Foreign Address        State           PID\r\n";
+
+    private static final String PROC_HEADER = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+
+    private static final String[] NETSTAT_STATES = {"ESTABLISHED", "ESTABLISHED", "ESTABLISHED", "TIME_WAIT", "CLOSE_WAIT"};
+    private static final int[] PROC_STATES = {0x01, 0x01, 0x01, 0x06, 0x08};
+
+    private Fixtures() {
+    }
+
+    /**
+     * One socket of a table, before it is formatted.
+     */
+    private static class Row {
+
+        int localAddress;
+        int localPort;
+        int remoteAddress;
+        int remotePort;
+        boolean listening;
+        int state;
+        int pid;
+        long inode;
+    }
+
+    private static Row[] rows(int count) {
+        Random random = new Random(count);
+        Row[] rows = new Row[count];
+        int listeners = Math.max(1, (int) (count * LISTENING_SHARE));
+        for (int i = 0; i < count; i++) {
+            Row row = new Row();
+            if (i < listeners) {
+                row.listening = true;
+                row.localAddress = random.nextInt(4) == 0 ? 0x7F000001 : 0;
+                row.localPort = i < 64 ? 1 + i * 17 : 1024 + random.nextInt(64511);
+                row.pid = 1000 + (i % 50) * 4;
+            } else {
+                Row listener = rows[random.nextInt(listeners)];
+                row.localAddress = 0x0A000001;
+                row.localPort = listener.localPort;
+                row.remoteAddress = 0x0A000000 | random.nextInt(1 << 24);
+                row.remotePort = 32768 + random.nextInt(28232);
+                row.state = random.nextInt(NETSTAT_STATES.length);
+                row.pid = listener.pid;
+            }
+            row.inode = 100000 + i;
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    private static String dotted(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    private static String hex(long value, int digits) {
+        String hex = Long.toHexString(value).toUpperCase();
+        StringBuilder padded = new StringBuilder();
+        for (int i = hex.length(); i < digits; i++) {
+            padded.append('0');
+        }
+        return padded.append(hex).toString();
+    }
+
+    /**
+     * Output of <code>netstat -anop tcp</code> on Windows.
+     */
+    static byte[] netstat(int count) {
+        StringBuilder out = new StringBuilder(NETSTAT_HEADER);
+        for (Row row : rows(count)) {
+            out.append(String.format("  %-6s %-22s %-22s %-15s %d\r\n",
+                    "TCP",
+                    dotted(row.localAddress) + ":" + row.localPort,
+                    dotted(row.remoteAddress) + ":" + row.remotePort,
+                    row.listening ? "LISTENING" : NETSTAT_STATES[row.state],
+                    row.pid));
+        }
+        return out.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Contents of /proc/net/tcp, addresses are little endian hex words.
+     */
+    static byte[] procNetTcp(int count) {
+        StringBuilder out = new StringBuilder(PROC_HEADER);
+        Row[] rows = rows(count);
+        for (int i = 0; i < rows.length; i++) {
+            Row row = rows[i];
+            out.append(String.format("%4d: %s:%s %s:%s %s 00000000:00000000 00:00000000 00000000  1000        0 %d 1 0000000000000000 100 0 0 10 0\n",
+                    i,
+                    hex(Integer.reverseBytes(row.localAddress) & 0xFFFFFFFFL, 8),
+                    hex(row.localPort, 4),
+                    hex(Integer.reverseBytes(row.remoteAddress) & 0xFFFFFFFFL, 8),
+                    hex(row.remotePort, 4),
+                    hex(row.listening ? 0x0A : PROC_STATES[row.state], 2),
+                    row.inode));
+        }
+        return out.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The netstat table of the given size as a snapshot.
+     */
+    static PortSnapshot snapshot(int count) {
+        PortSnapshot.Builder builder = new PortSnapshot.Builder();
+        try {
+            new NetstatSocketSource().parse(new ByteArrayInputStream(netstat(count)), PortFilter.ALL, builder);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return builder.build(1, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Some of the listening ports of the table of the given size.
+     */
+    static int[] listeningPorts(int count, int ports) {
+        Row[] rows = rows(count);
+        int[] result = new int[ports];
+        for (int i = 0; i < ports; i++) {
+            result[i] = rows[(i * 7) % Math.max(1, (int) (count * LISTENING_SHARE))].localPort;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of whole socket tables, as done by every refresh. Run with
+ * <code>-prof gc</code> for the bytes allocated per table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private byte[] netstat;
+    private byte[] procNetTcp;
+
+    private final NetstatSocketSource netstatSource = new NetstatSocketSource();
+    private final ProcNetSocketSource procSource = new ProcNetSocketSource();
+    private final PortSnapshot.Builder builder = new PortSnapshot.Builder();
+
+    @Setup
+    public void setUp() {
+        netstat = Fixtures.netstat(rows);
+        procNetTcp = Fixtures.procNetTcp(rows);
+    }
+
+    @Benchmark
+    public PortSnapshot netstatSnapshot() throws IOException {
+        netstatSource.parse(new ByteArrayInputStream(netstat), PortFilter.ALL, builder);
+        return builder.build(0, 0, 0);
+    }
+
+    @Benchmark
+    public PortSnapshot procNetSnapshot() throws IOException {
+        procSource.parse(new ByteArrayInputStream(procNetTcp), "TCP", PortFilter.ALL, builder);
+        return builder.build(0, 0, 0);
+    }
+
+    /**
+     * The row per object path of {@link PortMon#getPorts(boolean, String...)}.
+     */
+    @Benchmark
+    public List<PortMon.Port> netstatPorts() throws IOException {
+        final List<PortMon.Port> ports = new ArrayList<>();
+        netstatSource.parse(new ByteArrayInputStream(netstat), PortFilter.ALL, new PortSink() {
+            @Override
+            public void accept(PortMon.Port port) {
+                ports.add(port.copy());
+            }
+        });
+        return ports;
+    }
+
+    @Benchmark
+    public List<PortMon.Port> procNetPorts() throws IOException {
+        final List<PortMon.Port> ports = new ArrayList<>();
+        procSource.parse(new ByteArrayInputStream(procNetTcp), "TCP", PortFilter.ALL, new PortSink() {
+            @Override
+            public void accept(PortMon.Port port) {
+                ports.add(port.copy());
+            }
+        });
+        return ports;
+    }
+}
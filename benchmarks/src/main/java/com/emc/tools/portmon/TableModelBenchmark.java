@@ -0,0 +1,132 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What the ports table asks of its model: values of every visible cell,
+ * sorting a snapshot, and showing the rows of a refresh. The process column
+ * is left out, it only reads a cache filled in the background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TableModelBenchmark {
+
+    private static final int[] COLUMNS = {0, 1, 2, 4};
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private PortSnapshot before;
+    private PortSnapshot after;
+    private int[] beforeOrder;
+    private int[] afterOrder;
+    private int[] afterPositions;
+    private PortDiff diff;
+    private PortMonGUI.RowEvents events;
+
+    private PortMonGUI.PortsTableModel model;
+
+    @Setup
+    public void setUp() {
+        before = Fixtures.snapshot(rows);
+        after = churn(before);
+        beforeOrder = SnapshotSorter.sort(before, SnapshotSorter.BY_PORT, true, null);
+        afterOrder = SnapshotSorter.sort(after, SnapshotSorter.BY_PORT, true, null);
+        afterPositions = PortMonGUI.PortsTableModel.positions(afterOrder);
+        diff = PortDiff.compute(before, after);
+        events = PortMonGUI.RowEvents.of(diff, beforeOrder, afterOrder, afterPositions);
+        model = new PortMonGUI.PortsTableModel();
+        model.setRows(before, beforeOrder);
+    }
+
+    /**
+     * One refresh worth of changes: 1% of the rows closed, 1% opened and
+     * 1% changed state.
+     */
+    private static PortSnapshot churn(PortSnapshot snapshot) {
+        PortSnapshot.Builder builder = new PortSnapshot.Builder();
+        PortMon.Port port = new PortMon.Port();
+        for (int row = 0; row < snapshot.size(); row++) {
+            switch (row % 100) {
+                case 0:
+                    break;
+                case 1:
+                    snapshot.read(row, port);
+                    port.state = "TIME_WAIT";
+                    builder.accept(port);
+                    break;
+                case 2:
+                    builder.add(snapshot, row);
+                    snapshot.read(row, port);
+                    port.setRemote(port.remoteAddressHi, port.remoteAddressLo, port.remotePort + 1);
+                    builder.accept(port);
+                    break;
+                default:
+                    builder.add(snapshot, row);
+            }
+        }
+        return builder.build(2, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Every visible cell, as painting the whole table does.
+     */
+    @Benchmark
+    public void render(Blackhole blackhole) {
+        int rowCount = model.getRowCount();
+        for (int row = 0; row < rowCount; row++) {
+            for (int column : COLUMNS) {
+                blackhole.consume(model.getValueAt(row, column));
+            }
+        }
+    }
+
+    @Benchmark
+    public int[] sort() {
+        return SnapshotSorter.sort(after, SnapshotSorter.BY_PORT, true, null);
+    }
+
+    @Benchmark
+    public PortDiff computeDiff() {
+        return PortDiff.compute(before, after);
+    }
+
+    /**
+     * The part of a refresh done before the event dispatch thread.
+     */
+    @Benchmark
+    public PortMonGUI.RowEvents rowEvents() {
+        return PortMonGUI.RowEvents.of(diff, beforeOrder, afterOrder, afterPositions);
+    }
+
+    /**
+     * Showing the rows of a refresh with its row events, the part done on
+     * the event dispatch thread, includes setting the previous rows back.
+     */
+    @Benchmark
+    public int setRows() {
+        model.setRows(before, beforeOrder);
+        model.setRows(after, afterOrder, afterPositions, events);
+        return model.getRowCount();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+/**
+ * IP addresses packed into two longs, the high and low 64 bits of an IPv6
+ * address. IPv4 addresses are stored IPv4-mapped (<code>::ffff:a.b.c.d</code>).
+ */
+final class Addresses {
+
+    static final long IPV4_MAPPED_HI = 0L;
+    static final long IPV4_MAPPED_PREFIX = 0xffffL << 32;
+
+    /**
+     * Size of the result array passed to {@link #parse}.
+     */
+    static final int SCRATCH = 10;
+
+    private Addresses() {
+    }
+
+    static long ipv4Lo(int ipv4) {
+        return IPV4_MAPPED_PREFIX | (ipv4 & 0xffffffffL);
+    }
+
+    static boolean isIPv4(long hi, long lo) {
+        return hi == IPV4_MAPPED_HI && (lo >>> 32) == 0xffffL;
+    }
+
+    static String format(long hi, long lo) {
+        StringBuilder sb = new StringBuilder(39);
+        format(hi, lo, sb);
+        return sb.toString();
+    }
+
+    static void format(long hi, long lo, StringBuilder sb) {
+        if (isIPv4(hi, lo)) {
+            sb.append((lo >>> 24) & 0xff).append('.')
+                    .append((lo >>> 16) & 0xff).append('.')
+                    .append((lo >>> 8) & 0xff).append('.')
+                    .append(lo & 0xff);
+            return;
+        }
+        // Find the longest run of zero groups for "::" compression
+        int bestStart = -1;
+        int bestLength = 1;
+        int runStart = -1;
+        for (int i = 0; i < 8; i++) {
+            if (group(hi, lo, i) == 0) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+                if (i - runStart + 1 > bestLength) {
+                    bestStart = runStart;
+                    bestLength = i - runStart + 1;
+                }
+            } else {
+                runStart = -1;
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                sb.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (i > 0 && i != bestStart + bestLength) {
+                sb.append(':');
+            }
+            sb.append(Integer.toHexString(group(hi, lo, i)));
+        }
+    }
+
+    private static int group(long hi, long lo, int i) {
+        long word = i < 4 ? hi : lo;
+        return (int) (word >>> (48 - 16 * (i & 3))) & 0xffff;
+    }
+
+    /**
+     * Parses a textual address from <code>b[from, to)</code> into
+     * <code>out[0]</code> (high) and <code>out[1]</code> (low) without
+     * allocating; <code>out</code> must have room for {@link #SCRATCH} longs,
+     * the ones past the result are used as scratch space. Accepts dotted
+     * IPv4, IPv6 with optional brackets, scope id and IPv4 tail, and
+     * <code>*</code> for the unspecified address.
+     *
+     * @return false if the text is not an address
+     */
+    static boolean parse(byte[] b, int from, int to, long[] out) {
+        if (to > from && b[from] == '[') {
+            from++;
+            while (to > from && b[to - 1] != ']') {
+                to--;
+            }
+            to--;
+        }
+        for (int i = from; i < to; i++) {
+            if (b[i] == '%') {
+                to = i;
+                break;
+            }
+        }
+        if (to - from == 1 && b[from] == '*') {
+            out[0] = IPV4_MAPPED_HI;
+            out[1] = ipv4Lo(0);
+            return true;
+        }
+        boolean colon = false;
+        for (int i = from; i < to; i++) {
+            if (b[i] == ':') {
+                colon = true;
+                break;
+            }
+        }
+        if (!colon) {
+            long ipv4 = parseIPv4(b, from, to);
+            if (ipv4 < 0) {
+                return false;
+            }
+            out[0] = IPV4_MAPPED_HI;
+            out[1] = ipv4Lo((int) ipv4);
+            return true;
+        }
+        return parseIPv6(b, from, to, out);
+    }
+
+    /**
+     * @return the address as an unsigned int or -1
+     */
+    private static long parseIPv4(byte[] b, int from, int to) {
+        long address = 0;
+        int octets = 0;
+        int i = from;
+        while (i < to) {
+            int value = 0;
+            int digits = 0;
+            while (i < to && b[i] >= '0' && b[i] <= '9') {
+                value = value * 10 + (b[i++] - '0');
+                digits++;
+            }
+            if (digits == 0 || value > 255) {
+                return -1;
+            }
+            address = (address << 8) | value;
+            octets++;
+            if (i < to) {
+                if (b[i] != '.') {
+                    return -1;
+                }
+                i++;
+            }
+        }
+        return octets == 4 ? address : -1;
+    }
+
+    private static boolean parseIPv6(byte[] b, int from, int to, long[] out) {
+        // Groups are collected in out[2..9]
+        final int groups = 2;
+        int count = 0;
+        int compress = -1;
+        int i = from;
+        if (to - from >= 2 && b[i] == ':' && b[i + 1] == ':') {
+            compress = 0;
+            i += 2;
+        }
+        while (i < to && count < 8) {
+            int start = i;
+            int value = 0;
+            while (i < to && Character.digit(b[i], 16) >= 0) {
+                value = (value << 4) | Character.digit(b[i], 16);
+                i++;
+            }
+            if (i < to && b[i] == '.') {
+                // Embedded IPv4 tail
+                long ipv4 = parseIPv4(b, start, to);
+                if (ipv4 < 0 || count > 6) {
+                    return false;
+                }
+                out[groups + count++] = ipv4 >>> 16;
+                out[groups + count++] = ipv4 & 0xffff;
+                i = to;
+                break;
+            }
+            if (i == start || i - start > 4) {
+                return false;
+            }
+            out[groups + count++] = value;
+            if (i < to) {
+                if (b[i] != ':') {
+                    return false;
+                }
+                i++;
+                if (i < to && b[i] == ':') {
+                    if (compress >= 0) {
+                        return false;
+                    }
+                    compress = count;
+                    i++;
+                }
+            }
+        }
+        if (i < to) {
+            return false;
+        }
+        if (compress >= 0) {
+            int shift = 8 - count;
+            System.arraycopy(out, groups + compress, out, groups + compress + shift, count - compress);
+            for (int g = compress; g < compress + shift; g++) {
+                out[groups + g] = 0;
+            }
+        } else if (count != 8) {
+            return false;
+        }
+        long hi = 0;
+        long lo = 0;
+        for (int g = 0; g < 4; g++) {
+            hi = (hi << 16) | out[groups + g];
+            lo = (lo << 16) | out[groups + g + 4];
+        }
+        out[0] = hi;
+        out[1] = lo;
+        return true;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.Arrays;
+
+/**
+ * Sockets grouped by local port, state and remote subnet, with counts. Twenty
+ * thousand connections of one service from a few client networks become a
+ * handful of groups. Groups are found in one pass with an open addressing
+ * table over primitive keys, so building them costs about as much as the
+ * scan did.
+ *
+ * <p>
+ * Built from a snapshot, every group also knows its rows. Built by streaming
+ * a socket source through a {@link Collector}, only the counts are kept.
+ * Groups are ordered by local port, then by descending count.
+ */
+class ConnectionGroups {
+
+    /**
+     * Remote addresses are grouped by subnets of these prefix lengths.
+     */
+    static final int IPV4_PREFIX = Integer.getInteger("portmon.ipv4Prefix", 24);
+    static final int IPV6_PREFIX = Integer.getInteger("portmon.ipv6Prefix", 64);
+
+    /**
+     * Counts the sockets of each group as a source streams them.
+     */
+    static class Collector implements PortSink {
+
+        private final int ipv4Prefix;
+        private final int ipv6Prefix;
+
+        private int[] slots = new int[256];
+        private int groups;
+        private int[] portState = new int[64];
+        private long[] remoteHi = new long[64];
+        private long[] remoteLo = new long[64];
+        private int[] count = new int[64];
+
+        Collector(int ipv4Prefix, int ipv6Prefix) {
+            this.ipv4Prefix = ipv4Prefix;
+            this.ipv6Prefix = ipv6Prefix;
+        }
+
+        @Override
+        public void accept(PortMon.Port port) {
+            add(port.localPort, PortSnapshot.stateOrdinal(port.state), port.remoteAddressHi, port.remoteAddressLo);
+        }
+
+        /**
+         * @return the group of the socket
+         */
+        int add(int localPort, int state, long hi, long lo) {
+            if (Addresses.isIPv4(hi, lo)) {
+                lo = lo & (Addresses.IPV4_MAPPED_PREFIX | mask32(ipv4Prefix));
+            } else {
+                hi = hi & mask64(ipv6Prefix);
+                lo = lo & mask64(ipv6Prefix - 64);
+            }
+            int key = localPort << 8 | state;
+            int mask = slots.length - 1;
+            long h = (key * 0x9E3779B97F4A7C15L) ^ (hi * 0xC2B2AE3D27D4EB4FL) ^ lo;
+            int slot = (int) (h ^ (h >>> 29)) & mask;
+            while (slots[slot] != 0) {
+                int group = slots[slot] - 1;
+                if (portState[group] == key && remoteHi[group] == hi && remoteLo[group] == lo) {
+                    count[group]++;
+                    return group;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int group = groups++;
+            if (group == count.length) {
+                int capacity = group * 2;
+                portState = Arrays.copyOf(portState, capacity);
+                remoteHi = Arrays.copyOf(remoteHi, capacity);
+                remoteLo = Arrays.copyOf(remoteLo, capacity);
+                count = Arrays.copyOf(count, capacity);
+            }
+            portState[group] = key;
+            remoteHi[group] = hi;
+            remoteLo[group] = lo;
+            count[group] = 1;
+            slots[slot] = group + 1;
+            if (groups * 2 > slots.length) {
+                rehash();
+            }
+            return group;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int group = 0; group < groups; group++) {
+                long h = (portState[group] * 0x9E3779B97F4A7C15L)
+                        ^ (remoteHi[group] * 0xC2B2AE3D27D4EB4FL) ^ remoteLo[group];
+                int slot = (int) (h ^ (h >>> 29)) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = group + 1;
+            }
+        }
+
+        /**
+         * @return the groups collected so far, without rows
+         */
+        ConnectionGroups build() {
+            return new ConnectionGroups(this, null, null);
+        }
+    }
+
+    private static long mask32(int prefix) {
+        prefix = Math.max(0, Math.min(32, prefix));
+        return prefix == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+    }
+
+    private static long mask64(int prefix) {
+        prefix = Math.max(0, Math.min(64, prefix));
+        return prefix == 0 ? 0 : -1L << (64 - prefix);
+    }
+
+    static ConnectionGroups of(PortSnapshot snapshot) {
+        return of(snapshot, IPV4_PREFIX, IPV6_PREFIX);
+    }
+
+    static ConnectionGroups of(PortSnapshot snapshot, int ipv4Prefix, int ipv6Prefix) {
+        Collector collector = new Collector(ipv4Prefix, ipv6Prefix);
+        int[] rowGroup = new int[snapshot.size()];
+        for (int row = 0; row < rowGroup.length; row++) {
+            rowGroup[row] = collector.add(snapshot.localPort[row], snapshot.state[row],
+                    snapshot.remoteAddressHi[row], snapshot.remoteAddressLo[row]);
+        }
+        return new ConnectionGroups(collector, snapshot, rowGroup);
+    }
+
+    /**
+     * Null when built without rows.
+     */
+    final PortSnapshot snapshot;
+
+    private final int size;
+    private final int[] localPort;
+    private final byte[] state;
+    private final long[] remoteHi;
+    private final long[] remoteLo;
+    private final int[] count;
+    private final boolean[] ipv4;
+    private final int ipv4Prefix;
+    private final int ipv6Prefix;
+
+    /**
+     * Rows of group g are rows[rowStart[g], rowStart[g + 1]).
+     */
+    private final int[] rowStart;
+    private final int[] rows;
+
+    /**
+     * Distinct local ports, groups of port p are [portStart[p],
+     * portStart[p + 1]).
+     */
+    private final int[] ports;
+    private final int[] portStart;
+
+    private ConnectionGroups(Collector c, PortSnapshot snapshot, int[] rowGroup) {
+        this.snapshot = snapshot;
+        this.size = c.groups;
+        this.ipv4Prefix = c.ipv4Prefix;
+        this.ipv6Prefix = c.ipv6Prefix;
+        // Sort by port, then by descending count, as port | ~count | group
+        long[] order = new long[size];
+        for (int group = 0; group < size; group++) {
+            long port = c.portState[group] >>> 8;
+            long inverseCount = 0x7FFFFF - Math.min(c.count[group], 0x7FFFFF);
+            order[group] = port << 47 | inverseCount << 24 | group;
+        }
+        Arrays.sort(order);
+        int[] position = new int[size];
+        localPort = new int[size];
+        state = new byte[size];
+        remoteHi = new long[size];
+        remoteLo = new long[size];
+        count = new int[size];
+        ipv4 = new boolean[size];
+        int portCount = 0;
+        for (int i = 0; i < size; i++) {
+            int group = (int) (order[i] & 0xFFFFFF);
+            position[group] = i;
+            localPort[i] = c.portState[group] >>> 8;
+            state[i] = (byte) c.portState[group];
+            remoteHi[i] = c.remoteHi[group];
+            remoteLo[i] = c.remoteLo[group];
+            count[i] = c.count[group];
+            ipv4[i] = Addresses.isIPv4(remoteHi[i], remoteLo[i]);
+            if (i == 0 || localPort[i] != localPort[i - 1]) {
+                portCount++;
+            }
+        }
+        ports = new int[portCount];
+        portStart = new int[portCount + 1];
+        for (int i = 0, p = -1; i < size; i++) {
+            if (i == 0 || localPort[i] != localPort[i - 1]) {
+                ports[++p] = localPort[i];
+                portStart[p] = i;
+            }
+        }
+        portStart[portCount] = size;
+        if (rowGroup == null) {
+            rowStart = null;
+            rows = null;
+            return;
+        }
+        // Counting sort of the rows by group
+        rowStart = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            rowStart[i + 1] = rowStart[i] + count[i];
+        }
+        rows = new int[rowGroup.length];
+        int[] next = Arrays.copyOf(rowStart, size);
+        for (int row = 0; row < rowGroup.length; row++) {
+            rows[next[position[rowGroup[row]]]++] = row;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int portCount() {
+        return ports.length;
+    }
+
+    int port(int portIndex) {
+        return ports[portIndex];
+    }
+
+    /**
+     * @return the index of a local port, negative if it has no sockets
+     */
+    int portIndex(int port) {
+        return Arrays.binarySearch(ports, port);
+    }
+
+    int firstGroup(int portIndex) {
+        return portStart[portIndex];
+    }
+
+    int groupCount(int portIndex) {
+        return portStart[portIndex + 1] - portStart[portIndex];
+    }
+
+    /**
+     * @return the number of sockets on a local port
+     */
+    int socketCount(int portIndex) {
+        int sockets = 0;
+        for (int group = portStart[portIndex]; group < portStart[portIndex + 1]; group++) {
+            sockets += count[group];
+        }
+        return sockets;
+    }
+
+    int localPort(int group) {
+        return localPort[group];
+    }
+
+    String state(int group) {
+        return PortSnapshot.STATES[state[group]];
+    }
+
+    int count(int group) {
+        return count[group];
+    }
+
+    boolean sameKey(int group, ConnectionGroups other, int otherGroup) {
+        return localPort[group] == other.localPort[otherGroup]
+                && state[group] == other.state[otherGroup]
+                && remoteHi[group] == other.remoteHi[otherGroup]
+                && remoteLo[group] == other.remoteLo[otherGroup];
+    }
+
+    /**
+     * @return the remote subnet, <code>*</code> for sockets without a peer
+     */
+    String remote(int group) {
+        if (remoteHi[group] == 0 && (remoteLo[group] == 0 || remoteLo[group] == Addresses.IPV4_MAPPED_PREFIX)) {
+            return "*";
+        }
+        return Addresses.format(remoteHi[group], remoteLo[group]) + "/" + (ipv4[group] ? ipv4Prefix : ipv6Prefix);
+    }
+
+    /**
+     * @return the snapshot row of the n-th socket of a group
+     */
+    int row(int group, int n) {
+        return rows[rowStart[group] + n];
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * Shows {@link ConnectionGroups} as local ports, their groups and the
+ * connections of a group. Nodes are made when the tree asks for them, so in a
+ * large model tree only the visible rows of an expanded group of twenty
+ * thousand connections exist. Nodes are equal by what they show rather than
+ * by position, so the paths a user expanded still match after the groups
+ * were replaced.
+ */
+class ConnectionTreeModel implements TreeModel {
+
+    private static final Object ROOT = "Connections";
+
+    static final class PortNode {
+
+        final int port;
+        final String label;
+
+        PortNode(int port, String label) {
+            this.port = port;
+            this.label = label;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PortNode && ((PortNode) obj).port == port;
+        }
+
+        @Override
+        public int hashCode() {
+            return port;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    static final class GroupNode {
+
+        final int port;
+        final String state;
+        final String remote;
+        final String label;
+
+        /**
+         * Index in the groups the node was made from.
+         */
+        final int group;
+
+        GroupNode(int port, String state, String remote, String label, int group) {
+            this.port = port;
+            this.state = state;
+            this.remote = remote;
+            this.label = label;
+            this.group = group;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof GroupNode)) {
+                return false;
+            }
+            GroupNode other = (GroupNode) obj;
+            return other.port == port && other.state.equals(state) && other.remote.equals(remote);
+        }
+
+        @Override
+        public int hashCode() {
+            return (port * 31 + state.hashCode()) * 31 + remote.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    static final class ConnectionNode {
+
+        final String label;
+
+        ConnectionNode(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ConnectionNode && ((ConnectionNode) obj).label.equals(label);
+        }
+
+        @Override
+        public int hashCode() {
+            return label.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final EventListenerList listeners = new EventListenerList();
+
+    private ConnectionGroups groups = ConnectionGroups.of(PortSnapshot.EMPTY);
+
+    /**
+     * Replaces the groups, on the event dispatch thread. Expanded paths are
+     * collapsed by the tree and have to be expanded again.
+     */
+    void setGroups(ConnectionGroups groups) {
+        this.groups = groups;
+        TreeModelEvent event = new TreeModelEvent(this, new TreePath(ROOT));
+        for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class)) {
+            listener.treeStructureChanged(event);
+        }
+    }
+
+    @Override
+    public Object getRoot() {
+        return ROOT;
+    }
+
+    private PortNode portNode(int portIndex) {
+        int sockets = groups.socketCount(portIndex);
+        return new PortNode(groups.port(portIndex), groups.port(portIndex) + " (" + sockets
+                + (sockets == 1 ? " socket)" : " sockets)"));
+    }
+
+    private GroupNode groupNode(int group) {
+        return new GroupNode(groups.localPort(group), groups.state(group), groups.remote(group),
+                groups.state(group) + " " + groups.remote(group) + " (" + groups.count(group) + ")", group);
+    }
+
+    /**
+     * @return the current index of a group node made from earlier groups, -1
+     * if the group is gone
+     */
+    private int group(GroupNode node) {
+        if (node.group < groups.size() && node.equals(groupNode(node.group))) {
+            return node.group;
+        }
+        int portIndex = groups.portIndex(node.port);
+        if (portIndex < 0) {
+            return -1;
+        }
+        int first = groups.firstGroup(portIndex);
+        for (int group = first; group < first + groups.groupCount(portIndex); group++) {
+            if (groups.state(group).equals(node.state) && groups.remote(group).equals(node.remote)) {
+                return group;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the path to the nodes of the current groups that equal those of
+     * a path from earlier groups, null if one of them is gone
+     */
+    TreePath current(TreePath path) {
+        TreePath current = new TreePath(ROOT);
+        for (int i = 1; i < path.getPathCount(); i++) {
+            Object parent = current.getLastPathComponent();
+            int index = getIndexOfChild(parent, path.getPathComponent(i));
+            if (index < 0) {
+                return null;
+            }
+            current = current.pathByAddingChild(getChild(parent, index));
+        }
+        return current;
+    }
+
+    @Override
+    public Object getChild(Object parent, int index) {
+        if (parent == ROOT) {
+            return portNode(index);
+        }
+        if (parent instanceof PortNode) {
+            int portIndex = groups.portIndex(((PortNode) parent).port);
+            return groupNode(groups.firstGroup(portIndex) + index);
+        }
+        int group = group((GroupNode) parent);
+        PortSnapshot snapshot = groups.snapshot;
+        int row = groups.row(group, index);
+        return new ConnectionNode(snapshot.remoteHost(row) + ":" + snapshot.remotePort[row]
+                + " " + snapshot.protocol(row) + " pid " + snapshot.pid[row]);
+    }
+
+    @Override
+    public int getChildCount(Object parent) {
+        if (parent == ROOT) {
+            return groups.portCount();
+        }
+        if (parent instanceof PortNode) {
+            int portIndex = groups.portIndex(((PortNode) parent).port);
+            return portIndex < 0 ? 0 : groups.groupCount(portIndex);
+        }
+        if (parent instanceof GroupNode && groups.snapshot != null) {
+            int group = group((GroupNode) parent);
+            return group < 0 ? 0 : groups.count(group);
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean isLeaf(Object node) {
+        return node instanceof ConnectionNode;
+    }
+
+    @Override
+    public void valueForPathChanged(TreePath path, Object newValue) {
+    }
+
+    @Override
+    public int getIndexOfChild(Object parent, Object child) {
+        if (parent == ROOT && child instanceof PortNode) {
+            return Math.max(-1, groups.portIndex(((PortNode) child).port));
+        }
+        if (parent instanceof PortNode && child instanceof GroupNode) {
+            int group = group((GroupNode) child);
+            return group < 0 ? -1 : group - groups.firstGroup(groups.portIndex(((PortNode) parent).port));
+        }
+        if (parent instanceof GroupNode && child instanceof ConnectionNode) {
+            int count = getChildCount(parent);
+            for (int i = 0; i < count; i++) {
+                if (getChild(parent, i).equals(child)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void addTreeModelListener(TreeModelListener l) {
+        listeners.add(TreeModelListener.class, l);
+    }
+
+    @Override
+    public void removeTreeModelListener(TreeModelListener l) {
+        listeners.remove(TreeModelListener.class, l);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+/**
+ * The latest snapshots of a set of hosts. Immutable; an update of one host
+ * copies the two small arrays and shares every other snapshot, along with
+ * its already built index. Queries run against each host's index, so their
+ * cost grows with the number of hosts and matches, not with the number of
+ * sockets in the fleet.
+ */
+class FleetSnapshot {
+
+    private final String[] hosts;
+
+    /**
+     * Null for hosts that are not connected.
+     */
+    private final PortSnapshot[] snapshots;
+
+    FleetSnapshot(String[] hosts, PortSnapshot[] snapshots) {
+        this.hosts = hosts;
+        this.snapshots = snapshots;
+    }
+
+    FleetSnapshot with(int slot, String host, PortSnapshot snapshot) {
+        String[] newHosts = hosts.clone();
+        PortSnapshot[] newSnapshots = snapshots.clone();
+        newHosts[slot] = host;
+        newSnapshots[slot] = snapshot;
+        return new FleetSnapshot(newHosts, newSnapshots);
+    }
+
+    int hosts() {
+        return hosts.length;
+    }
+
+    String host(int slot) {
+        return hosts[slot];
+    }
+
+    /**
+     * @return the snapshot of a host, null if it is not connected
+     */
+    PortSnapshot snapshot(int slot) {
+        return snapshots[slot];
+    }
+
+    boolean isComplete() {
+        for (PortSnapshot snapshot : snapshots) {
+            if (snapshot == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of sockets of all connected hosts
+     */
+    int size() {
+        int size = 0;
+        for (PortSnapshot snapshot : snapshots) {
+            if (snapshot != null) {
+                size += snapshot.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the matching sockets of every connected host
+     */
+    FleetSnapshot select(PortQuery query) {
+        PortSnapshot[] selected = new PortSnapshot[snapshots.length];
+        for (int slot = 0; slot < snapshots.length; slot++) {
+            if (snapshots[slot] != null) {
+                selected[slot] = query.apply(snapshots[slot]);
+            }
+        }
+        return new FleetSnapshot(hosts, selected);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Socket source that runs <code>ss</code> (iproute2), which queries
+ * NETLINK_INET_DIAG for the sockets; the JDK offers no way to open an
+ * AF_NETLINK socket itself. It forks <code>ss</code> on every scan, so it
+ * is only used when <code>portmon.source</code> is <code>inetdiag</code>.
+ * <p>
+ * The state bitmask and the local port list are passed to <code>ss</code>
+ * as a filter expression, which it compiles into an inet_diag state mask
+ * and bytecode filter for the kernel, so only matching sockets are returned.
+ * <code>ss -p</code> would read the descriptors of every process for each
+ * scan, instead only the inodes that came back are looked for in /proc and
+ * the walk stops once they are all found (see
+ * {@link ProcNetSocketSource.PidResolver}).
+ */
+class InetDiagSocketSource implements SocketSource {
+
+    private static final String[] SS_LOCATIONS = {"/usr/sbin/ss", "/sbin/ss", "/usr/bin/ss", "/bin/ss"};
+
+    private static final List<String> ssPrefix = new LinkedList<>(
+            Arrays.<String>asList("-H", "-t", "-u", "-n", "-e", "-i"));
+
+    /**
+     * Netids of the Unix domain socket types.
+     */
+    private static final String[] UNIX_NETIDS = {"u_str", "u_dgr", "u_seq"};
+
+    /**
+     * ss state names mapped to the netstat names used by portmon.
+     */
+    private static final String[][] SS_STATES = {
+        {"ESTAB", "ESTABLISHED"},
+        {"SYN-SENT", "SYN_SENT"},
+        {"SYN-RECV", "SYN_RECEIVED"},
+        {"FIN-WAIT-1", "FIN_WAIT_1"},
+        {"FIN-WAIT-2", "FIN_WAIT_2"},
+        {"TIME-WAIT", "TIME_WAIT"},
+        {"UNCONN", "CLOSED"},
+        {"CLOSE-WAIT", "CLOSE_WAIT"},
+        {"LAST-ACK", "LAST_ACK"},
+        {"LISTEN", PortMon.LISTENING},
+        {"CLOSING", "CLOSING"}
+    };
+
+    private static final String INODE_PREFIX = "ino:";
+
+    private static final String RTT_PREFIX = "rtt:";
+    private static final String RETRANS_PREFIX = "retrans:";
+    private static final String BYTES_ACKED_PREFIX = "bytes_acked:";
+
+    private final String ss;
+
+    private final LineReader reader = new LineReader();
+
+    private final PortMon.Port scratch = new PortMon.Port();
+
+    private final ProcNetSocketSource.PidResolver resolver = new ProcNetSocketSource.PidResolver();
+
+    private final long[] address = new long[Addresses.SCRATCH];
+
+    InetDiagSocketSource() {
+        this.ss = locateSs();
+    }
+
+    static boolean isAvailable() {
+        return locateSs() != null;
+    }
+
+    private static String locateSs() {
+        for (String location : SS_LOCATIONS) {
+            if (new File(location).canExecute()) {
+                return location;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void scan(PortFilter filter, PortSink sink) throws IOException {
+        if (ss == null) {
+            throw new IOException("ss (iproute2) not found");
+        }
+        List<String> command = new LinkedList<>();
+        command.add(ss);
+        command.addAll(ssPrefix);
+        if (filter.ports.length == 0) {
+            // Unix domain sockets have no port, a port filter never keeps them
+            command.add("-x");
+        }
+        command.addAll(filter(filter.listeningOnly, filter.ports));
+
+        Process ssProcess = new ProcessBuilder(command).start();
+        try (InputStream in = ssProcess.getInputStream()) {
+            parse(in, filter.listeningOnly ? PortMon.LISTENING : null, resolver);
+            ssProcess.waitFor();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        resolver.resolveTo(sink);
+    }
+
+    /**
+     * Builds the state and port filter expression that ss turns into the
+     * inet_diag state mask and bytecode, e.g.
+     * <pre>state listening ( sport = :80 or sport = :443 )</pre>
+     */
+    static List<String> filter(boolean listeningOnly, int... ports) {
+        List<String> filter = new LinkedList<>();
+        filter.add("state");
+        filter.add(listeningOnly ? "listening" : "all");
+        if (ports.length > 0) {
+            filter.add("(");
+            for (int i = 0; i < ports.length; i++) {
+                if (i > 0) {
+                    filter.add("or");
+                }
+                filter.add("sport");
+                filter.add("=");
+                filter.add(":" + ports[i]);
+            }
+            filter.add(")");
+        }
+        return filter;
+    }
+
+    /**
+     * Parses ss output, rows look like
+     * <pre>tcp LISTEN 0 128 0.0.0.0:22 0.0.0.0:* ino:18231 sk:1 &lt;-&gt;
+     *	 cubic rto:204 rtt:0.05/0.025 bytes_acked:1 retrans:0/2 ...
+     *u_str LISTEN 0 4096 /run/dbus/system_bus_socket 15226 * 0 ...</pre>
+     * A Unix domain socket has its path and inode where others have their
+     * address and port. The pid of the rows passed to the sink is not
+     * resolved. ss leaves out the state column when the filter
+     * selects a single state, in which case <code>filteredState</code> is
+     * used. Unconnected sockets with a local name, UDP or datagram servers,
+     * are shown as listening like <code>state listening</code> selects them.
+     * The indented tcp_info line belongs to the socket above it, so a socket
+     * is passed on once the next line is known.
+     */
+    synchronized void parse(InputStream in, String filteredState, PortSink sink) throws IOException {
+        LineReader r = reader;
+        PortMon.Port p = scratch;
+        r.reset(in);
+        boolean pending = false;
+        while (r.nextLine()) {
+            byte[] b = r.buffer();
+            boolean info = r.lineEnd > r.lineStart && (b[r.lineStart] == ' ' || b[r.lineStart] == '\t');
+            if (pending) {
+                if (info) {
+                    parseInfo(r, p);
+                }
+                sink.accept(p);
+                pending = false;
+            }
+            if (info) {
+                continue;
+            }
+            int netid = r.field();
+            int netidEnd = r.pos;
+            boolean udp = r.regionEquals(netid, netidEnd, "udp");
+            boolean unix = false;
+            for (String name : UNIX_NETIDS) {
+                unix |= r.regionEquals(netid, netidEnd, name);
+            }
+            if (!udp && !unix && !r.regionEquals(netid, netidEnd, "tcp")) {
+                continue;
+            }
+            int start = r.field();
+            String state = filteredState;
+            int recvQ = start;
+            if (r.pos > start && (b[start] < '0' || b[start] > '9')) {
+                state = stateName(r, start);
+                recvQ = r.field();
+            }
+            if (state == null) {
+                continue;
+            }
+            int sendQ = r.field();
+            int afterSendQ = r.pos;
+            r.pos = recvQ;
+            p.rxQueue = (int) Math.max(0, r.decimal());
+            r.pos = sendQ;
+            p.txQueue = (int) Math.max(0, r.decimal());
+            r.pos = afterSendQ;
+            int local = r.field();
+            int localEnd = r.pos;
+            if (unix) {
+                p.protocol = "UNIX";
+                boolean named = localEnd - local != 1 || b[local] != '*';
+                p.path = named ? new String(b, local, localEnd - local, StandardCharsets.UTF_8) : null;
+                r.skipBlanks();
+                p.inode = Math.max(0, r.decimal());
+                p.setLocal(0, 0, 0);
+                p.setRemote(0, 0, 0);
+                r.skipFields(2);
+                p.state = named && "CLOSED".equals(state) ? PortMon.LISTENING : state;
+                parseDetails(r, p);
+                pending = true;
+                continue;
+            }
+            int remote = r.field();
+            int remoteEnd = r.pos;
+            int localColon = r.lastIndexOf(local, localEnd, ':');
+            if (localColon < 0 || !Addresses.parse(b, local, localColon, address)) {
+                continue;
+            }
+            r.pos = localColon + 1;
+            p.setLocal(address[0], address[1], (int) Math.max(0, r.decimal()));
+            int remoteColon = r.lastIndexOf(remote, remoteEnd, ':');
+            if (remoteColon >= 0 && Addresses.parse(b, remote, remoteColon, address)) {
+                r.pos = remoteColon + 1;
+                p.setRemote(address[0], address[1], (int) Math.max(0, r.decimal()));
+            } else {
+                p.setRemote(0, 0, 0);
+            }
+            if (udp) {
+                p.protocol = b[local] == '[' ? "UDPv6" : "UDP";
+                p.state = "CLOSED".equals(state) ? PortMon.LISTENING : state;
+            } else {
+                p.protocol = b[local] == '[' ? "TCPv6" : "TCP";
+                p.state = state;
+            }
+            p.path = null;
+            p.inode = 0;
+            r.pos = remoteEnd;
+            parseDetails(r, p);
+            pending = true;
+        }
+        if (pending) {
+            sink.accept(p);
+        }
+    }
+
+    /**
+     * Picks the inode from the details <code>ss -e</code> prints after the
+     * addresses, and clears the tcp_info values until its line is seen.
+     */
+    private static void parseDetails(LineReader r, PortMon.Port p) {
+        p.pid = 0;
+        while (!r.atEnd()) {
+            int start = r.field();
+            int end = r.pos;
+            if (startsWith(r, start, end, INODE_PREFIX)) {
+                r.pos = start + INODE_PREFIX.length();
+                p.inode = Math.max(0, r.decimal());
+            }
+            r.pos = end;
+        }
+        p.rttMicros = 0;
+        p.retransmits = 0;
+        p.bytesAcked = 0;
+    }
+
+    /**
+     * Picks the round trip time (ms with fraction), the total retransmits
+     * and the acknowledged bytes from a tcp_info line.
+     */
+    private static void parseInfo(LineReader r, PortMon.Port p) {
+        while (!r.atEnd()) {
+            int start = r.field();
+            int end = r.pos;
+            if (startsWith(r, start, end, RTT_PREFIX)) {
+                r.pos = start + RTT_PREFIX.length();
+                long micros = r.decimal() * 1000;
+                if (r.skip('.')) {
+                    byte[] b = r.buffer();
+                    for (int place = 100; r.pos < end && b[r.pos] >= '0' && b[r.pos] <= '9'; r.pos++) {
+                        micros += (b[r.pos] - '0') * place;
+                        place /= 10;
+                    }
+                }
+                p.rttMicros = (int) micros;
+            } else if (startsWith(r, start, end, RETRANS_PREFIX)) {
+                // retrans:<unrecovered>/<total>
+                r.pos = start + RETRANS_PREFIX.length();
+                r.decimal();
+                if (r.skip('/')) {
+                    p.retransmits = (int) r.decimal();
+                }
+            } else if (startsWith(r, start, end, BYTES_ACKED_PREFIX)) {
+                r.pos = start + BYTES_ACKED_PREFIX.length();
+                p.bytesAcked = r.decimal();
+            }
+            r.pos = end;
+        }
+    }
+
+    private static boolean startsWith(LineReader r, int start, int end, String prefix) {
+        return end - start > prefix.length() && r.regionEquals(start, start + prefix.length(), prefix);
+    }
+
+    private static String stateName(LineReader r, int start) {
+        for (String[] mapping : SS_STATES) {
+            if (r.regionEquals(start, r.pos, mapping[0])) {
+                return mapping[1];
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads ASCII lines into a reused byte buffer and decodes fields of the
+ * current line in place, so parsing a socket table allocates nothing per
+ * row. Not thread safe.
+ */
+class LineReader {
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+
+    private InputStream in;
+
+    /**
+     * Valid bytes are buf[0, limit).
+     */
+    private int limit;
+
+    private int next;
+
+    private boolean eof;
+
+    /**
+     * Receives the read time and line count of the current scan.
+     */
+    private ScanStats.Sample sample;
+
+    /**
+     * The current line is buf[lineStart, lineEnd), pos is the field cursor.
+     */
+    int lineStart;
+    int lineEnd;
+    int pos;
+
+    void reset(InputStream in) {
+        this.in = in;
+        this.sample = ScanStats.sample();
+        this.limit = 0;
+        this.next = 0;
+        this.eof = false;
+        this.lineStart = 0;
+        this.lineEnd = 0;
+        this.pos = 0;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * Advances to the next line.
+     *
+     * @return false at end of input
+     */
+    boolean nextLine() throws IOException {
+        while (true) {
+            for (int i = next; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    return line(next, i, i + 1);
+                }
+            }
+            if (eof) {
+                if (next < limit) {
+                    return line(next, limit, limit);
+                }
+                return false;
+            }
+            fill();
+        }
+    }
+
+    private boolean line(int start, int end, int following) {
+        if (end > start && buf[end - 1] == '\r') {
+            end--;
+        }
+        sample.lines++;
+        lineStart = start;
+        lineEnd = end;
+        pos = start;
+        next = following;
+        return true;
+    }
+
+    private void fill() throws IOException {
+        if (next > 0) {
+            // Move the partial line to the front
+            System.arraycopy(buf, next, buf, 0, limit - next);
+            limit -= next;
+            next = 0;
+        }
+        if (limit == buf.length) {
+            byte[] grown = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, limit);
+            buf = grown;
+        }
+        long start = System.nanoTime();
+        int n = in.read(buf, limit, buf.length - limit);
+        sample.readNanos += System.nanoTime() - start;
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    boolean atEnd() {
+        return pos >= lineEnd;
+    }
+
+    void skipBlanks() {
+        while (pos < lineEnd && (buf[pos] == ' ' || buf[pos] == '\t')) {
+            pos++;
+        }
+    }
+
+    /**
+     * Skips blanks, then the field, leaving the cursor on the next blank.
+     *
+     * @return the start of the skipped field
+     */
+    int field() {
+        skipBlanks();
+        int start = pos;
+        while (pos < lineEnd && buf[pos] != ' ' && buf[pos] != '\t') {
+            pos++;
+        }
+        return start;
+    }
+
+    /**
+     * Skips blanks and <code>count</code> fields.
+     */
+    void skipFields(int count) {
+        for (int i = 0; i < count; i++) {
+            field();
+        }
+    }
+
+    boolean skip(char c) {
+        if (pos < lineEnd && buf[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decodes hex digits at the cursor.
+     */
+    long hex() {
+        long value = 0;
+        while (pos < lineEnd) {
+            int digit = Character.digit(buf[pos], 16);
+            if (digit < 0) {
+                break;
+            }
+            value = (value << 4) | digit;
+            pos++;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes decimal digits at the cursor.
+     *
+     * @return the value or -1 if there are no digits
+     */
+    long decimal() {
+        long value = 0;
+        int start = pos;
+        while (pos < lineEnd && buf[pos] >= '0' && buf[pos] <= '9') {
+            value = value * 10 + (buf[pos++] - '0');
+        }
+        return pos == start ? -1 : value;
+    }
+
+    /**
+     * @return true if buf[from, to) equals the ASCII string
+     */
+    boolean regionEquals(int from, int to, String ascii) {
+        if (to - from != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (buf[from + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the last <code>c</code> in buf[from, to) or -1
+     */
+    int lastIndexOf(int from, int to, char c) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII);
+    }
+}
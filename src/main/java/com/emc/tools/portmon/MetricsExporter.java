@@ -0,0 +1,158 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the latest snapshot of a {@link PortMonDaemon} in the Prometheus
+ * text format on <code>/metrics</code>. Scrapes never scan: the page is
+ * rendered once per snapshot and scan, and every scrape in between writes
+ * the same bytes. Sockets are only counted in the states the daemon scans,
+ * LISTENING alone unless it runs with <code>--all</code>, so a state that
+ * is not scanned is left out rather than reported as 0.
+ */
+class MetricsExporter implements HttpHandler {
+
+    private static final Logger logger = Logger.getLogger(MetricsExporter.class.getName());
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final PortMonDaemon daemon;
+
+    private HttpServer server;
+
+    /**
+     * The rendered page and what it was rendered from.
+     */
+    private byte[] page = new byte[0];
+    private long pageSequence = -1;
+    private long pageScans = -1;
+
+    private final StringBuilder text = new StringBuilder(4096);
+
+    MetricsExporter(PortMonDaemon daemon) {
+        this.daemon = daemon;
+    }
+
+    void start(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this);
+        server.start();
+        logger.log(Level.INFO, "Metrics on http://{0}:{1}/metrics",
+                new Object[]{address.getHostString(), Integer.toString(server.getAddress().getPort())});
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = page();
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the page for the latest snapshot, rendered if it is new
+     */
+    synchronized byte[] page() {
+        PortSnapshot snapshot = daemon.latest();
+        long scans = PortMon.scanDurations.count();
+        if (snapshot.sequence != pageSequence || scans != pageScans) {
+            text.setLength(0);
+            render(snapshot, daemon.filter(), text);
+            page = text.toString().getBytes(StandardCharsets.UTF_8);
+            pageSequence = snapshot.sequence;
+            pageScans = scans;
+        }
+        return page;
+    }
+
+    private static void render(PortSnapshot snapshot, PortFilter filter, StringBuilder out) {
+        PortIndex index = snapshot.index();
+
+        header(out, "portmon_sockets", "gauge", "Sockets by state.");
+        for (int state = 0; state < PortSnapshot.STATES.length; state++) {
+            if (filter.listeningOnly && state != PortSnapshot.LISTENING) {
+                continue;
+            }
+            out.append("portmon_sockets{state=\"").append(PortSnapshot.STATES[state]).append("\"} ")
+                    .append(index.countState(state)).append('\n');
+        }
+
+        header(out, "portmon_listeners", "gauge", "Listening sockets by local port.");
+        int[] listening = index.state(PortSnapshot.LISTENING);
+        int[] ports = new int[listening.length];
+        for (int i = 0; i < listening.length; i++) {
+            ports[i] = snapshot.localPort[listening[i]];
+        }
+        Arrays.sort(ports);
+        for (int i = 0; i < ports.length;) {
+            int port = ports[i];
+            int count = 0;
+            while (i < ports.length && ports[i] == port) {
+                count++;
+                i++;
+            }
+            out.append("portmon_listeners{port=\"").append(port).append("\"} ").append(count).append('\n');
+        }
+
+        header(out, "portmon_process_sockets", "gauge", "Sockets by owning process.");
+        int[] pids = index.pids();
+        Arrays.sort(pids);
+        for (int pid : pids) {
+            out.append("portmon_process_sockets{pid=\"").append(pid).append("\"} ")
+                    .append(index.countPid(pid)).append('\n');
+        }
+
+        header(out, "portmon_scan_timestamp_seconds", "gauge", "Time of the latest scan.");
+        out.append("portmon_scan_timestamp_seconds ").append(snapshot.timestamp / 1000.0).append('\n');
+
+        ScanHistogram durations = PortMon.scanDurations;
+        header(out, "portmon_scan_duration_seconds", "histogram", "Duration of socket table scans.");
+        for (int bucket = 0; bucket < ScanHistogram.BUCKETS.length; bucket++) {
+            out.append("portmon_scan_duration_seconds_bucket{le=\"").append(ScanHistogram.BUCKETS[bucket]).append("\"} ")
+                    .append(durations.cumulativeCount(bucket)).append('\n');
+        }
+        long count = durations.cumulativeCount(ScanHistogram.BUCKETS.length);
+        out.append("portmon_scan_duration_seconds_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        out.append("portmon_scan_duration_seconds_sum ").append(durations.sumNanos() / 1e9).append('\n');
+        out.append("portmon_scan_duration_seconds_count ").append(count).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
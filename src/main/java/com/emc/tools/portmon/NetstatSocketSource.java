@@ -0,0 +1,140 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Socket source that runs <code>netstat</code> through <code>cmd</code>. One
+ * run lists the TCP and UDP sockets of both address families.
+ */
+class NetstatSocketSource implements SocketSource {
+
+    private static final List<String> netstatPrefix = new LinkedList<>(
+            Arrays.<String>asList(
+                    "cmd", "/C", "netstat", "-ano", "|", "findstr"));
+
+    /**
+     * Netstat state names, parsed rows refer to these instances.
+     */
+    private static final String[] STATES = {
+        "CLOSED", PortMon.LISTENING, "SYN_SENT", "SYN_RECEIVED", "ESTABLISHED",
+        "FIN_WAIT_1", "FIN_WAIT_2", "CLOSE_WAIT", "CLOSING", "LAST_ACK",
+        "TIME_WAIT", "DELETE_TCB"
+    };
+
+    /**
+     * Netstat names both address families TCP and UDP, the IPv6 rows are
+     * told apart by their bracketed address.
+     */
+    private static final String[] PROTOCOLS = {"TCP", "UDP"};
+
+    private final LineReader reader = new LineReader();
+
+    private final PortMon.Port scratch = new PortMon.Port();
+
+    private final long[] address = new long[Addresses.SCRATCH];
+
+    @Override
+    public synchronized void scan(PortFilter filter, PortSink sink) throws IOException {
+        List<String> netstat = new LinkedList<>(netstatPrefix);
+        if (filter.ports.length > 0) {
+            for (int port : filter.ports) {
+                netstat.add("/C::" + port);
+            }
+        } else {
+            netstat.add("/R");
+            netstat.add(".*");
+        }
+        ProcessBuilder netstatProcessBuilder = new ProcessBuilder(netstat);
+        final Process netstatProcess = netstatProcessBuilder.start();
+        try (InputStream inputStream = netstatProcess.getInputStream()) {
+            parse(inputStream, filter, sink);
+            netstatProcess.waitFor();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parses netstat output, rows look like
+     * <pre>  TCP    0.0.0.0:135    0.0.0.0:0    LISTENING    1234
+     *  TCP    [::]:135       [::]:0       LISTENING    1234
+     *  UDP    0.0.0.0:123    *:*                       1234</pre>
+     * UDP rows have no state, a bound UDP socket is shown as listening like
+     * the other sources do.
+     */
+    synchronized void parse(InputStream in, PortFilter filter, PortSink sink) throws IOException {
+        LineReader r = reader;
+        PortMon.Port p = scratch;
+        r.reset(in);
+        while (r.nextLine()) {
+            byte[] b = r.buffer();
+            int start = r.field();
+            String protocol = lookup(r, start, PROTOCOLS);
+            if (protocol == null) {
+                continue;
+            }
+            int local = r.field();
+            int localEnd = r.pos;
+            int remote = r.field();
+            int remoteEnd = r.pos;
+            boolean udp = protocol == PROTOCOLS[1];
+            String state = PortMon.LISTENING;
+            if (!udp) {
+                start = r.field();
+                state = lookup(r, start, STATES);
+            }
+            if (state == null || !filter.acceptsState(state)) {
+                continue;
+            }
+            int localColon = r.lastIndexOf(local, localEnd, ':');
+            if (localColon < 0) {
+                continue;
+            }
+            r.pos = localColon + 1;
+            int localPort = (int) r.decimal();
+            if (localPort < 0 || !filter.acceptsPort(localPort)) {
+                continue;
+            }
+            if (!Addresses.parse(b, local, localColon, address)) {
+                continue;
+            }
+            p.setLocal(address[0], address[1], localPort);
+            int remoteColon = r.lastIndexOf(remote, remoteEnd, ':');
+            if (remoteColon >= 0 && Addresses.parse(b, remote, remoteColon, address)) {
+                r.pos = remoteColon + 1;
+                p.setRemote(address[0], address[1], (int) Math.max(0, r.decimal()));
+            } else {
+                p.setRemote(0, 0, 0);
+            }
+            r.pos = remoteEnd;
+            if (!udp) {
+                r.field();
+            }
+            r.skipBlanks();
+            boolean ipv6 = b[local] == '[';
+            p.protocol = udp ? (ipv6 ? "UDPv6" : "UDP") : (ipv6 ? "TCPv6" : "TCP");
+            p.state = state;
+            p.path = null;
+            p.pid = (int) Math.max(0, r.decimal());
+            p.inode = 0;
+            sink.accept(p);
+        }
+    }
+
+    private static String lookup(LineReader r, int start, String[] names) {
+        for (String name : names) {
+            if (r.regionEquals(start, r.pos, name)) {
+                return name;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What the runtime offers beyond Java 8. The jar is multi-release: newer
+ * runtimes load a replacement of this class from
+ * <code>META-INF/versions/&lt;n&gt;</code> (sources in
+ * <code>src/main/java&lt;n&gt;</code>) with the same methods. This version
+ * falls back to /proc and to external commands.
+ */
+class Platform {
+
+    private Platform() {
+    }
+
+    /**
+     * Threads for short tasks that mostly wait for I/O.
+     */
+    static ThreadFactory workerThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return true if {@link #startTime(int)} tells processes apart
+     */
+    static boolean tracksProcesses() {
+        return ProcessInfo.HAS_PROC;
+    }
+
+    /**
+     * @return a value that stays the same for the life of a process and
+     * differs for a later process with the same pid, -1 if the process is
+     * not running, 0 if it can not be told
+     */
+    static long startTime(int pid) {
+        return ProcessInfo.procStartTime(pid);
+    }
+
+    /**
+     * @return the details of a process, null to look them up with the
+     * commands of the operating system
+     */
+    static ProcessInfo processInfo(int pid) {
+        return null;
+    }
+
+    /**
+     * Asks processes to terminate, or kills them.
+     *
+     * @return false to signal them with the commands of the operating system
+     */
+    static boolean signal(int[] pids, boolean force) {
+        return false;
+    }
+}
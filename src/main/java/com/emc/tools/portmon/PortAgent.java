@@ -0,0 +1,303 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the snapshots of the local machine to {@link PortCollector}s. A new
+ * connection receives a HELLO with the agent name and a FULL frame, then one
+ * DELTA frame per change (see {@link SnapshotCodec}). All connections share
+ * the same delta stream, which is encoded once per change.
+ * <p>
+ * Clients are written without blocking. What a client has not taken yet
+ * waits in its own queue, so a slow client does not hold up the others.
+ * Once {@value #MAX_PENDING} bytes more than the last FULL frame wait, the
+ * queue is replaced by a FULL frame of the current state, and a client that
+ * falls behind that too is disconnected. Changes that come faster than they are sent are
+ * coalesced, only the latest snapshot is published.
+ */
+class PortAgent implements PortWatcher.Listener {
+
+    private static final Logger logger = Logger.getLogger(PortAgent.class.getName());
+
+    static final int MAX_PENDING = 4 * 1024 * 1024;
+
+    /**
+     * One connection and the frames it has not taken yet, only used by the
+     * agent thread.
+     */
+    private static class Client {
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        long pendingBytes;
+
+        /**
+         * True while a FULL frame is not sent, the pending bytes it may
+         * reach before the client is resynced.
+         */
+        boolean resyncing;
+        long limit;
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final String name;
+
+    private final AtomicReference<PortSnapshot> latest = new AtomicReference<>();
+
+    private ServerSocketChannel server;
+
+    private volatile Selector selector;
+
+    private Thread thread;
+
+    /**
+     * Only used by the agent thread.
+     */
+    private final List<Client> clients = new ArrayList<>();
+    private final SnapshotCodec codec = new SnapshotCodec();
+    private final ByteBuffer in = ByteBuffer.allocate(256);
+    private PortSnapshot base = PortSnapshot.EMPTY;
+
+    PortAgent(String name) {
+        this.name = name;
+    }
+
+    void start(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "PortMon Agent");
+        thread.setDaemon(true);
+        thread.start();
+        logger.log(Level.INFO, "Agent {0} on {1}", new Object[]{name, server.getLocalAddress()});
+    }
+
+    void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void portsChanged(PortDiff diff) {
+        if (latest.getAndSet(diff.after) == null && selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                PortSnapshot snapshot = latest.getAndSet(null);
+                if (snapshot != null) {
+                    publish(snapshot);
+                }
+                selector.select();
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable() && client.channel.read(in) < 0) {
+                            throw new IOException("Closed by client");
+                        }
+                        in.clear();
+                        if (key.isValid() && key.isWritable()) {
+                            flush(client);
+                        }
+                    } catch (IOException ex) {
+                        close(client, ex);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        } finally {
+            for (Client client : new ArrayList<>(clients)) {
+                close(client, null);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel, channel.register(selector, SelectionKey.OP_READ));
+        client.key.attach(client);
+        clients.add(client);
+        try {
+            send(client, codec.hello(name), null);
+            send(client, codec.full(base), null);
+            client.resyncing = !client.pending.isEmpty();
+            client.limit = client.pendingBytes + MAX_PENDING;
+        } catch (IOException ex) {
+            close(client, ex);
+        }
+    }
+
+    /**
+     * Sends the difference to what the clients have, and moves the base to
+     * the state the clients reconstruct from it.
+     */
+    private void publish(PortSnapshot snapshot) {
+        PortDiff diff = PortDiff.compute(base, snapshot);
+        if (diff.isEmpty()) {
+            return;
+        }
+        SnapshotDelta delta = SnapshotDelta.of(diff);
+        base = delta.applyTo(base);
+        ByteBuffer frame = codec.delta(delta);
+        ByteBuffer[] copy = new ByteBuffer[1];
+        List<Client> behind = new ArrayList<>();
+        for (Client client : new ArrayList<>(clients)) {
+            try {
+                send(client, frame.duplicate(), copy);
+                if (client.pendingBytes > client.limit) {
+                    behind.add(client);
+                }
+            } catch (IOException ex) {
+                close(client, ex);
+            }
+        }
+        // After the loop, the FULL frame is encoded over the delta
+        for (Client client : behind) {
+            try {
+                resync(client);
+            } catch (IOException ex) {
+                close(client, ex);
+            }
+        }
+    }
+
+    /**
+     * Writes what the client takes now and queues the rest.
+     *
+     * @param copy the frame copied for the queues of earlier clients, shared
+     * by the clients of one publish, or null
+     */
+    private void send(Client client, ByteBuffer frame, ByteBuffer[] copy) throws IOException {
+        if (client.pending.isEmpty()) {
+            client.channel.write(frame);
+            if (!frame.hasRemaining()) {
+                return;
+            }
+        }
+        // The codec reuses the frame, the queue needs its own
+        ByteBuffer queued;
+        if (copy != null && copy[0] != null) {
+            queued = copy[0].duplicate();
+            queued.position(queued.limit() - frame.remaining());
+        } else {
+            ByteBuffer whole = frame.duplicate();
+            whole.position(0);
+            queued = ByteBuffer.allocate(whole.remaining()).put(whole);
+            queued.flip();
+            if (copy != null) {
+                copy[0] = queued.asReadOnlyBuffer();
+            }
+            queued.position(queued.limit() - frame.remaining());
+        }
+        client.pending.add(queued);
+        client.pendingBytes += queued.remaining();
+        client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void flush(Client client) throws IOException {
+        while (!client.pending.isEmpty()) {
+            ByteBuffer frame = client.pending.peek();
+            int before = frame.remaining();
+            client.channel.write(frame);
+            client.pendingBytes -= before - frame.remaining();
+            if (frame.hasRemaining()) {
+                return;
+            }
+            client.pending.remove();
+        }
+        client.resyncing = false;
+        client.limit = MAX_PENDING;
+        client.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Replaces the frames a client has not started to read with a FULL
+     * frame of the base, or disconnects it if it did not take the last one.
+     */
+    private void resync(Client client) throws IOException {
+        if (client.resyncing) {
+            throw new IOException("Client fell behind by " + client.pendingBytes + " bytes");
+        }
+        ByteBuffer started = client.pending.peek();
+        client.pending.clear();
+        client.pendingBytes = 0;
+        if (started.position() > 0) {
+            // Part of the frame is sent, the rest must follow
+            client.pending.add(started);
+            client.pendingBytes = started.remaining();
+        }
+        client.resyncing = true;
+        ByteBuffer full = codec.full(base);
+        ByteBuffer queued = ByteBuffer.allocate(full.remaining()).put(full);
+        queued.flip();
+        client.pending.add(queued);
+        client.pendingBytes += queued.remaining();
+        client.limit = client.pendingBytes + MAX_PENDING;
+        logger.log(Level.FINE, "Client {0} fell behind, sending a full snapshot", client.channel);
+    }
+
+    private void close(Client client, Exception cause) {
+        if (cause != null) {
+            logger.log(Level.FINE, client.channel + " disconnected", cause);
+        }
+        clients.remove(client);
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException ex) {
+            // Already gone
+        }
+    }
+}
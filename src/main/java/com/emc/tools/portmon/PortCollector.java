@@ -0,0 +1,256 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps connections to many {@link PortAgent}s on one thread with
+ * non-blocking NIO and merges their snapshots into a {@link FleetSnapshot}.
+ * Each agent's snapshot is kept up to date from its deltas, and an update
+ * only replaces that agent's slot of the fleet. Lost connections are retried
+ * every few seconds.
+ */
+class PortCollector {
+
+    private static final Logger logger = Logger.getLogger(PortCollector.class.getName());
+
+    private static final long RECONNECT_MILLIS = 3000;
+
+    /**
+     * Connection state of one agent, only used by the collector thread.
+     */
+    private static class Agent {
+
+        final int slot;
+        final InetSocketAddress address;
+        SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        String name;
+        PortSnapshot snapshot;
+        long reconnectAt;
+
+        Agent(int slot, InetSocketAddress address) {
+            this.slot = slot;
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+    }
+
+    private final Agent[] agents;
+
+    private volatile FleetSnapshot fleet;
+
+    private Selector selector;
+
+    private Thread thread;
+
+    PortCollector(List<InetSocketAddress> addresses) {
+        agents = new Agent[addresses.size()];
+        String[] hosts = new String[agents.length];
+        for (int i = 0; i < agents.length; i++) {
+            agents[i] = new Agent(i, addresses.get(i));
+            hosts[i] = agents[i].name;
+        }
+        fleet = new FleetSnapshot(hosts, new PortSnapshot[agents.length]);
+    }
+
+    /**
+     * @return the latest view of all agents, never null
+     */
+    FleetSnapshot fleet() {
+        return fleet;
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "PortMon Collector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Waits until every agent has sent a snapshot or the time is up.
+     *
+     * @return true if all agents are connected
+     */
+    boolean awaitConnected(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (!fleet.isComplete()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+        return true;
+    }
+
+    private void loop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+                long wait = RECONNECT_MILLIS;
+                for (Agent agent : agents) {
+                    if (agent.channel == null) {
+                        if (agent.reconnectAt <= now) {
+                            connect(agent);
+                        } else {
+                            wait = Math.min(wait, agent.reconnectAt - now);
+                        }
+                    }
+                }
+                selector.select(Math.max(1, wait));
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    Agent agent = (Agent) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            agent.channel.finishConnect();
+                            key.interestOps(SelectionKey.OP_READ);
+                        } else if (key.isReadable()) {
+                            read(agent);
+                        }
+                    } catch (IOException | RuntimeException ex) {
+                        disconnect(agent, ex);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        } finally {
+            for (Agent agent : agents) {
+                disconnect(agent, null);
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    private void connect(Agent agent) {
+        try {
+            agent.channel = SocketChannel.open();
+            agent.channel.configureBlocking(false);
+            agent.channel.socket().setTcpNoDelay(true);
+            int ops = agent.channel.connect(agent.address) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+            agent.channel.register(selector, ops, agent);
+        } catch (IOException ex) {
+            disconnect(agent, ex);
+        }
+    }
+
+    private void disconnect(Agent agent, Exception cause) {
+        if (cause != null) {
+            logger.log(Level.FINE, agent.name + " disconnected", cause);
+        }
+        if (agent.channel != null) {
+            try {
+                agent.channel.close();
+            } catch (IOException ex) {
+                // Already gone
+            }
+            agent.channel = null;
+        }
+        agent.in.clear();
+        agent.snapshot = null;
+        agent.reconnectAt = System.currentTimeMillis() + RECONNECT_MILLIS;
+        publish(agent);
+    }
+
+    /**
+     * Reads what is available and handles every complete frame.
+     */
+    private void read(Agent agent) throws IOException {
+        if (agent.channel.read(agent.in) < 0) {
+            throw new IOException("Closed by agent");
+        }
+        ByteBuffer in = agent.in;
+        in.flip();
+        boolean updated = false;
+        while (in.remaining() >= SnapshotCodec.HEADER) {
+            int length = in.getInt(in.position());
+            if (length <= 0 || length > SnapshotCodec.MAX_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            ByteBuffer frame = in.duplicate();
+            frame.position(in.position() + 4);
+            frame.limit(in.position() + 4 + length);
+            in.position(in.position() + 4 + length);
+            updated |= handle(agent, frame.get(), frame);
+        }
+        in.compact();
+        if (!in.hasRemaining()) {
+            // A frame larger than the buffer
+            ByteBuffer grown = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            grown.put(in);
+            agent.in = grown;
+        }
+        if (updated) {
+            publish(agent);
+        }
+    }
+
+    /**
+     * @return true if the snapshot of the agent changed
+     */
+    private boolean handle(Agent agent, byte type, ByteBuffer frame) throws IOException {
+        switch (type) {
+            case SnapshotCodec.HELLO:
+                agent.name = SnapshotCodec.readHello(frame);
+                return false;
+            case SnapshotCodec.FULL:
+                agent.snapshot = SnapshotCodec.readFull(frame);
+                return true;
+            case SnapshotCodec.DELTA:
+                SnapshotDelta delta = SnapshotCodec.readDelta(frame);
+                if (agent.snapshot == null || agent.snapshot.sequence != delta.baseSequence) {
+                    throw new IOException("Delta for " + delta.baseSequence + " out of sequence");
+                }
+                agent.snapshot = delta.applyTo(agent.snapshot);
+                return true;
+            default:
+                throw new IOException("Unknown frame " + type);
+        }
+    }
+
+    private void publish(Agent agent) {
+        synchronized (this) {
+            fleet = fleet.with(agent.slot, agent.name, agent.snapshot);
+            notifyAll();
+        }
+    }
+}
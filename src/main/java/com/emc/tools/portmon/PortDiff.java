@@ -0,0 +1,138 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.Arrays;
+
+/**
+ * The difference between two socket snapshots. Rows are matched on
+ * protocol, local address and port, remote endpoint, pid and inode (see
+ * {@link PortSnapshot#sameKey(int, PortSnapshot, int)}).
+ */
+class PortDiff {
+
+    final PortSnapshot before;
+    final PortSnapshot after;
+
+    /**
+     * Rows of <code>after</code> not in <code>before</code>.
+     */
+    final int[] added;
+
+    /**
+     * Rows of <code>before</code> not in <code>after</code>.
+     */
+    final int[] removed;
+
+    /**
+     * Rows of <code>after</code> whose values differ from <code>before</code>.
+     */
+    final int[] changed;
+
+    /**
+     * For every row of <code>after</code> the matching row of
+     * <code>before</code>, or -1 for added rows.
+     */
+    final int[] afterToBefore;
+
+    private PortDiff(PortSnapshot before, PortSnapshot after,
+            int[] added, int[] removed, int[] changed, int[] afterToBefore) {
+        this.before = before;
+        this.after = after;
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+        this.afterToBefore = afterToBefore;
+    }
+
+    boolean isEmpty() {
+        return added.length == 0 && removed.length == 0 && changed.length == 0;
+    }
+
+    int size() {
+        return added.length + removed.length + changed.length;
+    }
+
+    /**
+     * @return for every row of <code>before</code> the matching row of
+     * <code>after</code>, or -1 for removed rows
+     */
+    int[] beforeToAfter() {
+        int[] beforeToAfter = new int[before.size()];
+        Arrays.fill(beforeToAfter, -1);
+        for (int row = 0; row < afterToBefore.length; row++) {
+            if (afterToBefore[row] >= 0) {
+                beforeToAfter[afterToBefore[row]] = row;
+            }
+        }
+        return beforeToAfter;
+    }
+
+    static PortDiff compute(PortSnapshot before, PortSnapshot after) {
+        int beforeSize = before.size();
+        int afterSize = after.size();
+        // Open addressing table of before rows + 1, 0 marks a free slot
+        int capacity = Integer.highestOneBit(Math.max(4, beforeSize * 2)) * 2;
+        int mask = capacity - 1;
+        int[] table = new int[capacity];
+        for (int row = 0; row < beforeSize; row++) {
+            int slot = mix(before.keyHash[row]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = row + 1;
+        }
+
+        boolean[] matched = new boolean[beforeSize];
+        int[] afterToBefore = new int[afterSize];
+        int[] added = new int[afterSize];
+        int addedCount = 0;
+        int[] changed = new int[afterSize];
+        int changedCount = 0;
+        for (int row = 0; row < afterSize; row++) {
+            int match = -1;
+            int slot = mix(after.keyHash[row]) & mask;
+            while (table[slot] != 0) {
+                int candidate = table[slot] - 1;
+                if (!matched[candidate] && before.sameKey(candidate, after, row)) {
+                    match = candidate;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            afterToBefore[row] = match;
+            if (match < 0) {
+                added[addedCount++] = row;
+            } else {
+                matched[match] = true;
+                if (!before.sameValues(match, after, row)) {
+                    changed[changedCount++] = row;
+                }
+            }
+        }
+
+        int removedCount = beforeSize - (afterSize - addedCount);
+        int[] removed = new int[removedCount];
+        for (int row = 0, i = 0; row < beforeSize && i < removedCount; row++) {
+            if (!matched[row]) {
+                removed[i++] = row;
+            }
+        }
+        return new PortDiff(before, after,
+                Arrays.copyOf(added, addedCount),
+                removed,
+                Arrays.copyOf(changed, changedCount),
+                afterToBefore);
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return "+" + added.length + " -" + removed.length + " ~" + changed.length;
+    }
+}
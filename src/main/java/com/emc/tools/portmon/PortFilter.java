@@ -0,0 +1,127 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.Arrays;
+
+/**
+ * Which sockets a scan should keep. Socket sources apply the filter while
+ * parsing, before a row is materialised.
+ */
+class PortFilter {
+
+    static final PortFilter ALL = new PortFilter(false, new int[0]);
+
+    final boolean listeningOnly;
+
+    /**
+     * Sorted local ports, all ports when empty.
+     */
+    final int[] ports;
+
+    PortFilter(boolean listeningOnly, int... ports) {
+        this.listeningOnly = listeningOnly;
+        this.ports = ports.clone();
+        Arrays.sort(this.ports);
+    }
+
+    /**
+     * Ignores port arguments that are not numbers, like
+     * {@link PortMon#getPorts(boolean, String...)} always has.
+     */
+    static PortFilter of(boolean listeningOnly, String... ports) {
+        int[] portInts = new int[ports.length];
+        int count = 0;
+        for (String port : ports) {
+            try {
+                portInts[count] = Integer.parseInt(port.trim());
+                count++;
+            } catch (NumberFormatException e) {
+            }
+        }
+        return new PortFilter(listeningOnly, Arrays.copyOf(portInts, count));
+    }
+
+    boolean acceptsState(String state) {
+        return !listeningOnly || PortMon.LISTENING.equals(state);
+    }
+
+    boolean acceptsPort(int port) {
+        return ports.length == 0 || Arrays.binarySearch(ports, port) >= 0;
+    }
+
+    boolean accepts(PortMon.Port port) {
+        return acceptsState(port.state) && acceptsPort(port.localPort);
+    }
+
+    /**
+     * @return a filter keeping every socket either filter keeps
+     */
+    PortFilter union(PortFilter other) {
+        int[] merged;
+        if (ports.length == 0 || other.ports.length == 0) {
+            merged = new int[0];
+        } else {
+            merged = new int[ports.length + other.ports.length];
+            int count = 0;
+            for (int i = 0, j = 0; i < ports.length || j < other.ports.length;) {
+                int port;
+                if (j == other.ports.length || (i < ports.length && ports[i] <= other.ports[j])) {
+                    port = ports[i++];
+                } else {
+                    port = other.ports[j++];
+                }
+                if (count == 0 || merged[count - 1] != port) {
+                    merged[count++] = port;
+                }
+            }
+            merged = Arrays.copyOf(merged, count);
+        }
+        return new PortFilter(listeningOnly && other.listeningOnly, merged);
+    }
+
+    /**
+     * @return true if this filter keeps every socket <code>other</code>
+     * keeps
+     */
+    boolean covers(PortFilter other) {
+        if (listeningOnly && !other.listeningOnly) {
+            return false;
+        }
+        if (ports.length == 0) {
+            return true;
+        }
+        if (other.ports.length == 0) {
+            return false;
+        }
+        for (int port : other.ports) {
+            if (!acceptsPort(port)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the rows of the snapshot this filter keeps, the snapshot
+     * itself if it keeps them all
+     */
+    PortSnapshot select(PortSnapshot snapshot) {
+        int[] rows = new int[snapshot.size()];
+        int count = 0;
+        for (int row = 0; row < rows.length; row++) {
+            if ((!listeningOnly || snapshot.state[row] == PortSnapshot.LISTENING)
+                    && acceptsPort(snapshot.localPort[row])) {
+                rows[count++] = row;
+            }
+        }
+        return count == rows.length ? snapshot : snapshot.select(Arrays.copyOf(rows, count));
+    }
+
+    @Override
+    public String toString() {
+        return (listeningOnly ? "LISTENING " : "") + Arrays.toString(ports);
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records every change of the socket table to disk, so past owners of a port
+ * can be looked up. The history is a directory of segment files named after
+ * the time of their first record. Each segment is memory-mapped and holds
+ * {@link SnapshotCodec} frames back to back: it starts with a FULL keyframe,
+ * continues with DELTA frames, and repeats the keyframe every
+ * {@value #KEYFRAME_DELTAS} deltas or {@value #KEYFRAME_MILLIS} ms. A frame
+ * is complete once its length is written, so readers stop at a zero length.
+ *
+ * <p>
+ * Next to every segment an index file lists the time and offset of its
+ * keyframes. A query only reads the segments that overlap its time range,
+ * and starts at the last keyframe before the range. Whole segments are
+ * deleted, oldest first, once the history is larger or older than allowed.
+ */
+class PortHistory implements PortWatcher.Listener {
+
+    private static final Logger logger = Logger.getLogger(PortHistory.class.getName());
+
+    private static final String SEGMENT = ".seg";
+    private static final String INDEX = ".idx";
+
+    /**
+     * Timestamp and offset of a keyframe.
+     */
+    private static final int INDEX_ENTRY = 12;
+
+    static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    static final int KEYFRAME_DELTAS = 100;
+    static final long KEYFRAME_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * One segment file and its keyframe index.
+     */
+    private static class Segment {
+
+        final Path file;
+        final Path index;
+        final long firstTimestamp;
+        long[] keyTimes = new long[16];
+        int[] keyOffsets = new int[16];
+        int keys;
+        /**
+         * Only for the segment being written.
+         */
+        MappedByteBuffer buffer;
+        FileChannel indexChannel;
+        int end;
+
+        Segment(Path file, long firstTimestamp) {
+            this.file = file;
+            this.index = file.resolveSibling(file.getFileName().toString().replace(SEGMENT, INDEX));
+            this.firstTimestamp = firstTimestamp;
+        }
+
+        void addKey(long timestamp, int offset) {
+            if (keys == keyTimes.length) {
+                keyTimes = Arrays.copyOf(keyTimes, keys * 2);
+                keyOffsets = Arrays.copyOf(keyOffsets, keys * 2);
+            }
+            keyTimes[keys] = timestamp;
+            keyOffsets[keys] = offset;
+            keys++;
+        }
+
+        /**
+         * @return the offset of the last keyframe at or before the time, 0
+         * if there is none
+         */
+        int seek(long timestamp) {
+            int low = 0;
+            int high = keys - 1;
+            int found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (keyTimes[mid] <= timestamp) {
+                    found = keyOffsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        void close() {
+            buffer = null;
+            if (indexChannel != null) {
+                try {
+                    indexChannel.close();
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, null, ex);
+                }
+                indexChannel = null;
+            }
+        }
+    }
+
+    /**
+     * A pid that had sockets on a port for a while.
+     */
+    static class Ownership {
+
+        final int pid;
+        final long from;
+        long to;
+
+        Ownership(int pid, long from, long to) {
+            this.pid = pid;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String toString() {
+            return pid + " " + from + "-" + to;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retainBytes;
+    private final long retainMillis;
+
+    /**
+     * Oldest first, guarded by this.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+    private long totalBytes;
+
+    /**
+     * Only used by the recording thread.
+     */
+    private final SnapshotCodec codec = new SnapshotCodec();
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY);
+    private PortSnapshot base;
+    private int deltas;
+    private long keyTimestamp;
+
+    /**
+     * @param segmentBytes size of a segment file
+     * @param retainBytes total size of the history, at least one segment is
+     * kept
+     * @param retainMillis age of the oldest record to keep
+     */
+    PortHistory(Path directory, int segmentBytes, long retainBytes, long retainMillis) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+    }
+
+    /**
+     * Reads the indexes of an existing history, writing continues after its
+     * last record.
+     */
+    synchronized PortHistory open() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long firstTimestamp;
+            try {
+                firstTimestamp = Long.parseLong(name.substring(0, name.length() - SEGMENT.length()));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            Segment segment = new Segment(file, firstTimestamp);
+            if (Files.exists(segment.index)) {
+                ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(segment.index));
+                while (index.remaining() >= INDEX_ENTRY) {
+                    segment.addKey(index.getLong(), index.getInt());
+                }
+            }
+            segments.add(segment);
+            totalBytes += Files.size(file);
+        }
+        return this;
+    }
+
+    synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    @Override
+    public void portsChanged(PortDiff diff) {
+        try {
+            record(diff.after);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Appends the changes since the previous call.
+     */
+    void record(PortSnapshot snapshot) throws IOException {
+        ByteBuffer frame = null;
+        boolean keyframe = base == null || deltas >= KEYFRAME_DELTAS
+                || snapshot.timestamp - keyTimestamp >= KEYFRAME_MILLIS;
+        if (!keyframe) {
+            PortDiff diff = PortDiff.compute(base, snapshot);
+            if (diff.isEmpty()) {
+                return;
+            }
+            SnapshotDelta delta = SnapshotDelta.of(diff);
+            frame = codec.delta(delta);
+            if (fits(frame)) {
+                base = delta.applyTo(base);
+                deltas++;
+            } else {
+                keyframe = true;
+            }
+        }
+        if (keyframe) {
+            frame = codec.full(snapshot);
+            if (!fits(frame)) {
+                roll(snapshot.timestamp, frame.remaining());
+            }
+            base = snapshot;
+            deltas = 0;
+            keyTimestamp = snapshot.timestamp;
+        }
+        append(frame, keyframe ? snapshot.timestamp : -1);
+        retain(snapshot.timestamp);
+    }
+
+    private synchronized boolean fits(ByteBuffer frame) throws IOException {
+        Segment current = writable();
+        return current != null && current.buffer.capacity() - current.end >= frame.remaining();
+    }
+
+    /**
+     * @return the last segment, mapped for writing, null if there is none
+     */
+    private Segment writable() throws IOException {
+        if (segments.isEmpty()) {
+            return null;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        if (last.buffer == null) {
+            reopen(last);
+        }
+        return last;
+    }
+
+    private synchronized void roll(long timestamp, int frameBytes) throws IOException {
+        Segment last = writable();
+        if (last != null) {
+            last.close();
+            // Names must grow with time
+            timestamp = Math.max(timestamp, last.firstTimestamp + 1);
+        }
+        Path file = directory.resolve(String.format("%016d%s", timestamp, SEGMENT));
+        Segment segment = new Segment(file, timestamp);
+        int size = Math.max(segmentBytes, frameBytes);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        segment.indexChannel = FileChannel.open(segment.index, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segments.add(segment);
+        totalBytes += size;
+    }
+
+    /**
+     * Writes the frame and, for a keyframe, its index entry. The length is
+     * written last, so concurrent readers never see half a frame.
+     */
+    private synchronized void append(ByteBuffer frame, long keyframeTimestamp) throws IOException {
+        Segment current = writable();
+        MappedByteBuffer out = current.buffer;
+        int offset = current.end;
+        int length = frame.getInt();
+        out.position(offset + 4);
+        out.put(frame);
+        out.putInt(offset, length);
+        current.end = out.position();
+        if (keyframeTimestamp >= 0) {
+            current.addKey(keyframeTimestamp, offset);
+            indexEntry.clear();
+            indexEntry.putLong(keyframeTimestamp).putInt(offset).flip();
+            while (indexEntry.hasRemaining()) {
+                current.indexChannel.write(indexEntry);
+            }
+        }
+    }
+
+    /**
+     * Maps the last segment of an existing history and finds its end.
+     */
+    private void reopen(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        segment.end = end(segment.buffer, segment.keys > 0 ? segment.keyOffsets[segment.keys - 1] : 0);
+        // Drop index entries of frames that never made it
+        while (segment.keys > 0 && segment.keyOffsets[segment.keys - 1] >= segment.end) {
+            segment.keys--;
+        }
+        try (FileChannel index = FileChannel.open(segment.index, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            index.truncate((long) segment.keys * INDEX_ENTRY);
+        }
+        segment.indexChannel = FileChannel.open(segment.index, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return the offset after the last complete frame
+     */
+    private static int end(ByteBuffer buffer, int from) {
+        int offset = from;
+        while (offset + SnapshotCodec.HEADER <= buffer.limit()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + 4 + length > buffer.limit()) {
+                break;
+            }
+            offset += 4 + length;
+        }
+        return offset;
+    }
+
+    /**
+     * Deletes the oldest segments while the history is too large, or while
+     * the next segment starts before the retention period.
+     */
+    private synchronized void retain(long now) {
+        while (segments.size() > 1
+                && (totalBytes > retainBytes || segments.get(1).firstTimestamp < now - retainMillis)) {
+            Segment oldest = segments.remove(0);
+            try {
+                totalBytes -= Files.size(oldest.file);
+                Files.delete(oldest.file);
+                Files.deleteIfExists(oldest.index);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Finds the processes that had sockets on a local port during a time
+     * range. The last recorded state is taken to last until the end of the
+     * range.
+     *
+     * @param from start of the range in milliseconds since the epoch
+     * @param to end of the range
+     * @return ownerships in the order they started
+     */
+    List<Ownership> owners(int port, long from, long to) throws IOException {
+        List<Segment> overlapping = new ArrayList<>();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                long segmentEnd = i + 1 < segments.size() ? segments.get(i + 1).firstTimestamp : Long.MAX_VALUE;
+                if (segmentEnd < from || segment.firstTimestamp > to) {
+                    continue;
+                }
+                overlapping.add(segment);
+                if (segment.buffer != null) {
+                    ByteBuffer buffer = segment.buffer.duplicate();
+                    buffer.limit(segment.end);
+                    buffers.add(buffer);
+                } else {
+                    buffers.add(null);
+                }
+            }
+        }
+        List<Ownership> result = new ArrayList<>();
+        Map<Integer, Ownership> open = new HashMap<>();
+        PortSnapshot state = null;
+        for (int i = 0; i < overlapping.size(); i++) {
+            Segment segment = overlapping.get(i);
+            ByteBuffer buffer = buffers.get(i);
+            if (buffer == null) {
+                buffer = map(segment.file);
+                buffer.limit(end(buffer, segment.keys > 0 ? segment.keyOffsets[segment.keys - 1] : 0));
+            }
+            int offset = segment.seek(from);
+            while (offset + SnapshotCodec.HEADER <= buffer.limit()) {
+                int length = buffer.getInt(offset);
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(offset + 5);
+                frame.limit(offset + 4 + length);
+                byte type = buffer.get(offset + 4);
+                offset += 4 + length;
+                PortSnapshot next;
+                if (type == SnapshotCodec.FULL) {
+                    next = SnapshotCodec.readFull(frame);
+                } else if (type == SnapshotCodec.DELTA && state != null) {
+                    SnapshotDelta delta = SnapshotCodec.readDelta(frame);
+                    if (delta.baseSequence != state.sequence) {
+                        continue;
+                    }
+                    next = delta.applyTo(state);
+                } else {
+                    continue;
+                }
+                if (state != null) {
+                    own(state, port, Math.max(from, state.timestamp), Math.min(to, next.timestamp), open, result);
+                }
+                state = next;
+                if (state.timestamp > to) {
+                    return result;
+                }
+            }
+        }
+        if (state != null) {
+            own(state, port, Math.max(from, state.timestamp), to, open, result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the owners of the port in one state, valid during [start, end].
+     */
+    private static void own(PortSnapshot state, int port, long start, long end,
+            Map<Integer, Ownership> open, List<Ownership> result) {
+        if (start > end) {
+            return;
+        }
+        Map<Integer, Ownership> owners = new HashMap<>();
+        for (int row = 0; row < state.size(); row++) {
+            if (state.localPort[row] != port || owners.containsKey(state.pid[row])) {
+                continue;
+            }
+            Ownership ownership = open.get(state.pid[row]);
+            if (ownership == null) {
+                ownership = new Ownership(state.pid[row], start, end);
+                result.add(ownership);
+            } else {
+                ownership.to = end;
+            }
+            owners.put(state.pid[row], ownership);
+        }
+        open.clear();
+        open.putAll(owners);
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
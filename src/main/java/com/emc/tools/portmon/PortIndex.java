@@ -0,0 +1,222 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.Arrays;
+
+/**
+ * Lookup tables from local port, pid and state to the rows of one
+ * {@link PortSnapshot}. Each index stores the rows grouped by key in one int
+ * array (compressed sparse rows), so any port, port range, pid or state
+ * resolves in O(1) to a slice of that array. The arrays are never changed
+ * once built, so an index shares the port table of the previous one when the
+ * number of sockets on each port is the same.
+ */
+class PortIndex {
+
+    private static final int PORTS = 65536;
+
+    /**
+     * Port counts of the index being built, all zero between builds.
+     */
+    private static final ThreadLocal<int[]> PORT_COUNTS = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[PORTS + 1];
+        }
+    };
+
+    private final PortSnapshot snapshot;
+
+    /**
+     * Rows sorted by local port; the rows of port p are
+     * portRows[portStart[p], portStart[p + 1]).
+     */
+    private final int[] portRows;
+    private final int[] portStart;
+
+    private final int[] stateRows;
+    private final int[] stateStart;
+
+    /**
+     * Open addressing table of distinct pids, pidSlot holds the group index
+     * + 1 of the pid in the same slot.
+     */
+    private final int[] pidKeys;
+    private final int[] pidSlot;
+    private final int[] pidRows;
+    private final int[] pidStart;
+
+    PortIndex(PortSnapshot snapshot) {
+        this(snapshot, null);
+    }
+
+    /**
+     * @param previous an index whose port table is reused if it is the same,
+     * or null
+     */
+    PortIndex(PortSnapshot snapshot, PortIndex previous) {
+        this.snapshot = snapshot;
+        int size = snapshot.size();
+
+        int[] counts = PORT_COUNTS.get();
+        int[] ports = snapshot.localPort;
+        for (int row = 0; row < size; row++) {
+            counts[ports[row] + 1]++;
+        }
+        for (int port = 1; port <= PORTS; port++) {
+            counts[port] += counts[port - 1];
+        }
+        portStart = previous != null && Arrays.equals(counts, previous.portStart)
+                ? previous.portStart : counts.clone();
+        portRows = new int[size];
+        for (int row = 0; row < size; row++) {
+            portRows[counts[ports[row]]++] = row;
+        }
+        Arrays.fill(counts, 0);
+
+        stateStart = new int[PortSnapshot.STATES.length + 1];
+        stateRows = new int[size];
+        int[] states = new int[size];
+        for (int row = 0; row < size; row++) {
+            states[row] = snapshot.state[row];
+        }
+        group(states, size, stateStart, stateRows);
+
+        // Number the distinct pids, then group the rows by that number
+        int capacity = Integer.highestOneBit(Math.max(4, size * 2)) * 2;
+        pidKeys = new int[capacity];
+        pidSlot = new int[capacity];
+        int[] pidGroup = new int[size];
+        int groups = 0;
+        for (int row = 0; row < size; row++) {
+            int pid = snapshot.pid[row];
+            int slot = pidSlotOf(pid);
+            if (pidSlot[slot] == 0) {
+                pidKeys[slot] = pid;
+                pidSlot[slot] = ++groups;
+            }
+            pidGroup[row] = pidSlot[slot] - 1;
+        }
+        pidStart = new int[groups + 1];
+        pidRows = new int[size];
+        group(pidGroup, size, pidStart, pidRows);
+    }
+
+    /**
+     * Counting sort of rows by key. keys must be in [0, start.length - 1).
+     */
+    private static void group(int[] keys, int size, int[] start, int[] rows) {
+        for (int row = 0; row < size; row++) {
+            start[keys[row] + 1]++;
+        }
+        for (int key = 1; key < start.length; key++) {
+            start[key] += start[key - 1];
+        }
+        int[] next = Arrays.copyOf(start, start.length - 1);
+        for (int row = 0; row < size; row++) {
+            rows[next[keys[row]]++] = row;
+        }
+    }
+
+    private int pidSlotOf(int pid) {
+        int mask = pidKeys.length - 1;
+        int slot = (pid * 0x9E3779B9 >>> 16) & mask;
+        while (pidSlot[slot] != 0 && pidKeys[slot] != pid) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    PortSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the number of rows with a local port in [from, to]
+     */
+    int countPorts(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(PORTS - 1, to);
+        return from > to ? 0 : portStart[to + 1] - portStart[from];
+    }
+
+    /**
+     * @return the rows with a local port in [from, to], in port order
+     */
+    int[] ports(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(PORTS - 1, to);
+        if (from > to) {
+            return new int[0];
+        }
+        return Arrays.copyOfRange(portRows, portStart[from], portStart[to + 1]);
+    }
+
+    int[] port(int port) {
+        return ports(port, port);
+    }
+
+    int countPid(int pid) {
+        int slot = pidSlotOf(pid);
+        if (pidSlot[slot] == 0) {
+            return 0;
+        }
+        int group = pidSlot[slot] - 1;
+        return pidStart[group + 1] - pidStart[group];
+    }
+
+    /**
+     * @return the distinct pids, in no particular order
+     */
+    int[] pids() {
+        int[] pids = new int[pidStart.length - 1];
+        for (int slot = 0; slot < pidKeys.length; slot++) {
+            if (pidSlot[slot] != 0) {
+                pids[pidSlot[slot] - 1] = pidKeys[slot];
+            }
+        }
+        return pids;
+    }
+
+    int[] pid(int pid) {
+        int slot = pidSlotOf(pid);
+        if (pidSlot[slot] == 0) {
+            return new int[0];
+        }
+        int group = pidSlot[slot] - 1;
+        return Arrays.copyOfRange(pidRows, pidStart[group], pidStart[group + 1]);
+    }
+
+    int countState(int state) {
+        return stateStart[state + 1] - stateStart[state];
+    }
+
+    /**
+     * @param state an index into {@link PortSnapshot#STATES}
+     */
+    int[] state(int state) {
+        return Arrays.copyOfRange(stateRows, stateStart[state], stateStart[state + 1]);
+    }
+
+    /**
+     * @return the distinct pids owning sockets on a local port in [from, to]
+     */
+    int[] pidsOfPorts(int from, int to) {
+        int[] rows = ports(from, to);
+        int[] pids = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            pids[i] = snapshot.pid[rows[i]];
+        }
+        Arrays.sort(pids);
+        int distinct = 0;
+        for (int i = 0; i < pids.length; i++) {
+            if (i == 0 || pids[i] != pids[i - 1]) {
+                pids[distinct++] = pids[i];
+            }
+        }
+        return Arrays.copyOf(pids, distinct);
+    }
+}
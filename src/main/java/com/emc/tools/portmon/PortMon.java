@@ -4,13 +4,28 @@
  */
 package com.emc.tools.portmon;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,139 +35,440 @@ import java.util.logging.Logger;
  */
 public class PortMon {
     
-    private static final String LISTENING = "LISTENING";
+    static final String LISTENING = "LISTENING";
 
-    private static final Logger logger = Logger.getLogger(PortMon.class.getName());
+    static final Logger logger = Logger.getLogger(PortMon.class.getName());
 
+    /**
+     * One socket. Ports, pids and addresses are kept as primitives; the
+     * address strings are only formatted when asked for.
+     */
     static class Port {
 
-        String raw;
-        String localHost;
-        String localPort;
-        String pid;
+        String protocol;
+        long localAddressHi;
+        long localAddressLo;
+        int localPort;
+        long remoteAddressHi;
+        long remoteAddressLo;
+        int remotePort;
+        int pid;
         String state;
+        long inode;
+        /**
+         * File system path of a Unix domain socket, <code>@name</code> for
+         * the abstract namespace, null for unnamed and internet sockets.
+         */
+        String path;
+        /**
+         * Bytes waiting to be read and to be acknowledged by the peer. For a
+         * listener, connections waiting to be accepted and the backlog
+         * limit, 0 where the source does not tell.
+         */
+        int rxQueue;
+        int txQueue;
+        /**
+         * From tcp_info, only filled by the inet_diag source.
+         */
+        int rttMicros;
+        int retransmits;
+        long bytesAcked;
+
+        private String localHost;
+        private String remoteHost;
+
+        void setLocal(long addressHi, long addressLo, int port) {
+            localAddressHi = addressHi;
+            localAddressLo = addressLo;
+            localPort = port;
+            localHost = null;
+        }
+
+        void setRemote(long addressHi, long addressLo, int port) {
+            remoteAddressHi = addressHi;
+            remoteAddressLo = addressLo;
+            remotePort = port;
+            remoteHost = null;
+        }
+
+        String getLocalHost() {
+            if (localHost == null && "UNIX".equals(protocol)) {
+                localHost = path != null ? path : "*";
+            }
+            if (localHost == null) {
+                localHost = Addresses.format(localAddressHi, localAddressLo);
+            }
+            return localHost;
+        }
+
+        String getRemoteHost() {
+            if (remoteHost == null) {
+                remoteHost = Addresses.format(remoteAddressHi, remoteAddressLo);
+            }
+            return remoteHost;
+        }
+
+        Port copy() {
+            Port copy = new Port();
+            copy.copyFrom(this);
+            return copy;
+        }
+
+        void copyFrom(Port other) {
+            protocol = other.protocol;
+            setLocal(other.localAddressHi, other.localAddressLo, other.localPort);
+            setRemote(other.remoteAddressHi, other.remoteAddressLo, other.remotePort);
+            localHost = other.localHost;
+            remoteHost = other.remoteHost;
+            pid = other.pid;
+            state = other.state;
+            inode = other.inode;
+            path = other.path;
+            rxQueue = other.rxQueue;
+            txQueue = other.txQueue;
+            rttMicros = other.rttMicros;
+            retransmits = other.retransmits;
+            bytesAcked = other.bytesAcked;
+        }
+
+        /**
+         * Ports are identified by protocol, local and remote endpoint, pid
+         * and inode. Only Unix domain sockets need the inode, the others
+         * keep theirs for life or have none.
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Port)) {
+                return false;
+            }
+            Port other = (Port) obj;
+            return localPort == other.localPort
+                    && pid == other.pid
+                    && remotePort == other.remotePort
+                    && localAddressLo == other.localAddressLo
+                    && localAddressHi == other.localAddressHi
+                    && remoteAddressLo == other.remoteAddressLo
+                    && remoteAddressHi == other.remoteAddressHi
+                    && inode == other.inode
+                    && Objects.equals(protocol, other.protocol);
+        }
+
+        @Override
+        public int hashCode() {
+            long h = localPort;
+            h = h * 31 + pid;
+            h = h * 31 + remotePort;
+            h = h * 31 + localAddressLo;
+            h = h * 31 + localAddressHi;
+            h = h * 31 + remoteAddressLo;
+            h = h * 31 + remoteAddressHi;
+            h = h * 31 + inode;
+            return (int) (h ^ (h >>> 32)) * 31 + (protocol == null ? 0 : protocol.hashCode());
+        }
+
+        /**
+         * @return true if the non-key columns shown to the user are the same
+         */
+        boolean sameValues(Port other) {
+            return Objects.equals(state, other.state);
+        }
 
         @Override
         public String toString() {
-            return this.raw == null ? "" : this.raw;
+            return protocol + " " + getLocalHost() + ":" + localPort
+                    + " " + getRemoteHost() + ":" + remotePort
+                    + " " + state + " " + pid;
         }
     }
 
-    private static final List<String> netstatPrefix = new LinkedList<>(
-            Arrays.<String>asList(
-                    "cmd", "/C", "netstat", "-anop", "tcp", "|", "findstr"));
+    static final ProcessInfoCache processInfoCache = new ProcessInfoCache(4096, 30000);
 
-    private static final List<String> killPidPrefix = new LinkedList<>(
-            Arrays.<String>asList(
-                    "cmd", "/C", "taskkill", "/F", "/PID"));
+    private static final SocketSource socketSource = createSocketSource();
 
-    // tasklist /V /FO LIST /FI "PID eq 36588"
-    private static final List<String> pidInfoPrefix = new LinkedList<>(
-            Arrays.<String>asList(
-                    "cmd", "/C", "tasklist", "/V", "/FO", "LIST", "/FI"));
+    /**
+     * Picks the socket source named by the <code>portmon.source</code> system
+     * property (<code>proc</code>, <code>inetdiag</code> or <code>netstat</code>),
+     * defaulting to /proc/net when it is readable. For load tests
+     * <code>replay</code> plays back the recording in
+     * <code>portmon.replay</code> and <code>synthetic</code> makes up
+     * <code>portmon.synthetic.sockets</code> sockets with
+     * <code>portmon.synthetic.churn</code> new connections a second; both go
+     * <code>portmon.replaySpeed</code> times as fast as real time, or one
+     * step per scan at 0. <code>service</code> subscribes to the snapshot
+     * service of a local daemon on <code>portmon.service</code>.
+     */
+    private static SocketSource createSocketSource() {
+        String source = System.getProperty("portmon.source", "");
+        double speed = Double.parseDouble(System.getProperty("portmon.replaySpeed", "1"));
+        switch (source) {
+            case "replay":
+                return new ReplaySocketSource(Paths.get(System.getProperty("portmon.replay", "portmon.rec")),
+                        speed, Boolean.parseBoolean(System.getProperty("portmon.replayLoop", "true")));
+            case "synthetic":
+                return new SyntheticSocketSource(Integer.getInteger("portmon.synthetic.sockets", 100000),
+                        Integer.getInteger("portmon.synthetic.churn", 1000), speed,
+                        Long.getLong("portmon.synthetic.seed", 1));
+            case "service":
+                String service = System.getProperty("portmon.service", "");
+                return new ServiceSocketSource(service.isEmpty()
+                        ? new InetSocketAddress(InetAddress.getLoopbackAddress(), ServiceSocketSource.DEFAULT_PORT)
+                        : PortMonDaemon.Config.parseAddress(service), localSocketSource(""));
+            default:
+                return localSocketSource(source);
+        }
+    }
 
-    static List<Port> getPorts(boolean listeningOnly, String... ports) {
-        List<Port> portsList = new LinkedList<>();
-        List<Integer> portInts = new LinkedList<>();
-        for (String port : ports) {
-            try {
-                portInts.add(Integer.parseInt(port));
-            } catch (Exception e) {
-            }
+    private static SocketSource localSocketSource(String source) {
+        switch (source) {
+            case "netstat":
+                return new NetstatSocketSource();
+            case "proc":
+                return new ProcNetSocketSource();
+            case "inetdiag":
+                return new InetDiagSocketSource();
+            default:
+                return ProcNetSocketSource.isAvailable()
+                        ? new ProcNetSocketSource()
+                        : new NetstatSocketSource();
         }
-        List<String> netstat = new LinkedList<>(netstatPrefix);
-        if (portInts.size() > 0) {
-            for (Integer portInt : portInts) {
-                netstat.add("/C::" + portInt);
-            }
-        } else {
-            netstat.add("/R");
-            netstat.add(".*");
+    }
+
+    private static final AtomicLong snapshotSequence = new AtomicLong();
+
+    /**
+     * Durations of all scans of this process.
+     */
+    static final ScanHistogram scanDurations = new ScanHistogram();
+
+    static final ScanStats scanStats = new ScanStats().register();
+
+    /**
+     * Scans the socket table for all watchers of this process.
+     */
+    static final ScanPipeline pipeline = new ScanPipeline();
+
+    /**
+     * Scans the sockets into a columnar snapshot.
+     */
+    static PortSnapshot snapshot(boolean listeningOnly, String... ports) {
+        return snapshot(PortFilter.of(listeningOnly, ports), new PortSnapshot.Builder());
+    }
+
+    static PortSnapshot snapshot(PortFilter filter, PortSnapshot.Builder builder) {
+        ScanStats.Sample sample = ScanStats.begin();
+        long allocated = ScanStats.allocatedBytes();
+        long timestamp = System.currentTimeMillis();
+        long start = System.nanoTime();
+        try {
+            socketSource.scan(filter, builder);
+        } catch (IOException ex) {
+            scanStats.failed(ex);
+            logger.log(Level.SEVERE, null, ex);
         }
-        ProcessBuilder netstatProcessBuilder = new ProcessBuilder(netstat);
-        BufferedReader br = null;
+        long nanos = System.nanoTime() - start;
+        scanDurations.observe(nanos);
+        scanStats.scanned(sample, nanos, builder.size(),
+                allocated < 0 ? -1 : ScanStats.allocatedBytes() - allocated);
+        return builder.build(snapshotSequence.incrementAndGet(), timestamp, nanos);
+    }
+
+    static List<Port> getPorts(boolean listeningOnly, String... ports) {
+        final List<Port> portsList = new ArrayList<>();
         try {
-            final Process netstatProcess = netstatProcessBuilder.start();
-            InputStream inputStream = netstatProcess.getInputStream();
-            br = new BufferedReader(new InputStreamReader(inputStream));
-            String raw;
-
-            while ((raw = br.readLine()) != null) {
-                Port p = new Port();
-                p.raw = raw;
-                String[] parts = raw.split("\\s+");
-                if (parts.length == 6) {
-                    if (!listeningOnly || LISTENING.equals(parts[4])) {
-                        String[] hostAndPort = parts[2].split(":");
-                        p.localHost = hostAndPort[0];
-                        p.localPort = hostAndPort[1];
-                        p.state = parts[4];
-                        p.pid = parts[5];
-                        portsList.add(p);
-                    }
+            socketSource.scan(PortFilter.of(listeningOnly, ports), new PortSink() {
+                @Override
+                public void accept(Port port) {
+                    portsList.add(port.copy());
                 }
-            }
-            netstatProcess.waitFor();
-        } catch (IOException | InterruptedException ex) {
+            });
+        } catch (IOException ex) {
             logger.log(Level.SEVERE, null, ex);
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException ex) {
-                }
-            }
         }
-
         return portsList;
     }
 
 
-    static void killProcess(String pidString) {
-        List<String> killPid = new LinkedList<>(killPidPrefix);
-        killPid.add(pidString.trim());
-        ProcessBuilder killPidProcessBuilder = new ProcessBuilder(killPid);
+    /**
+     * Kills one process and waits until its sockets are released, see
+     * {@link ProcessKiller} to kill many at once.
+     */
+    static ProcessKiller.Outcome killProcess(String pidString) {
+        return new ProcessKiller().killPids(Integer.parseInt(pidString.trim())).get(0);
+    }
+
+    /**
+     * Blocks until the process is looked up, see {@link #processInfoCache}
+     * for lookups off the calling thread.
+     */
+    static String processInfo(String pidString) {
+        return processInfoCache.get(Integer.parseInt(pidString.trim())).details;
+    }
+
+    private static void collect(String agents, PortQuery query) throws InterruptedException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String agent : agents.split(",")) {
+            addresses.add(PortMonDaemon.Config.parseAddress(agent.trim()));
+        }
+        PortCollector collector = new PortCollector(addresses);
         try {
-            Process killPidProcess = killPidProcessBuilder.start();
-            killPidProcess.waitFor();
-        } catch (IOException | InterruptedException ex) {
+            collector.start();
+        } catch (IOException ex) {
             logger.log(Level.SEVERE, null, ex);
+            return;
+        }
+        if (!collector.awaitConnected(5, TimeUnit.SECONDS)) {
+            logger.log(Level.WARNING, "Not all agents answered");
+        }
+        FleetSnapshot fleet = collector.fleet().select(query);
+        collector.stop();
+        for (int slot = 0; slot < fleet.hosts(); slot++) {
+            PortSnapshot snapshot = fleet.snapshot(slot);
+            if (snapshot == null) {
+                continue;
+            }
+            for (int row = 0; row < snapshot.size(); row++) {
+                System.out.println(fleet.host(slot)
+                        + " " + snapshot.protocol(row)
+                        + " " + snapshot.localHost(row) + ":" + snapshot.localPort[row]
+                        + " " + snapshot.state(row)
+                        + " " + snapshot.pid[row]);
+            }
         }
     }
-    
-    static String processInfo(String pidString) {
-        List<String> pidInfo = new LinkedList<>(pidInfoPrefix);
-        pidInfo.add("PID eq " + pidString.trim());
-        ProcessBuilder pidInfoProcessBuilder = new ProcessBuilder(pidInfo);
-        StringBuilder info = new StringBuilder();
-        BufferedReader br = null;
+
+    private static void history(Path directory, int port, long from, long to) {
+        List<PortHistory.Ownership> owners;
         try {
-            final Process pidInfoProcess = pidInfoProcessBuilder.start();
-            InputStream inputStream = pidInfoProcess.getInputStream();
-            br = new BufferedReader(new InputStreamReader(inputStream));
-            String raw;
+            PortHistory history = new PortHistory(directory, PortHistory.SEGMENT_BYTES, Long.MAX_VALUE, Long.MAX_VALUE);
+            owners = history.open().owners(port, from, Math.min(to, System.currentTimeMillis()));
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (PortHistory.Ownership owner : owners) {
+            System.out.println(owner.pid + " " + format.format(new Date(owner.from))
+                    + " - " + format.format(new Date(owner.to)));
+        }
+    }
 
-            while ((raw = br.readLine()) != null) {
-                info.append(raw+"\n");
-            }
-            pidInfoProcess.waitFor();
-        } catch (IOException | InterruptedException ex) {
+    /**
+     * Counts the connections of the ports by state and remote subnet while
+     * the table is read, without keeping the sockets.
+     */
+    private static void group(String... ports) {
+        ConnectionGroups.Collector collector = new ConnectionGroups.Collector(
+                ConnectionGroups.IPV4_PREFIX, ConnectionGroups.IPV6_PREFIX);
+        try {
+            socketSource.scan(PortFilter.of(false, ports), collector);
+        } catch (IOException ex) {
             logger.log(Level.SEVERE, null, ex);
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException ex) {
+            return;
+        }
+        ConnectionGroups groups = collector.build();
+        for (int group = 0; group < groups.size(); group++) {
+            System.out.println(groups.localPort(group)
+                    + " " + groups.state(group)
+                    + " " + groups.remote(group)
+                    + " " + groups.count(group));
+        }
+    }
+
+    /**
+     * @param time <code>HH:mm[:ss]</code> today or
+     * <code>yyyy-MM-ddTHH:mm[:ss]</code>, local time
+     */
+    private static long parseTime(String time) {
+        LocalDateTime dateTime = time.indexOf('T') < 0
+                ? LocalDate.now().atTime(LocalTime.parse(time))
+                : LocalDateTime.parse(time);
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (Arrays.asList(args).contains("--daemon")) {
+            PortMonDaemon.main(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--kill")) {
+            // --kill port... frees the ports
+            PortFilter ports = PortFilter.of(false, Arrays.copyOfRange(args, 1, args.length));
+            for (ProcessKiller.Outcome outcome : new ProcessKiller().killPorts(ports.ports)) {
+                System.out.println(outcome);
+            }
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--collect")) {
+            // --collect host:port,host:port [query] asks a fleet of agents
+            collect(args[1], PortQuery.parse(Arrays.copyOfRange(args, 2, args.length)));
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--history")) {
+            // --history dir port [from [to]] tells who owned a port
+            history(Paths.get(args[1]), Integer.parseInt(args[2]),
+                    args.length > 3 ? parseTime(args[3]) : 0,
+                    args.length > 4 ? parseTime(args[4]) : System.currentTimeMillis());
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--record")) {
+            // --record file [interval [count]] records the socket table for replay
+            record(Paths.get(args[1]), args.length > 2 ? PortMonDaemon.Config.parseMillis(args[2]) : 1000,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 0);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--group")) {
+            // --group [port...] counts connections by state and remote subnet
+            group(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // [--state S] [--pid N] [--process NAME] [--proto P] [--json|--csv|--table|--binary] [query]
+        query(args);
+    }
+
+    /**
+     * Records every socket, a snapshot every interval, until count snapshots
+     * are recorded or forever when count is 0. See {@link ReplaySocketSource}.
+     */
+    private static void record(Path file, long intervalMillis, int count) throws InterruptedException {
+        PortSnapshot.Builder builder = new PortSnapshot.Builder();
+        try (ReplaySocketSource.Recorder recorder = new ReplaySocketSource.Recorder(file)) {
+            for (int i = 0; count == 0 || i < count; i++) {
+                if (i > 0) {
+                    Thread.sleep(intervalMillis);
                 }
+                PortSnapshot snapshot = snapshot(PortFilter.ALL, builder);
+                recorder.record(snapshot);
+                logger.log(Level.INFO, "Recorded {0}", snapshot);
             }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
         }
-        return info.toString();
     }
 
-    public static void main(String[] args) {
-        List<Port> ports = getPorts(true, args);
-        for (Port port : ports) {
-            System.out.println(port.pid);
+    /**
+     * Writes the matching sockets to stdout while the source is scanned, see
+     * {@link QueryCommand}.
+     */
+    private static void query(String... args) {
+        QueryCommand command;
+        try {
+            command = QueryCommand.parse(args);
+        } catch (IllegalArgumentException ex) {
+            logger.log(Level.SEVERE, ex.getMessage());
+            return;
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        try {
+            command.start(out);
+            socketSource.scan(command.sourceFilter(), command);
+            command.finish();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        } catch (UncheckedIOException ex) {
+            // stdout was closed by the reader, like head
         }
     }
 }
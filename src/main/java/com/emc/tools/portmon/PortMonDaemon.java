@@ -0,0 +1,424 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless port monitor. Scans the socket table on a schedule and keeps the
+ * latest snapshot in memory, so any number of consumers can read it without
+ * starting a scan of their own.
+ */
+class PortMonDaemon {
+
+    private static final Logger logger = Logger.getLogger(PortMonDaemon.class.getName());
+
+    static class Config {
+
+        long intervalMillis = 5000;
+        /**
+         * Fixed rate polls on a fixed grid; fixed delay waits the interval
+         * after the end of every scan.
+         */
+        boolean fixedRate = false;
+        /**
+         * A random delay of up to this many milliseconds is added to every
+         * poll, so a fleet of daemons does not scan in lock step.
+         */
+        long jitterMillis = 0;
+        /**
+         * Adaptive polls start at the minimum interval after a change and
+         * back off to the interval while nothing changes.
+         */
+        boolean adaptive = false;
+        long minIntervalMillis = 250;
+        /**
+         * Where to serve metrics, null for nowhere. Only listening sockets
+         * are counted unless <code>--all</code> is given too.
+         */
+        InetSocketAddress metricsAddress;
+        /**
+         * Where to serve snapshots to collectors, null for nowhere. The
+         * snapshot service for local windows and tools is an agent on the
+         * loopback interface, see {@link ServiceSocketSource}.
+         */
+        InetSocketAddress agentAddress;
+        /**
+         * Where to record the history of the socket table, null for nowhere.
+         */
+        Path historyDirectory;
+        long historyRetainBytes = 256L * 1024 * 1024;
+        long historyRetainMillis = 7L * 24 * 60 * 60 * 1000;
+        /**
+         * Alerting rules, see {@link PortRules}, null for none.
+         */
+        Path rulesFile;
+        boolean listeningOnly = true;
+        String[] ports = new String[0];
+
+        /**
+         * Parses <code>--interval 5s --fixed-rate|--fixed-delay|--adaptive
+         * --min-interval 250ms --jitter 500ms --metrics [host:]port --agent
+         * [host:]port --service --history dir --retain-size 256m --retain-age 7d --rules
+         * file --all [port ...]</code>. <code>--all</code> scans sockets in
+         * every state, which the metrics need to count them by state.
+         */
+        static Config parse(String... args) {
+            Config config = new Config();
+            List<String> ports = new LinkedList<>();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--daemon":
+                        break;
+                    case "--interval":
+                        config.intervalMillis = parseMillis(value(args, ++i));
+                        break;
+                    case "--jitter":
+                        config.jitterMillis = parseMillis(value(args, ++i));
+                        break;
+                    case "--fixed-rate":
+                        config.fixedRate = true;
+                        break;
+                    case "--fixed-delay":
+                        config.fixedRate = false;
+                        break;
+                    case "--adaptive":
+                        config.adaptive = true;
+                        break;
+                    case "--min-interval":
+                        config.minIntervalMillis = parseMillis(value(args, ++i));
+                        break;
+                    case "--metrics":
+                        config.metricsAddress = parseAddress(value(args, ++i));
+                        break;
+                    case "--agent":
+                        config.agentAddress = parseAddress(value(args, ++i));
+                        break;
+                    case "--service":
+                        config.agentAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                ServiceSocketSource.DEFAULT_PORT);
+                        config.listeningOnly = false;
+                        break;
+                    case "--history":
+                        config.historyDirectory = Paths.get(value(args, ++i));
+                        break;
+                    case "--retain-size":
+                        config.historyRetainBytes = parseBytes(value(args, ++i));
+                        break;
+                    case "--retain-age":
+                        config.historyRetainMillis = parseMillis(value(args, ++i));
+                        break;
+                    case "--rules":
+                        config.rulesFile = Paths.get(value(args, ++i));
+                        break;
+                    case "--all":
+                        config.listeningOnly = false;
+                        break;
+                    default:
+                        ports.add(args[i]);
+                }
+            }
+            if (config.intervalMillis <= 0) {
+                throw new IllegalArgumentException("Interval must be positive: " + config.intervalMillis);
+            }
+            config.ports = ports.toArray(new String[ports.size()]);
+            return config;
+        }
+
+        /**
+         * @return <code>args[i]</code>, the value of the option before it
+         * @throws IllegalArgumentException if the option is the last
+         * argument
+         */
+        private static String value(String[] args, int i) {
+            if (i == args.length) {
+                throw new IllegalArgumentException("Missing value of " + args[i - 1]);
+            }
+            return args[i];
+        }
+
+        /**
+         * @param address <code>port</code> for all interfaces or
+         * <code>host:port</code>
+         */
+        static InetSocketAddress parseAddress(String address) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                return new InetSocketAddress(Integer.parseInt(address));
+            }
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
+
+        /**
+         * @param duration e.g. <code>250ms</code>, <code>5s</code>,
+         * <code>1m</code>, <code>2h</code>, <code>7d</code> or a number of
+         * seconds
+         */
+        static long parseMillis(String duration) {
+            duration = duration.trim();
+            if (duration.endsWith("d")) {
+                return Long.parseLong(duration.substring(0, duration.length() - 1)) * 24 * 3600000;
+            }
+            if (duration.endsWith("h")) {
+                return Long.parseLong(duration.substring(0, duration.length() - 1)) * 3600000;
+            }
+            if (duration.endsWith("ms")) {
+                return Long.parseLong(duration.substring(0, duration.length() - 2));
+            }
+            if (duration.endsWith("s")) {
+                return Long.parseLong(duration.substring(0, duration.length() - 1)) * 1000;
+            }
+            if (duration.endsWith("m")) {
+                return Long.parseLong(duration.substring(0, duration.length() - 1)) * 60000;
+            }
+            return Long.parseLong(duration) * 1000;
+        }
+
+        /**
+         * @param size e.g. <code>64k</code>, <code>256m</code>,
+         * <code>1g</code> or a number of bytes
+         */
+        static long parseBytes(String size) {
+            size = size.trim().toLowerCase();
+            int shift = 0;
+            switch (size.charAt(size.length() - 1)) {
+                case 'k':
+                    shift = 10;
+                    break;
+                case 'm':
+                    shift = 20;
+                    break;
+                case 'g':
+                    shift = 30;
+                    break;
+                default:
+                    return Long.parseLong(size);
+            }
+            return Long.parseLong(size.substring(0, size.length() - 1)) << shift;
+        }
+    }
+
+    private final Config config;
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile PortSnapshot latest = PortSnapshot.EMPTY;
+
+    private final List<PortWatcher.Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final PortFilter filter;
+
+    private final PortSnapshot.Builder builder = new PortSnapshot.Builder();
+
+    private long nextNominalNanos;
+
+    /**
+     * Polls instead of the scheduler in adaptive mode.
+     */
+    private final PortWatcher watcher;
+
+    private final Runnable scan = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                scan();
+            } catch (RuntimeException ex) {
+                logger.log(Level.SEVERE, null, ex);
+            }
+            if (!scheduler.isShutdown()) {
+                scheduleNext();
+            }
+        }
+    };
+
+    PortMonDaemon(Config config) {
+        this.config = config;
+        this.filter = PortFilter.of(config.listeningOnly, config.ports);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PortMon Scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (config.adaptive) {
+            watcher = new PortWatcher(filter, config.minIntervalMillis, config.intervalMillis);
+            watcher.addListener(new PortWatcher.Listener() {
+                @Override
+                public void portsChanged(PortDiff diff) {
+                    latest = diff.after;
+                    logger.log(Level.INFO, "Snapshot {0} ({1})", new Object[]{diff.after, diff});
+                    changed(diff);
+                }
+            });
+        } else {
+            watcher = null;
+        }
+    }
+
+    void start() {
+        if (watcher != null) {
+            watcher.start();
+            return;
+        }
+        nextNominalNanos = System.nanoTime();
+        scheduler.execute(scan);
+    }
+
+    void stop() {
+        if (watcher != null) {
+            watcher.shutdown();
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Listeners are called on the scanning thread after every change.
+     */
+    void addListener(PortWatcher.Listener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * @return the result of the most recent scan, never null
+     */
+    PortSnapshot latest() {
+        return latest;
+    }
+
+    /**
+     * @return what every scan keeps
+     */
+    PortFilter filter() {
+        return filter;
+    }
+
+    private void scan() {
+        PortSnapshot snapshot = PortMon.snapshot(filter, builder);
+        PortDiff diff = PortDiff.compute(latest, snapshot);
+        latest = snapshot;
+        logger.log(diff.isEmpty() ? Level.FINE : Level.INFO, "Snapshot {0} ({1})", new Object[]{snapshot, diff});
+        if (!diff.isEmpty()) {
+            changed(diff);
+        }
+    }
+
+    private void changed(PortDiff diff) {
+        for (PortWatcher.Listener l : listeners) {
+            l.portsChanged(diff);
+        }
+    }
+
+    private void scheduleNext() {
+        long interval = TimeUnit.MILLISECONDS.toNanos(config.intervalMillis);
+        long now = System.nanoTime();
+        long delay;
+        if (config.fixedRate) {
+            // Skip the ticks missed by a slow scan instead of bursting
+            do {
+                nextNominalNanos += interval;
+            } while (nextNominalNanos - now < 0);
+            delay = nextNominalNanos - now;
+        } else {
+            delay = interval;
+        }
+        if (config.jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(TimeUnit.MILLISECONDS.toNanos(config.jitterMillis) + 1);
+        }
+        scheduler.schedule(scan, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            return "localhost";
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Config config = Config.parse(args);
+        final PortRules rules;
+        try {
+            rules = config.rulesFile == null ? null : PortRules.load(config.rulesFile);
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.log(Level.SEVERE, null, ex);
+            return;
+        }
+        if (rules != null) {
+            // Scan what the rules count
+            config.listeningOnly &= !rules.needsAllStates();
+            if (config.ports.length > 0) {
+                List<String> ports = new LinkedList<>(Arrays.asList(config.ports));
+                for (int port : rules.ports()) {
+                    ports.add(Integer.toString(port));
+                }
+                config.ports = ports.toArray(new String[ports.size()]);
+            }
+        }
+        final PortMonDaemon daemon = new PortMonDaemon(config);
+        final MetricsExporter exporter = new MetricsExporter(daemon);
+        final PortAgent agent = config.agentAddress == null ? null
+                : new PortAgent(hostName() + ":" + config.agentAddress.getPort());
+        final PortHistory history = config.historyDirectory == null ? null
+                : new PortHistory(config.historyDirectory, PortHistory.SEGMENT_BYTES,
+                        config.historyRetainBytes, config.historyRetainMillis);
+        try {
+            if (history != null) {
+                daemon.addListener(history.open());
+            }
+            if (config.metricsAddress != null) {
+                exporter.start(config.metricsAddress);
+            }
+            if (agent != null) {
+                daemon.addListener(agent);
+                agent.start(config.agentAddress);
+            }
+            if (rules != null) {
+                daemon.addListener(rules);
+                rules.start();
+                logger.log(Level.INFO, "{0} rules from {1}", new Object[]{rules.size(), config.rulesFile});
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                exporter.stop();
+                if (agent != null) {
+                    agent.stop();
+                }
+                daemon.stop();
+                if (rules != null) {
+                    rules.stop();
+                }
+                if (history != null) {
+                    history.close();
+                }
+            }
+        }, "PortMon Shutdown"));
+        daemon.start();
+        Thread.currentThread().join();
+    }
+}
@@ -8,33 +8,43 @@ import java.awt.Font;
 import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.EventListener;
 import java.util.EventObject;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JTable;
 import javax.swing.JTextArea;
+import javax.swing.JTree;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.Timer;
+import javax.swing.UIManager;
 import javax.swing.event.CellEditorListener;
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.TableCellEditor;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableColumn;
 import javax.swing.table.TableColumnModel;
-import javax.swing.table.TableRowSorter;
+import javax.swing.tree.TreePath;
 
 /**
  * A simple Port monitor.
@@ -51,11 +61,98 @@ public class PortMonGUI extends javax.swing.JFrame {
 
     private static final Font MONOSPACE_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
 
-    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    /**
+     * Shortest time between scans while the table is changing.
+     */
+    private static final long MIN_REFRESH_MILLIS = 250;
+
+    /**
+     * Samples of the queue columns kept per socket, a minute at the default
+     * rate of <code>portmon.sampleMillis</code>.
+     */
+    private static final int SAMPLES = 60;
+
+    /**
+     * Shortest time between two table updates, bursts of refreshes and
+     * re-sorts are merged into one update per frame.
+     */
+    private static final int FRAME_MILLIS = 1000 / Math.max(1, Integer.getInteger("portmon.maxFps", 20));
+
+    private final PortWatcher watcher;
+
+    private final SocketSampler sampler;
+
+    private volatile PortQuery query = PortQuery.ALL;
+
+    /**
+     * Result of the previous refresh, written by the watcher thread.
+     */
+    private volatile PortSnapshot lastSnapshot = PortSnapshot.EMPTY;
+
+    private final ConnectionTreeModel connectionTreeModel = new ConnectionTreeModel();
+
+    private final JTree connectionTree = new JTree(connectionTreeModel);
 
-    private final BlockingQueue<String> refreshQueue = new LinkedBlockingDeque<>();
+    /**
+     * True while the tree of connection groups is shown instead of the
+     * table, groups are only computed then.
+     */
+    private volatile boolean grouped;
+
+    /**
+     * Column the table is sorted by and its direction, changed on the event
+     * dispatch thread, read by the threads that sort.
+     */
+    private volatile int sortColumn = SnapshotSorter.BY_PORT;
+    private volatile boolean sortAscending = true;
+
+    /**
+     * Rows sorted off the event dispatch thread, waiting for the next frame.
+     */
+    private final AtomicReference<SortedRows> pendingRows = new AtomicReference<>();
 
-    private final Timer autoRefreshTimer;
+    private final Timer frameTimer;
+
+    /**
+     * Only used on the event dispatch thread.
+     */
+    private long lastFrame;
+
+    /**
+     * The rows of a snapshot in table order.
+     */
+    private static class SortedRows {
+
+        final PortSnapshot snapshot;
+        final int[] order;
+        final int[] positions;
+        final int sortColumn;
+        final boolean sortAscending;
+
+        /**
+         * From the rows sorted before, null to change all rows.
+         */
+        RowEvents events;
+
+        SortedRows(PortSnapshot snapshot, int[] order, int sortColumn, boolean sortAscending) {
+            this.snapshot = snapshot;
+            this.order = order;
+            this.positions = PortsTableModel.positions(order);
+            this.sortColumn = sortColumn;
+            this.sortAscending = sortAscending;
+        }
+    }
+
+    /**
+     * The rows sorted last, which the events of the next scan start from.
+     */
+    private volatile SortedRows lastRows;
+
+    /**
+     * Pids looked up since the table was last told, see
+     * {@link PortsTableModel#processInfoLoaded(int)}.
+     */
+    private final Set<Integer> loadedPids = new HashSet<>();
 
     static class TableButton extends JButton implements TableCellRenderer, TableCellEditor {
 
@@ -138,28 +235,307 @@ public class PortMonGUI extends javax.swing.JFrame {
         public void tableButtonClicked(int row, int col);
     }
 
-    private static class PortsTableModel extends AbstractTableModel {
+    /**
+     * Text of numbers, made once per value so that painting a cell does not
+     * allocate. Direct mapped, a value that collides replaces the older one.
+     * Only used on the event dispatch thread.
+     */
+    static class NumberText {
+
+        private final String suffix;
+        private final long[] values;
+        private final String[] texts;
+
+        /**
+         * @param size a power of two
+         */
+        NumberText(String suffix, int size) {
+            this.suffix = suffix;
+            this.values = new long[size];
+            this.texts = new String[size];
+        }
+
+        String of(long value) {
+            int slot = (int) (value ^ (value >>> 32)) & (texts.length - 1);
+            String text = texts[slot];
+            if (text == null || values[slot] != value) {
+                text = value + suffix;
+                values[slot] = value;
+                texts[slot] = text;
+            }
+            return text;
+        }
+    }
+
+    /**
+     * The table events that take the view from the rows of one snapshot to
+     * the rows of the next in the same sort, built off the event dispatch
+     * thread from the diff of the scan. Rows of removed sockets and of
+     * sockets that moved are deleted bottom up, then new and moved ones are
+     * inserted top down, so every event is in the row numbers the view has
+     * at that point. Rows that stayed and changed are updated last.
+     */
+    static class RowEvents {
+
+        /**
+         * Beyond this many ranges one data changed event is cheaper than the
+         * row events, each of which shifts the selection.
+         */
+        static final int MAX_RANGES = 64;
+
+        final PortSnapshot before;
+        final int[] beforeOrder;
+
+        /**
+         * First and last view rows of each range, deleted ranges from the
+         * bottom.
+         */
+        private final int[] deleted;
+        private final int[] inserted;
+        private final int[] updated;
+
+        private RowEvents(PortSnapshot before, int[] beforeOrder, int[] deleted, int[] inserted, int[] updated) {
+            this.before = before;
+            this.beforeOrder = beforeOrder;
+            this.deleted = deleted;
+            this.inserted = inserted;
+            this.updated = updated;
+        }
+
+        /**
+         * @param beforeOrder the view order of <code>diff.before</code>
+         * @param afterPositions the view row of every row of
+         * <code>diff.after</code>, in the same sort
+         * @return null if there would be too many events
+         */
+        static RowEvents of(PortDiff diff, int[] beforeOrder, int[] afterOrder, int[] afterPositions) {
+            int[] beforeToAfter = diff.beforeToAfter();
+            boolean[] deleted = new boolean[beforeOrder.length];
+            boolean[] kept = new boolean[afterOrder.length];
+            int last = -1;
+            for (int row = 0; row < beforeOrder.length; row++) {
+                int after = beforeToAfter[beforeOrder[row]];
+                // Sockets that keep their relative order stay, others move
+                if (after >= 0 && afterPositions[after] > last) {
+                    last = afterPositions[after];
+                    kept[last] = true;
+                } else {
+                    deleted[row] = true;
+                }
+            }
+            boolean[] updated = new boolean[afterOrder.length];
+            for (int row : diff.changed) {
+                updated[afterPositions[row]] = kept[afterPositions[row]];
+            }
+            int[] deletedRanges = ranges(deleted, true);
+            int[] insertedRanges = ranges(kept, false);
+            int[] updatedRanges = ranges(updated, true);
+            if (deletedRanges == null || insertedRanges == null || updatedRanges == null
+                    || deletedRanges.length + insertedRanges.length + updatedRanges.length > MAX_RANGES * 2) {
+                return null;
+            }
+            // Deleted from the bottom
+            for (int i = 0, j = deletedRanges.length - 2; i < j; i += 2, j -= 2) {
+                int start = deletedRanges[i];
+                int end = deletedRanges[i + 1];
+                deletedRanges[i] = deletedRanges[j];
+                deletedRanges[i + 1] = deletedRanges[j + 1];
+                deletedRanges[j] = start;
+                deletedRanges[j + 1] = end;
+            }
+            return new RowEvents(diff.before, beforeOrder, deletedRanges, insertedRanges, updatedRanges);
+        }
+
+        /**
+         * @return the first and last row of the runs of <code>value</code>,
+         * null if there are more than {@link #MAX_RANGES}
+         */
+        private static int[] ranges(boolean[] rows, boolean value) {
+            int[] ranges = new int[MAX_RANGES * 2];
+            int count = 0;
+            for (int row = 0; row < rows.length; row++) {
+                if (rows[row] == value) {
+                    if (count == ranges.length) {
+                        return null;
+                    }
+                    ranges[count] = row;
+                    while (row + 1 < rows.length && rows[row + 1] == value) {
+                        row++;
+                    }
+                    ranges[count + 1] = row;
+                    count += 2;
+                }
+            }
+            return Arrays.copyOf(ranges, count);
+        }
+
+        void fire(PortsTableModel model) {
+            for (int i = 0; i < deleted.length; i += 2) {
+                model.fireTableRowsDeleted(deleted[i], deleted[i + 1]);
+            }
+            for (int i = 0; i < inserted.length; i += 2) {
+                model.fireTableRowsInserted(inserted[i], inserted[i + 1]);
+            }
+            for (int i = 0; i < updated.length; i += 2) {
+                model.fireTableRowsUpdated(updated[i], updated[i + 1]);
+            }
+        }
+    }
+
+    static class PortsTableModel extends AbstractTableModel {
+
+        private PortSnapshot snapshot = PortSnapshot.EMPTY;
+
+        /**
+         * View row to snapshot row, sorted off the event dispatch thread.
+         */
+        private int[] order = new int[0];
+
+        /**
+         * Snapshot row to view row.
+         */
+        private int[] positions = new int[0];
+
+        private final NumberText numbers = new NumberText("", 8192);
+        private final NumberText pids = new NumberText("  ", 4096);
+
+        /**
+         * Process names of the shown pids, direct mapped like
+         * {@link NumberText}, so painting does not box a pid to look it up.
+         * Cleared for every new snapshot and per pid when it is loaded.
+         */
+        private final int[] namePids = new int[4096];
+        private final String[] names = new String[4096];
 
-        private List<PortMon.Port> ports;
+        /**
+         * Supplies the queue columns, null to show the values of the
+         * snapshot.
+         */
+        private SocketSampler sampler;
 
-        PortsTableModel() {
-            ports = new LinkedList<>();
+        void setSampler(SocketSampler sampler) {
+            this.sampler = sampler;
         }
 
-        public void setPorts(List<PortMon.Port> ports) {
-            this.ports = ports;
+        /**
+         * Tells the view that the sampled columns changed.
+         */
+        void samplesUpdated() {
+            if (order.length > 0) {
+                for (int column = 5; column <= 8; column++) {
+                    fireTableChanged(new TableModelEvent(this, 0, order.length - 1, column));
+                }
+            }
+        }
 
-            fireTableDataChanged();
+        PortSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Shows the rows of a snapshot in the given order and tells the view
+         * that all rows changed.
+         */
+        void setRows(PortSnapshot snapshot, int[] order) {
+            setRows(snapshot, order, positions(order), null);
+        }
+
+        /**
+         * Shows the rows of a snapshot in the given order. When the events
+         * were built from the shown rows the view is only told which rows
+         * were deleted, inserted and updated, so a few changes in a large
+         * table cost little here and the selection follows its rows.
+         *
+         * @param positions the view row of every snapshot row
+         * @param events null to tell the view that all rows changed
+         */
+        void setRows(PortSnapshot snapshot, int[] order, int[] positions, RowEvents events) {
+            PortSnapshot before = this.snapshot;
+            int[] beforeOrder = this.order;
+            if (snapshot != before) {
+                Arrays.fill(names, null);
+            }
+            this.snapshot = snapshot;
+            this.order = order;
+            this.positions = positions;
+            if (events != null && events.before == before && events.beforeOrder == beforeOrder) {
+                events.fire(this);
+            } else if (snapshot == before && Arrays.equals(order, beforeOrder)) {
+                if (order.length > 0) {
+                    fireTableRowsUpdated(0, order.length - 1);
+                }
+            } else {
+                fireTableDataChanged();
+            }
+        }
+
+        /**
+         * @return the view row of every snapshot row
+         */
+        static int[] positions(int[] order) {
+            int[] positions = new int[order.length];
+            for (int row = 0; row < order.length; row++) {
+                positions[order[row]] = row;
+            }
+            return positions;
+        }
+
+        /**
+         * @return the snapshot row shown in a table row
+         */
+        int snapshotRow(int rowIndex) {
+            return order[rowIndex];
+        }
+
+        /**
+         * @return the table row of a snapshot row
+         */
+        int rowIndex(int snapshotRow) {
+            return positions[snapshotRow];
+        }
+
+        /**
+         * Names are looked up in the background, rows are updated once the
+         * lookup is done (see {@link #processInfoLoaded(int)}).
+         */
+        private String processName(int pid) {
+            if (pid <= 0) {
+                return "";
+            }
+            int slot = pid & (names.length - 1);
+            if (names[slot] == null || namePids[slot] != pid) {
+                ProcessInfo info = PortMon.processInfoCache.getIfPresent(pid);
+                names[slot] = info == null ? "" : info.name;
+                namePids[slot] = pid;
+            }
+            return names[slot];
+        }
+
+        /**
+         * Refreshes the rows of a pid whose process info was loaded.
+         */
+        public void processInfoLoaded(int pid) {
+            names[pid & (names.length - 1)] = null;
+            for (int row : snapshot.index().pid(pid)) {
+                fireTableRowsUpdated(positions[row], positions[row]);
+            }
+        }
+
+        /**
+         * @return the socket shown in a table row
+         */
+        PortMon.Port getPort(int rowIndex) {
+            return snapshot.port(order[rowIndex]);
         }
 
         @Override
         public int getRowCount() {
-            return ports.size();
+            return order.length;
         }
 
         @Override
         public int getColumnCount() {
-            return 6;
+            return 11;
         }
 
         @Override
@@ -172,10 +548,20 @@ public class PortMonGUI extends javax.swing.JFrame {
                 case 2:
                     return "PID";
                 case 3:
-                    return "State";
+                    return "Process";
                 case 4:
-                    return "Info";
+                    return "State";
                 case 5:
+                    return "Recv-Q";
+                case 6:
+                    return "Send-Q";
+                case 7:
+                    return "RTT \u00b5s";
+                case 8:
+                    return "Retrans";
+                case 9:
+                    return "Info";
+                case 10:
                     return "Actions";
             }
             return null;
@@ -184,42 +570,45 @@ public class PortMonGUI extends javax.swing.JFrame {
         @Override
         public Class getColumnClass(int column) {
             switch (column) {
-                case 0:
-                    return String.class;
-                case 1:
-                    return Integer.class;
-                case 2:
-                    return String.class;
-                case 3:
-                    return String.class;
-                case 4:
-                    return PortMon.Port.class;
-                case 5:
+                case 9:
+                case 10:
                     return PortMon.Port.class;
             }
-            return Object.class;
+            // Numbers are shown as cached text, the table sorts on the snapshot
+            return String.class;
         }
 
         @Override
         public boolean isCellEditable(int rowIndex, int columnIndex) {
-            return  columnIndex == 4 ||  columnIndex == 3;
+            return  columnIndex == 9 ||  columnIndex == 10;
         }
 
         @Override
         public Object getValueAt(int rowIndex, int columnIndex) {
+            int row = order[rowIndex];
             switch (columnIndex) {
                 case 0:
-                    return ports.get(rowIndex).localHost;
+                    return snapshot.localHost(row);
                 case 1:
-                    return Integer.valueOf(ports.get(rowIndex).localPort);
+                    return numbers.of(snapshot.localPort[row]);
                 case 2:
-                    return ports.get(rowIndex).pid + "  ";
+                    return pids.of(snapshot.pid[row]);
                 case 3:
-                    return ports.get(rowIndex).state;
+                    return processName(snapshot.pid[row]);
                 case 4:
-                    return ports.get(rowIndex);
+                    return snapshot.state(row);
                 case 5:
-                    return ports.get(rowIndex);
+                    return numbers.of(sampler == null ? snapshot.rxQueue[row] : sampler.peakRxQueue(snapshot, row));
+                case 6:
+                    return numbers.of(sampler == null ? snapshot.txQueue[row] : sampler.peakTxQueue(snapshot, row));
+                case 7:
+                    return numbers.of(sampler == null ? snapshot.rttMicros[row] : sampler.averageRttMicros(snapshot, row));
+                case 8:
+                    return numbers.of(sampler == null ? 0 : sampler.retransmits(snapshot, row));
+                case 9:
+                    return null;
+                case 10:
+                    return null;
             }
             return null;
         }
@@ -238,29 +627,52 @@ public class PortMonGUI extends javax.swing.JFrame {
 
         int autoRefreshDelaySeconds = (Integer) autoRefreshSecondsSpinner.getModel().getValue();
 
-        autoRefreshTimer = new Timer(autoRefreshDelaySeconds * 1000, new ActionListener() {
+        watcher = new PortWatcher(query.sourceFilter(listeningOnly.isSelected()),
+                MIN_REFRESH_MILLIS, autoRefreshDelaySeconds * 1000L);
+        watcher.addListener(new PortWatcher.Listener() {
             @Override
-            public void actionPerformed(ActionEvent e) {
-                refresh();
+            public void portsChanged(PortDiff diff) {
+                show(query.apply(diff.after));
             }
         });
+        sampler = new SocketSampler(query.sourceFilter(listeningOnly.isSelected()),
+                Long.getLong("portmon.sampleMillis", 1000), SAMPLES);
+        portsTableModel.setSampler(sampler);
+
+        // Rows are laid out on demand, only for the visible part of the tree
+        connectionTree.setLargeModel(true);
+        connectionTree.setRowHeight(20);
+        connectionTree.setRootVisible(false);
+        connectionTree.setShowsRootHandles(true);
 
         TableButton infoActionButton = new TableButton(ICON_INFO);
         infoActionButton.addTableButtonListener(new TableButtonListener() {
             @Override
             public void tableButtonClicked(int row, int col) {
-                Object value = portsTableModel.getValueAt(row, col);
-                if (value instanceof PortMon.Port) {
-                    PortMon.Port port = (PortMon.Port) value;
-                    JTextArea info = new JTextArea(PortMon.processInfo(port.pid).substring(1)
-                            ,12
-                            ,40);
-                    info.setFont(MONOSPACE_FONT);
-                    JOptionPane.showMessageDialog(PortMonGUI.this,
-                            info,
-                            "Portmon - Process Info",
-                            JOptionPane.PLAIN_MESSAGE);
-                }
+                PortMon.Port port = portsTableModel.getPort(portsTable.convertRowIndexToModel(row));
+                final Future<ProcessInfo> lookup = PortMon.processInfoCache.lookup(port.pid);
+                new SwingWorker<ProcessInfo, Void>() {
+                    @Override
+                    protected ProcessInfo doInBackground() throws Exception {
+                        return lookup.get();
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            JTextArea info = new JTextArea(get().details
+                                    ,12
+                                    ,40);
+                            info.setFont(MONOSPACE_FONT);
+                            JOptionPane.showMessageDialog(PortMonGUI.this,
+                                    info,
+                                    "Portmon - Process Info",
+                                    JOptionPane.PLAIN_MESSAGE);
+                        } catch (InterruptedException | ExecutionException ex) {
+                            logger.log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }.execute();
             }
         });
         infoActionButton.setToolTipText("Show process info");
@@ -269,29 +681,41 @@ public class PortMonGUI extends javax.swing.JFrame {
         killActionButton.addTableButtonListener(new TableButtonListener() {
             @Override
             public void tableButtonClicked(int row, int col) {
-                Object value = portsTableModel.getValueAt(row, col);
-                if (value instanceof PortMon.Port) {
-                    PortMon.Port port = (PortMon.Port) value;
-                    int answer = JOptionPane.showConfirmDialog(PortMonGUI.this,
-                            "Kill process : "
-                                    + port.pid
-                                    + " (owner of port : "
-                                    + port.localPort
-                                    + ") ?",
-                            "Portmon - Kill Port Owner",
-                            JOptionPane.YES_NO_OPTION);
-                    if (answer == JOptionPane.YES_OPTION) {
-                        PortMon.killProcess(port.pid);
-                        portsTableModel.setPorts(Collections.EMPTY_LIST);
-                        Timer timer = new Timer(500, new ActionListener() {
-                            @Override
-                            public void actionPerformed(ActionEvent e) {
-                                refresh();
+                PortMon.Port port = portsTableModel.getPort(portsTable.convertRowIndexToModel(row));
+                int answer = JOptionPane.showConfirmDialog(PortMonGUI.this,
+                        "Kill process : "
+                                + port.pid
+                                + " (owner of port : "
+                                + port.localPort
+                                + ") ?",
+                        "Portmon - Kill Port Owner",
+                        JOptionPane.YES_NO_OPTION);
+                if (answer == JOptionPane.YES_OPTION) {
+                    final int pid = port.pid;
+                    final int localPort = port.localPort;
+                    new SwingWorker<ProcessKiller.Outcome, Void>() {
+                        @Override
+                        protected ProcessKiller.Outcome doInBackground() throws Exception {
+                            // Done once the port is released, not after a fixed delay
+                            return new ProcessKiller().kill(new PortFilter(false, localPort), pid).get(0);
+                        }
+
+                        @Override
+                        protected void done() {
+                            try {
+                                ProcessKiller.Outcome outcome = get();
+                                if (outcome.result == ProcessKiller.Result.FAILED) {
+                                    JOptionPane.showMessageDialog(PortMonGUI.this,
+                                            "Could not kill process : " + outcome,
+                                            "Portmon - Kill Port Owner",
+                                            JOptionPane.WARNING_MESSAGE);
+                                }
+                            } catch (InterruptedException | ExecutionException ex) {
+                                logger.log(Level.SEVERE, null, ex);
                             }
-                        });
-                        timer.setRepeats(false);
-                        timer.start();
-                    }
+                            refresh();
+                        }
+                    }.execute();
                 }
             }
         });
@@ -314,93 +738,319 @@ public class PortMonGUI extends javax.swing.JFrame {
         tableColumn.setCellRenderer(rightAlignedTableCellRenderer);
 
         tableColumn = columnModel.getColumn(3);
+        tableColumn.setPreferredWidth(160);
+
+        tableColumn = columnModel.getColumn(4);
         tableColumn.setWidth(160);
         tableColumn.setMaxWidth(160);
 
-        tableColumn = columnModel.getColumn(4);
+        for (int column = 5; column <= 8; column++) {
+            tableColumn = columnModel.getColumn(column);
+            tableColumn.setPreferredWidth(70);
+            tableColumn.setMaxWidth(90);
+            tableColumn.setCellRenderer(rightAlignedTableCellRenderer);
+        }
+
+        tableColumn = columnModel.getColumn(9);
         tableColumn.setWidth(20);
         tableColumn.setMaxWidth(20);
         tableColumn.setCellEditor(infoActionButton);
-        tableColumn.setCellRenderer(infoActionButton);
+        tableColumn.setCellRenderer(iconRenderer(ICON_INFO));
 
-        tableColumn = columnModel.getColumn(5);
+        tableColumn = columnModel.getColumn(10);
         tableColumn.setWidth(20);
         tableColumn.setMaxWidth(20);
         tableColumn.setCellEditor(killActionButton);
-        tableColumn.setCellRenderer(killActionButton);
-
-        portsTable.setRowSorter(new TableRowSorter(portsTableModel));
-        refresh();
-        portsTable.getRowSorter().toggleSortOrder(1);
-
-        new Thread(new Runnable() {
+        tableColumn.setCellRenderer(iconRenderer(ICON_TERMINATE));
 
+        PortMon.processInfoCache.addListener(new ProcessInfoCache.Listener() {
             @Override
-            public void run() {
-                try {
-                    while (true) {
-                        final String ports = refreshQueue.take();
-                        // Coalesce
-                        int i = 0;
-                        String nextPorts = refreshQueue.peek();
-                        while (nextPorts != null && ports.equals(nextPorts)) {
-                            refreshQueue.remove();
-                            i++;
-                            nextPorts = refreshQueue.peek();
-                        }
-                        if (i > 0) {
-                            logger.log(Level.FINE, "Coalesced:" + (i));
+            public void processInfoLoaded(ProcessInfo info) {
+                boolean first;
+                synchronized (loadedPids) {
+                    first = loadedPids.isEmpty();
+                    loadedPids.add(info.pid);
+                }
+                // One table update per batch of lookups
+                if (first) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            Integer[] pids;
+                            synchronized (loadedPids) {
+                                pids = loadedPids.toArray(new Integer[loadedPids.size()]);
+                                loadedPids.clear();
+                            }
+                            for (int pid : pids) {
+                                portsTableModel.processInfoLoaded(pid);
+                            }
+                            if (sortColumn == SnapshotSorter.BY_PROCESS) {
+                                resort();
+                            }
                         }
-                        refresh(ports);
-                        // 5 seconds gap between refresh
-                        Thread.sleep(5000);
+                    });
+                }
+            }
+        });
+
+        Timer statusTimer = new Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                statusLabel.setText(PortMon.scanStats.toString());
+                if (autoRefreshCheckBox.isSelected()) {
+                    portsTableModel.samplesUpdated();
+                    if (sortColumn >= SnapshotSorter.BY_RX_QUEUE) {
+                        resort();
                     }
-                } catch (InterruptedException ex) {
-                    logger.log(Level.SEVERE, null, ex);
                 }
             }
+        });
+        statusTimer.start();
 
-        }, "Refresh Queue").start();
+        frameTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applyRows();
+            }
+        });
+        frameTimer.setRepeats(false);
+
+        // Sorted off the event dispatch thread, see SnapshotSorter
+        final TableCellRenderer headerRenderer = portsTable.getTableHeader().getDefaultRenderer();
+        portsTable.getTableHeader().setDefaultRenderer(new TableCellRenderer() {
+            @Override
+            public Component getTableCellRendererComponent(JTable table, Object value,
+                    boolean isSelected, boolean hasFocus, int row, int column) {
+                Component component = headerRenderer.getTableCellRendererComponent(
+                        table, value, isSelected, hasFocus, row, column);
+                if (component instanceof JLabel) {
+                    ((JLabel) component).setIcon(table.convertColumnIndexToModel(column) != sortColumn ? null
+                            : UIManager.getIcon(sortAscending ? "Table.ascendingSortIcon" : "Table.descendingSortIcon"));
+                }
+                return component;
+            }
+        });
+        portsTable.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = portsTable.convertColumnIndexToModel(portsTable.columnAtPoint(e.getPoint()));
+                if (column < 0 || column > SnapshotSorter.BY_RETRANSMITS) {
+                    return;
+                }
+                sortAscending = column != sortColumn || !sortAscending;
+                sortColumn = column;
+                portsTable.getTableHeader().repaint();
+                resort();
+            }
+        });
+        refresh();
     }
 
+    private static TableCellRenderer iconRenderer(ImageIcon icon) {
+        DefaultTableCellRenderer renderer = new DefaultTableCellRenderer();
+        renderer.setIcon(icon);
+        renderer.setHorizontalAlignment(SwingConstants.CENTER);
+        return renderer;
+    }
+
+    /**
+     * Scans again with the query typed by the user.
+     */
     private void refresh() {
         try {
-            refreshQueue.put(portsComboBox.getSelectedItem().toString().trim());
-        } catch (InterruptedException ex) {
-            logger.log(Level.SEVERE, null, ex);
+            query = PortQuery.parse(portsComboBox.getSelectedItem().toString().trim());
+        } catch (IllegalArgumentException ex) {
+            logger.log(Level.WARNING, ex.getMessage());
+            return;
         }
+        watcher.setFilter(query.sourceFilter(listeningOnly.isSelected()));
+        sampler.setFilter(query.sourceFilter(listeningOnly.isSelected()));
     }
 
-    private void refresh(String ports) {
-        ports = ports.trim();
-        refreshImpl(ports.split(","));
+    /**
+     * Shows the result of a scan, called on the watcher thread.
+     */
+    private void show(PortSnapshot snapshot) {
+        final PortDiff diff = PortDiff.compute(lastSnapshot, snapshot);
+        if (diff.isEmpty()) {
+            // The table keeps showing the previous, equal snapshot
+            return;
+        }
+        lastSnapshot = snapshot;
+        logger.log(Level.FINE, "Refresh diff: {0}", diff);
+        SortedRows previous = lastRows;
+        SortedRows rows = sort(snapshot);
+        if (previous != null && previous.snapshot == diff.before
+                && previous.sortColumn == rows.sortColumn && previous.sortAscending == rows.sortAscending) {
+            rows.events = RowEvents.of(diff, previous.order, rows.order, rows.positions);
+        }
+        lastRows = rows;
+        post(rows);
+        if (grouped) {
+            showGroups(ConnectionGroups.of(snapshot));
+        }
     }
 
-    private void refreshImpl(String... ports) {
-        if (refreshing.compareAndSet(false, true)) {
-            try {
-                final List<PortMon.Port> portObjects = PortMon.getPorts(listeningOnly.isSelected(), ports);
-                SwingUtilities.invokeLater(new Runnable() {
+    private SortedRows sort(PortSnapshot snapshot) {
+        int column = sortColumn;
+        boolean ascending = sortAscending;
+        return new SortedRows(snapshot, SnapshotSorter.sort(snapshot, column, ascending, sampler), column, ascending);
+    }
 
-                    @Override
-                    public void run() {
-                        // Update GUI
-                        portsTableModel.setPorts(portObjects);
+    /**
+     * Sorts the shown rows again in the background, after the sort column or
+     * the sorted values changed.
+     */
+    private void resort() {
+        final PortSnapshot snapshot = lastSnapshot;
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                SortedRows rows = sort(snapshot);
+                lastRows = rows;
+                post(rows);
+                return null;
+            }
+        }.execute();
+    }
+
+    /**
+     * Queues sorted rows for the next frame, replacing rows that were not
+     * shown yet unless they are of a later scan.
+     */
+    private void post(SortedRows rows) {
+        SortedRows previous;
+        do {
+            previous = pendingRows.get();
+            if (previous != null && previous.snapshot.sequence > rows.snapshot.sequence) {
+                return;
+            }
+        } while (!pendingRows.compareAndSet(previous, rows));
+        if (previous == null) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    long wait = lastFrame + FRAME_MILLIS - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        applyRows();
+                    } else {
+                        frameTimer.setInitialDelay((int) wait);
+                        frameTimer.restart();
                     }
-                });
-            } finally {
-                refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Shows the latest sorted rows and selects again the sockets that were
+     * selected.
+     */
+    private void applyRows() {
+        SortedRows rows = pendingRows.getAndSet(null);
+        if (rows == null) {
+            return;
+        }
+        lastFrame = System.currentTimeMillis();
+        PortSnapshot before = portsTableModel.getSnapshot();
+        if (rows.snapshot.sequence < before.sequence
+                || rows.sortColumn != sortColumn || rows.sortAscending != sortAscending) {
+            // Sorted before a later scan or a click on the header
+            return;
+        }
+        long start = System.nanoTime();
+        int[] selected = portsTable.getSelectedRows();
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = portsTableModel.snapshotRow(selected[i]);
+        }
+        portsTableModel.setRows(rows.snapshot, rows.order, rows.positions, rows.events);
+        if (rows.snapshot != before || portsTable.getSelectedRowCount() != selected.length) {
+            portsTable.clearSelection();
+            for (int row : selected) {
+                int after = find(before, row, rows.snapshot);
+                if (after >= 0) {
+                    int rowIndex = portsTableModel.rowIndex(after);
+                    portsTable.addRowSelectionInterval(rowIndex, rowIndex);
+                }
             }
         }
+        PortMon.scanStats.applied(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the row of <code>after</code> with the socket of a row of
+     * <code>before</code>, -1 if it is gone
+     */
+    private static int find(PortSnapshot before, int row, PortSnapshot after) {
+        for (int candidate : after.index().port(before.localPort[row])) {
+            if (after.sameKey(candidate, before, row)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Shows groups in the tree and expands again what was expanded.
+     */
+    private void showGroups(final ConnectionGroups groups) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                List<TreePath> expanded = new LinkedList<>();
+                Enumeration<TreePath> paths = connectionTree.getExpandedDescendants(
+                        new TreePath(connectionTreeModel.getRoot()));
+                while (paths != null && paths.hasMoreElements()) {
+                    expanded.add(paths.nextElement());
+                }
+                connectionTreeModel.setGroups(groups);
+                for (TreePath path : expanded) {
+                    path = connectionTreeModel.current(path);
+                    if (path != null) {
+                        connectionTree.expandPath(path);
+                    }
+                }
+            }
+        });
+    }
+
+    private void startStopGrouping() {
+        grouped = groupedCheckBox.isSelected();
+        if (grouped) {
+            final PortSnapshot snapshot = lastSnapshot;
+            new SwingWorker<ConnectionGroups, Void>() {
+                @Override
+                protected ConnectionGroups doInBackground() throws Exception {
+                    return ConnectionGroups.of(snapshot);
+                }
+
+                @Override
+                protected void done() {
+                    try {
+                        showGroups(get());
+                    } catch (InterruptedException | ExecutionException ex) {
+                        logger.log(Level.SEVERE, null, ex);
+                    }
+                }
+            }.execute();
+            portsScrollpane.setViewportView(connectionTree);
+        } else {
+            portsScrollpane.setViewportView(portsTable);
+        }
     }
 
     private void startStopAutoRefresh() {
         if (autoRefreshCheckBox.isSelected()) {
             refreshButton.setEnabled(false);
-            refresh();
-            autoRefreshTimer.start();
+            int autoRefreshDelaySeconds = (Integer) autoRefreshSecondsSpinner.getModel().getValue();
+            // Scans back off to this delay while nothing changes
+            watcher.setMaxInterval(autoRefreshDelaySeconds * 1000L);
+            watcher.start();
+            sampler.start();
         } else {
-            autoRefreshTimer.stop();
+            watcher.stop();
+            sampler.stop();
             refreshButton.setEnabled(true);
         }
     }
@@ -421,20 +1071,22 @@ public class PortMonGUI extends javax.swing.JFrame {
         autoRefreshCheckBox = new javax.swing.JCheckBox();
         autoRefreshSecondsSpinner = new javax.swing.JSpinner();
         secondsLabel = new javax.swing.JLabel();
+        groupedCheckBox = new javax.swing.JCheckBox();
         portsScrollpane = new javax.swing.JScrollPane();
         portsTable = new javax.swing.JTable();
+        statusLabel = new javax.swing.JLabel();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("Portmon");
         setName("portsMonFrame"); // NOI18N
-        setPreferredSize(new java.awt.Dimension(600, 400));
+        setPreferredSize(new java.awt.Dimension(800, 400));
 
         portsLabel.setText("Ports:");
 
         portsComboBox.setEditable(true);
         portsComboBox.setModel(new javax.swing.DefaultComboBoxModel(new String[] { " ", "2910,8080,8765" }));
         portsComboBox.setSelectedItem(" ");
-        portsComboBox.setToolTipText("Enter comma separated list of port numbers");
+        portsComboBox.setToolTipText("Enter comma separated ports, port ranges (8000-8999) or addresses (10.0.0.0/8)");
         portsComboBox.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
                 portsComboBoxActionPerformed(evt);
@@ -470,10 +1122,21 @@ public class PortMonGUI extends javax.swing.JFrame {
 
         secondsLabel.setText("seconds");
 
+        groupedCheckBox.setText("Group connections");
+        groupedCheckBox.setToolTipText("Count connections by local port, state and remote subnet");
+        groupedCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                groupedCheckBoxActionPerformed(evt);
+            }
+        });
+
         portsTable.setModel(this.portsTableModel);
         portsTable.setRowHeight(20);
         portsScrollpane.setViewportView(portsTable);
 
+        statusLabel.setText(" ");
+        statusLabel.setToolTipText("Last scan, see the ScanStats MBean for totals");
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
@@ -482,6 +1145,7 @@ public class PortMonGUI extends javax.swing.JFrame {
                 .addContainerGap()
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                     .addComponent(portsScrollpane, javax.swing.GroupLayout.DEFAULT_SIZE, 441, Short.MAX_VALUE)
+                    .addComponent(statusLabel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                     .addGroup(layout.createSequentialGroup()
                         .addComponent(portsLabel, javax.swing.GroupLayout.PREFERRED_SIZE, 37, javax.swing.GroupLayout.PREFERRED_SIZE)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
@@ -491,7 +1155,9 @@ public class PortMonGUI extends javax.swing.JFrame {
                                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                                 .addComponent(autoRefreshSecondsSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                                 .addGap(12, 12, 12)
-                                .addComponent(secondsLabel))
+                                .addComponent(secondsLabel)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                                .addComponent(groupedCheckBox))
                             .addGroup(layout.createSequentialGroup()
                                 .addComponent(portsComboBox, 0, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
@@ -514,9 +1180,12 @@ public class PortMonGUI extends javax.swing.JFrame {
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(autoRefreshSecondsSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                     .addComponent(secondsLabel)
-                    .addComponent(autoRefreshCheckBox))
+                    .addComponent(autoRefreshCheckBox)
+                    .addComponent(groupedCheckBox))
                 .addGap(10, 10, 10)
                 .addComponent(portsScrollpane, javax.swing.GroupLayout.DEFAULT_SIZE, 256, Short.MAX_VALUE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(statusLabel)
                 .addContainerGap())
         );
 
@@ -539,6 +1208,10 @@ public class PortMonGUI extends javax.swing.JFrame {
         refresh();
     }//GEN-LAST:event_listeningOnlyActionPerformed
 
+    private void groupedCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_groupedCheckBoxActionPerformed
+        startStopGrouping();
+    }//GEN-LAST:event_groupedCheckBoxActionPerformed
+
     /**
      * @param args the command line arguments
      */
@@ -575,6 +1248,7 @@ public class PortMonGUI extends javax.swing.JFrame {
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JCheckBox autoRefreshCheckBox;
     private javax.swing.JSpinner autoRefreshSecondsSpinner;
+    private javax.swing.JCheckBox groupedCheckBox;
     private javax.swing.JCheckBox listeningOnly;
     private javax.swing.JComboBox portsComboBox;
     private javax.swing.JLabel portsLabel;
@@ -582,5 +1256,6 @@ public class PortMonGUI extends javax.swing.JFrame {
     private javax.swing.JTable portsTable;
     private javax.swing.JButton refreshButton;
     private javax.swing.JLabel secondsLabel;
+    private javax.swing.JLabel statusLabel;
     // End of variables declaration//GEN-END:variables
 }
@@ -0,0 +1,232 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A filter typed by the user: comma separated ports (<code>8080</code>),
+ * port ranges (<code>8000-8999</code>) and local addresses or networks
+ * (<code>10.0.0.0/8</code>, <code>::1</code>). A socket matches when it
+ * matches any of the port terms, if there are any, and any of the address
+ * terms, if there are any. Queries are resolved against the
+ * {@link PortIndex} of a snapshot, not by scanning again.
+ */
+class PortQuery {
+
+    static final PortQuery ALL = new PortQuery(new int[0], new int[0], new ArrayList<Cidr>());
+
+    /**
+     * Inclusive port ranges, from[i] to to[i].
+     */
+    private final int[] from;
+    private final int[] to;
+
+    private final List<Cidr> networks;
+
+    private PortQuery(int[] from, int[] to, List<Cidr> networks) {
+        this.from = from;
+        this.to = to;
+        this.networks = networks;
+    }
+
+    /**
+     * @throws IllegalArgumentException for terms that are neither ports,
+     * port ranges nor addresses
+     */
+    static PortQuery parse(String... terms) {
+        List<int[]> ranges = new ArrayList<>();
+        List<Cidr> networks = new ArrayList<>();
+        for (String text : terms) {
+            for (String term : text.split("[,\\s]+")) {
+                if (term.isEmpty()) {
+                    continue;
+                }
+                int[] range = parseRange(term);
+                if (range != null) {
+                    ranges.add(range);
+                } else {
+                    networks.add(Cidr.parse(term));
+                }
+            }
+        }
+        int[] from = new int[ranges.size()];
+        int[] to = new int[ranges.size()];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = ranges.get(i)[0];
+            to[i] = ranges.get(i)[1];
+        }
+        return new PortQuery(from, to, networks);
+    }
+
+    private static int[] parseRange(String term) {
+        int dash = term.indexOf('-');
+        try {
+            if (dash < 0) {
+                int port = Integer.parseInt(term);
+                return new int[]{port, port};
+            }
+            return new int[]{
+                Integer.parseInt(term.substring(0, dash)),
+                Integer.parseInt(term.substring(dash + 1))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    boolean isAll() {
+        return from.length == 0 && networks.isEmpty();
+    }
+
+    /**
+     * The part of the query a socket source can apply while scanning: the
+     * ports of a query made of single ports only.
+     */
+    PortFilter sourceFilter(boolean listeningOnly) {
+        if (!networks.isEmpty()) {
+            return new PortFilter(listeningOnly);
+        }
+        int[] ports = new int[from.length];
+        for (int i = 0; i < from.length; i++) {
+            if (from[i] != to[i]) {
+                return new PortFilter(listeningOnly);
+            }
+            ports[i] = from[i];
+        }
+        return new PortFilter(listeningOnly, ports);
+    }
+
+    /**
+     * @return the matching rows of the snapshot, in ascending order
+     */
+    int[] rows(PortSnapshot snapshot) {
+        int size = snapshot.size();
+        int[] rows;
+        if (from.length == 0) {
+            rows = new int[size];
+            for (int row = 0; row < size; row++) {
+                rows[row] = row;
+            }
+        } else {
+            PortIndex index = snapshot.index();
+            boolean[] selected = new boolean[size];
+            int count = 0;
+            for (int i = 0; i < from.length; i++) {
+                for (int row : index.ports(from[i], to[i])) {
+                    if (!selected[row]) {
+                        selected[row] = true;
+                        count++;
+                    }
+                }
+            }
+            rows = new int[count];
+            for (int row = 0, i = 0; row < size; row++) {
+                if (selected[row]) {
+                    rows[i++] = row;
+                }
+            }
+        }
+        if (networks.isEmpty()) {
+            return rows;
+        }
+        int count = 0;
+        for (int row : rows) {
+            if (matchesNetwork(snapshot, row)) {
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * @return true if a single socket matches, for sockets that are not
+     * collected into a snapshot
+     */
+    boolean matches(PortMon.Port port) {
+        boolean portMatches = from.length == 0;
+        for (int i = 0; i < from.length && !portMatches; i++) {
+            portMatches = port.localPort >= from[i] && port.localPort <= to[i];
+        }
+        if (!portMatches) {
+            return false;
+        }
+        if (networks.isEmpty()) {
+            return true;
+        }
+        for (Cidr network : networks) {
+            if (network.contains(port.localAddressHi, port.localAddressLo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the matching rows as a snapshot of their own
+     */
+    PortSnapshot apply(PortSnapshot snapshot) {
+        return isAll() ? snapshot : snapshot.select(rows(snapshot));
+    }
+
+    private boolean matchesNetwork(PortSnapshot snapshot, int row) {
+        for (Cidr network : networks) {
+            if (network.contains(snapshot.localAddressHi[row], snapshot.localAddressLo[row])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An IPv4 or IPv6 network in the packed form of {@link Addresses}.
+     */
+    static class Cidr {
+
+        final long hi;
+        final long lo;
+        final long maskHi;
+        final long maskLo;
+
+        Cidr(long hi, long lo, int prefix) {
+            this.maskHi = prefix >= 64 ? -1L : prefix == 0 ? 0 : -1L << (64 - prefix);
+            this.maskLo = prefix <= 64 ? 0 : prefix >= 128 ? -1L : -1L << (128 - prefix);
+            this.hi = hi & maskHi;
+            this.lo = lo & maskLo;
+        }
+
+        /**
+         * @param text <code>address[/prefix]</code>
+         */
+        static Cidr parse(String text) {
+            int slash = text.indexOf('/');
+            String address = slash < 0 ? text : text.substring(0, slash);
+            byte[] bytes = address.getBytes(StandardCharsets.US_ASCII);
+            long[] parsed = new long[Addresses.SCRATCH];
+            if (!Addresses.parse(bytes, 0, bytes.length, parsed)) {
+                throw new IllegalArgumentException("Not a port, port range or address: " + text);
+            }
+            boolean ipv4 = Addresses.isIPv4(parsed[0], parsed[1]) && address.indexOf(':') < 0;
+            int prefix = 128;
+            if (slash >= 0) {
+                try {
+                    prefix = Integer.parseInt(text.substring(slash + 1)) + (ipv4 ? 96 : 0);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad prefix length: " + text);
+                }
+            }
+            if (prefix < 0 || prefix > 128) {
+                throw new IllegalArgumentException("Bad prefix length: " + text);
+            }
+            return new Cidr(parsed[0], parsed[1], prefix);
+        }
+
+        boolean contains(long addressHi, long addressLo) {
+            return (addressHi & maskHi) == hi && (addressLo & maskLo) == lo;
+        }
+    }
+}
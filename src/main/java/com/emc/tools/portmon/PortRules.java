@@ -0,0 +1,695 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Alerting rules of a {@link PortMonDaemon}, read from a file like
+ * <pre>
+ * # lines after a debounce use it, 10s before the first one
+ * debounce 30s
+ * notify log
+ * notify webhook https://alerts.example.com/portmon
+ * notify command /usr/local/bin/page-oncall --team infra
+ *
+ * listen 8765 process java     # must be LISTENING, only by java
+ * limit 8080 TIME_WAIT 500     # at most 500 sockets in TIME_WAIT
+ * owner 443 for 5s             # alert when another process takes over
+ * </pre>
+ * Rules are compiled into counters per local port, and each diff only
+ * touches the rules of the ports of its added, removed and changed rows, so
+ * evaluating does not grow with the socket table. A rule alerts once it has
+ * been violated for its debounce time and tells when it is resolved; alerts
+ * are sent on a thread of their own so a slow webhook never delays a scan.
+ * <p>
+ * The daemon has to see the sockets a rule counts, see
+ * {@link #needsAllStates()} and {@link #ports()}.
+ */
+class PortRules implements PortWatcher.Listener {
+
+    private static final Logger logger = Logger.getLogger(PortRules.class.getName());
+
+    static final long DEFAULT_DEBOUNCE_MILLIS = 10000;
+
+    private static final int COMMAND_TIMEOUT_SECONDS = 30;
+    private static final int WEBHOOK_TIMEOUT_MILLIS = 5000;
+
+    static final class Alert {
+
+        final String rule;
+        final int port;
+        final boolean firing;
+        final String message;
+        final long timestamp;
+
+        Alert(Rule rule, boolean firing, String message) {
+            this.rule = rule.text;
+            this.port = rule.port;
+            this.firing = firing;
+            this.message = message;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        String status() {
+            return firing ? "firing" : "resolved";
+        }
+
+        @Override
+        public String toString() {
+            return status() + " [" + rule + "] " + message;
+        }
+    }
+
+    static interface Notifier {
+
+        void send(Alert alert) throws IOException;
+    }
+
+    /**
+     * A condition on the sockets of one local port. The counters are updated
+     * row by row and only read under the lock of the rules.
+     */
+    abstract static class Rule {
+
+        final String text;
+        final int port;
+        final long debounceMillis;
+
+        long violatedSince = -1;
+        boolean firing;
+
+        Rule(String text, int port, long debounceMillis) {
+            this.text = text;
+            this.port = port;
+            this.debounceMillis = debounceMillis;
+        }
+
+        abstract void added(PortSnapshot snapshot, int row);
+
+        abstract void removed(PortSnapshot snapshot, int row);
+
+        abstract boolean violated();
+
+        abstract String describe();
+
+        /**
+         * Called after the alert was sent.
+         */
+        void fired() {
+        }
+
+        /**
+         * @return true if the rule counts sockets in other states than
+         * LISTENING
+         */
+        boolean needsAllStates() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the listening sockets of a port by pid.
+     */
+    abstract static class ListenerRule extends Rule {
+
+        final Map<Integer, Integer> listeners = new HashMap<>();
+
+        ListenerRule(String text, int port, long debounceMillis) {
+            super(text, port, debounceMillis);
+        }
+
+        @Override
+        void added(PortSnapshot snapshot, int row) {
+            if (snapshot.state[row] == PortSnapshot.LISTENING) {
+                Integer count = listeners.get(snapshot.pid[row]);
+                listeners.put(snapshot.pid[row], count == null ? 1 : count + 1);
+            }
+        }
+
+        @Override
+        void removed(PortSnapshot snapshot, int row) {
+            if (snapshot.state[row] == PortSnapshot.LISTENING) {
+                Integer count = listeners.get(snapshot.pid[row]);
+                if (count == null || count == 1) {
+                    listeners.remove(snapshot.pid[row]);
+                } else {
+                    listeners.put(snapshot.pid[row], count - 1);
+                }
+            }
+        }
+
+        String owners(Set<Integer> pids) {
+            StringBuilder text = new StringBuilder();
+            for (int pid : pids) {
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append("pid ").append(pid).append(" (").append(processName(pid)).append(')');
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * <code>listen PORT [process NAME]</code>: the port has a listener, and
+     * only processes of that name listen on it.
+     */
+    static final class ListenRule extends ListenerRule {
+
+        final String process;
+
+        /**
+         * Pids are looked up once while they listen.
+         */
+        private final Map<Integer, Boolean> matches = new HashMap<>();
+
+        ListenRule(String text, int port, String process, long debounceMillis) {
+            super(text, port, debounceMillis);
+            this.process = process;
+        }
+
+        @Override
+        void removed(PortSnapshot snapshot, int row) {
+            super.removed(snapshot, row);
+            if (!listeners.containsKey(snapshot.pid[row])) {
+                matches.remove(snapshot.pid[row]);
+            }
+        }
+
+        private boolean matches(int pid) {
+            Boolean match = matches.get(pid);
+            if (match == null) {
+                String name = processName(pid);
+                // Linux cuts the names in /proc/pid/stat to 15 characters
+                match = process.equalsIgnoreCase(name) || (name.length() == 15
+                        && process.regionMatches(true, 0, name, 0, 15));
+                matches.put(pid, match);
+            }
+            return match;
+        }
+
+        private Set<Integer> strangers() {
+            Set<Integer> strangers = new HashSet<>();
+            if (process != null) {
+                for (int pid : listeners.keySet()) {
+                    if (!matches(pid)) {
+                        strangers.add(pid);
+                    }
+                }
+            }
+            return strangers;
+        }
+
+        @Override
+        boolean violated() {
+            return listeners.isEmpty() || !strangers().isEmpty();
+        }
+
+        @Override
+        String describe() {
+            if (listeners.isEmpty()) {
+                return "Nothing listens on port " + port;
+            }
+            return "Port " + port + " is bound by " + owners(strangers()) + ", expected " + process;
+        }
+    }
+
+    /**
+     * <code>owner PORT</code>: the processes listening on the port are the
+     * ones seen before. The first listeners are taken as they are, and the
+     * new ones after every alert.
+     */
+    static final class OwnerRule extends ListenerRule {
+
+        private Set<Integer> owners;
+        private String previous = "";
+
+        OwnerRule(String text, int port, long debounceMillis) {
+            super(text, port, debounceMillis);
+        }
+
+        @Override
+        boolean violated() {
+            if (listeners.isEmpty()) {
+                return false;
+            }
+            if (owners == null) {
+                fired();
+                return false;
+            }
+            return !owners.equals(listeners.keySet());
+        }
+
+        @Override
+        String describe() {
+            return "Owner of port " + port + " changed from " + previous + " to " + owners(listeners.keySet());
+        }
+
+        @Override
+        void fired() {
+            owners = new HashSet<>(listeners.keySet());
+            previous = owners(owners);
+        }
+    }
+
+    /**
+     * <code>limit PORT STATE MAX</code>: at most MAX sockets of the port
+     * are in the state.
+     */
+    static final class LimitRule extends Rule {
+
+        final int state;
+        final int max;
+        private int count;
+
+        LimitRule(String text, int port, int state, int max, long debounceMillis) {
+            super(text, port, debounceMillis);
+            this.state = state;
+            this.max = max;
+        }
+
+        @Override
+        void added(PortSnapshot snapshot, int row) {
+            if (snapshot.state[row] == state) {
+                count++;
+            }
+        }
+
+        @Override
+        void removed(PortSnapshot snapshot, int row) {
+            if (snapshot.state[row] == state) {
+                count--;
+            }
+        }
+
+        @Override
+        boolean violated() {
+            return count > max;
+        }
+
+        @Override
+        String describe() {
+            return "Port " + port + " has " + count + " sockets in " + PortSnapshot.STATES[state]
+                    + ", at most " + max + " allowed";
+        }
+
+        @Override
+        boolean needsAllStates() {
+            return state != PortSnapshot.LISTENING;
+        }
+    }
+
+    private final Rule[] rules;
+
+    /**
+     * Sorted ports and the rules of each.
+     */
+    private final int[] ports;
+    private final Rule[][] rulesByPort;
+
+    private final List<Notifier> notifiers;
+
+    private final ScheduledExecutorService executor;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    PortRules(List<Rule> rules, List<Notifier> notifiers) {
+        this.rules = rules.toArray(new Rule[rules.size()]);
+        this.notifiers = notifiers;
+        int[] sorted = new int[this.rules.length];
+        int count = 0;
+        for (Rule rule : this.rules) {
+            sorted[count++] = rule.port;
+        }
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || sorted[distinct - 1] != sorted[i]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        ports = Arrays.copyOf(sorted, distinct);
+        rulesByPort = new Rule[distinct][];
+        for (int i = 0; i < distinct; i++) {
+            List<Rule> ofPort = new ArrayList<>();
+            for (Rule rule : this.rules) {
+                if (rule.port == ports[i]) {
+                    ofPort.add(rule);
+                }
+            }
+            rulesByPort[i] = ofPort.toArray(new Rule[ofPort.size()]);
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PortMon Rules");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static PortRules load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException with the line number of a bad line
+     */
+    static PortRules parse(List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        List<Notifier> notifiers = new ArrayList<>();
+        long debounce = DEFAULT_DEBOUNCE_MILLIS;
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n);
+            int hash = line.indexOf('#');
+            String text = (hash < 0 ? line : line.substring(0, hash)).trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            String[] words = text.split("\\s+");
+            try {
+                switch (words[0]) {
+                    case "debounce":
+                        debounce = PortMonDaemon.Config.parseMillis(words[1]);
+                        break;
+                    case "notify":
+                        notifiers.add(notifier(Arrays.copyOfRange(words, 1, words.length)));
+                        break;
+                    default:
+                        rules.add(rule(text, words, debounce));
+                }
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("Line " + (n + 1) + ": " + text
+                        + (ex.getMessage() == null ? "" : " (" + ex.getMessage() + ")"), ex);
+            }
+        }
+        if (notifiers.isEmpty()) {
+            notifiers.add(LOG);
+        }
+        return new PortRules(rules, notifiers);
+    }
+
+    private static Rule rule(String text, String[] words, long debounce) {
+        int port = Integer.parseInt(words[1]);
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Not a port: " + port);
+        }
+        int end = words.length;
+        if (end > 3 && words[end - 2].equals("for")) {
+            debounce = PortMonDaemon.Config.parseMillis(words[end - 1]);
+            end -= 2;
+        }
+        switch (words[0]) {
+            case "listen":
+                if (end == 2) {
+                    return new ListenRule(text, port, null, debounce);
+                }
+                if (end == 4 && words[2].equals("process")) {
+                    return new ListenRule(text, port, words[3], debounce);
+                }
+                break;
+            case "owner":
+                if (end == 2) {
+                    return new OwnerRule(text, port, debounce);
+                }
+                break;
+            case "limit":
+                if (end == 4) {
+                    int state = state(words[2]);
+                    return new LimitRule(text, port, state, Integer.parseInt(words[3]), debounce);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown rule " + words[0]);
+        }
+        throw new IllegalArgumentException("Bad " + words[0] + " rule");
+    }
+
+    private static int state(String name) {
+        for (int i = 0; i < PortSnapshot.STATES.length; i++) {
+            if (PortSnapshot.STATES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown state " + name);
+    }
+
+    private static Notifier notifier(String[] words) {
+        switch (words.length == 0 ? "" : words[0]) {
+            case "log":
+                return LOG;
+            case "webhook":
+                if (words.length == 2) {
+                    return new Webhook(words[1]);
+                }
+                break;
+            case "command":
+                if (words.length > 1) {
+                    return new Command(Arrays.copyOfRange(words, 1, words.length));
+                }
+                break;
+        }
+        throw new IllegalArgumentException("Notify log, webhook URL or command ...");
+    }
+
+    /**
+     * @return the local ports of all rules, ascending
+     */
+    int[] ports() {
+        return ports.clone();
+    }
+
+    boolean needsAllStates() {
+        for (Rule rule : rules) {
+            if (rule.needsAllStates()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    /**
+     * Evaluates the rules against no sockets at all, which is what the first
+     * diff starts from. Without it a port that never had a listener would
+     * not alert until something else changed.
+     */
+    void start() {
+        executor.execute(check);
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void portsChanged(PortDiff diff) {
+        PortSnapshot before = diff.before;
+        PortSnapshot after = diff.after;
+        synchronized (this) {
+            for (int row : diff.removed) {
+                Rule[] ofPort = rulesOf(before.localPort[row]);
+                for (int i = 0; ofPort != null && i < ofPort.length; i++) {
+                    ofPort[i].removed(before, row);
+                }
+            }
+            for (int row : diff.changed) {
+                Rule[] ofPort = rulesOf(after.localPort[row]);
+                for (int i = 0; ofPort != null && i < ofPort.length; i++) {
+                    ofPort[i].removed(before, diff.afterToBefore[row]);
+                    ofPort[i].added(after, row);
+                }
+            }
+            for (int row : diff.added) {
+                Rule[] ofPort = rulesOf(after.localPort[row]);
+                for (int i = 0; ofPort != null && i < ofPort.length; i++) {
+                    ofPort[i].added(after, row);
+                }
+            }
+        }
+        check();
+    }
+
+    private Rule[] rulesOf(int port) {
+        int index = Arrays.binarySearch(ports, port);
+        return index < 0 ? null : rulesByPort[index];
+    }
+
+    /**
+     * Starts debounce times, alerts and resolves. Cheap enough to run over
+     * all rules after every diff.
+     */
+    private synchronized void check() {
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        for (Rule rule : rules) {
+            if (rule.violated()) {
+                if (rule.violatedSince < 0) {
+                    rule.violatedSince = now;
+                    if (rule.debounceMillis > 0 && !executor.isShutdown()) {
+                        executor.schedule(check, rule.debounceMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+                if (!rule.firing && now - rule.violatedSince >= rule.debounceMillis) {
+                    rule.firing = true;
+                    send(new Alert(rule, true, rule.describe()));
+                    rule.fired();
+                    if (!rule.violated()) {
+                        // An event, like a new owner, is not resolved later
+                        rule.firing = false;
+                        rule.violatedSince = -1;
+                    }
+                }
+            } else {
+                rule.violatedSince = -1;
+                if (rule.firing) {
+                    rule.firing = false;
+                    send(new Alert(rule, false, rule.text));
+                }
+            }
+        }
+    }
+
+    private void send(final Alert alert) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Notifier notifier : notifiers) {
+                    try {
+                        notifier.send(alert);
+                    } catch (IOException | RuntimeException ex) {
+                        logger.log(Level.WARNING, null, ex);
+                    }
+                }
+            }
+        });
+    }
+
+    private static String processName(int pid) {
+        return pid <= 0 ? "unknown" : PortMon.processInfoCache.get(pid).name;
+    }
+
+    static final Notifier LOG = new Notifier() {
+        @Override
+        public void send(Alert alert) {
+            logger.log(alert.firing ? Level.WARNING : Level.INFO, "{0}", alert);
+        }
+    };
+
+    /**
+     * Posts an alert as a JSON object.
+     */
+    static final class Webhook implements Notifier {
+
+        final URL url;
+
+        Webhook(String url) {
+            try {
+                this.url = new URL(url);
+            } catch (IOException ex) {
+                throw new IllegalArgumentException(ex.getMessage());
+            }
+        }
+
+        @Override
+        public void send(Alert alert) throws IOException {
+            StringBuilder json = new StringBuilder(256);
+            json.append("{\"status\":\"").append(alert.status()).append("\",\"rule\":");
+            QueryCommand.json(json, alert.rule);
+            json.append(",\"port\":").append(alert.port).append(",\"message\":");
+            QueryCommand.json(json, alert.message);
+            json.append(",\"timestamp\":").append(alert.timestamp).append('}');
+            byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setConnectTimeout(WEBHOOK_TIMEOUT_MILLIS);
+                connection.setReadTimeout(WEBHOOK_TIMEOUT_MILLIS);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+                int status = connection.getResponseCode();
+                if (status / 100 != 2) {
+                    throw new IOException(url + " answered " + status);
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Runs a command with the alert in PORTMON_STATUS, PORTMON_RULE,
+     * PORTMON_PORT and PORTMON_MESSAGE. The words of the command are split
+     * on blanks without quoting, use a script for anything more.
+     */
+    static final class Command implements Notifier {
+
+        final String[] command;
+
+        Command(String[] command) {
+            this.command = command;
+        }
+
+        @Override
+        public void send(Alert alert) throws IOException {
+            ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+            Map<String, String> environment = builder.environment();
+            environment.put("PORTMON_STATUS", alert.status());
+            environment.put("PORTMON_RULE", alert.rule);
+            environment.put("PORTMON_PORT", Integer.toString(alert.port));
+            environment.put("PORTMON_MESSAGE", alert.message);
+            Process process = builder.start();
+            try {
+                if (!process.waitFor(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    process.destroy();
+                    throw new IOException(command[0] + " did not finish in "
+                            + COMMAND_TIMEOUT_SECONDS + " s");
+                }
+                if (process.exitValue() != 0) {
+                    throw new IOException(command[0] + " exited with " + process.exitValue());
+                }
+            } catch (InterruptedException ex) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+/**
+ * Receives the sockets that pass a scan's filter.
+ */
+interface PortSink {
+
+    /**
+     * @param port a scratch row reused by the source for the next socket;
+     * {@link PortMon.Port#copy()} it to keep it
+     */
+    void accept(PortMon.Port port);
+}
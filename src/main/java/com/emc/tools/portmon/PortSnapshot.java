@@ -0,0 +1,462 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable result of one socket scan, stored column wise in primitive
+ * arrays. Row access is O(1) and a row costs under 100 bytes, against several
+ * hundred for a {@link PortMon.Port} with its strings.
+ */
+class PortSnapshot {
+
+    /**
+     * Protocol names, the protocol column holds indexes into this table.
+     */
+    static final String[] PROTOCOLS = {"TCP", "TCPv6", "UDP", "UDPv6", "UNIX"};
+
+    static final int UNIX = 4;
+
+    /**
+     * State names, the state column holds indexes into this table. Sources
+     * name states like Windows netstat does.
+     */
+    static final String[] STATES = {
+        "UNKNOWN",
+        "ESTABLISHED",
+        "SYN_SENT",
+        "SYN_RECEIVED",
+        "FIN_WAIT_1",
+        "FIN_WAIT_2",
+        "TIME_WAIT",
+        "CLOSED",
+        "CLOSE_WAIT",
+        "LAST_ACK",
+        PortMon.LISTENING,
+        "CLOSING",
+        "DELETE_TCB"
+    };
+
+    static final int LISTENING = 10;
+
+    static final PortSnapshot EMPTY = new Builder().build(0, 0, 0);
+
+    /**
+     * Increases by one for every scan of the same producer.
+     */
+    final long sequence;
+
+    /**
+     * Wall clock time of the scan in milliseconds.
+     */
+    final long timestamp;
+
+    /**
+     * Duration of the scan in nanoseconds.
+     */
+    final long scanNanos;
+
+    private final int size;
+
+    final byte[] protocol;
+    final byte[] state;
+    final long[] localAddressHi;
+    final long[] localAddressLo;
+    final int[] localPort;
+    final long[] remoteAddressHi;
+    final long[] remoteAddressLo;
+    final int[] remotePort;
+    final int[] pid;
+    final long[] inode;
+
+    /**
+     * Queue and tcp_info samples, see {@link PortMon.Port#rxQueue}. They are
+     * neither part of the row key nor of the compared values, and are not
+     * sent to collectors or recorded in the history.
+     */
+    final int[] rxQueue;
+    final int[] txQueue;
+    final int[] rttMicros;
+    final int[] retransmits;
+    final long[] bytesAcked;
+
+    /**
+     * Paths of Unix domain sockets, see {@link PortMon.Port#path}. Like the
+     * samples, not part of the key and not sent to collectors.
+     */
+    final String[] path;
+
+    /**
+     * Hash of the row key, see {@link #sameKey(int, PortSnapshot, int)}.
+     */
+    final int[] keyHash;
+
+    /**
+     * Formatted local addresses, filled on demand by the GUI.
+     */
+    private String[] localHosts;
+
+    private volatile PortIndex index;
+
+    private PortSnapshot(Builder b, long sequence, long timestamp, long scanNanos) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.scanNanos = scanNanos;
+        this.size = b.size;
+        this.protocol = b.protocol;
+        this.state = b.state;
+        this.localAddressHi = b.localAddressHi;
+        this.localAddressLo = b.localAddressLo;
+        this.localPort = b.localPort;
+        this.remoteAddressHi = b.remoteAddressHi;
+        this.remoteAddressLo = b.remoteAddressLo;
+        this.remotePort = b.remotePort;
+        this.pid = b.pid;
+        this.inode = b.inode;
+        this.rxQueue = b.rxQueue;
+        this.txQueue = b.txQueue;
+        this.rttMicros = b.rttMicros;
+        this.retransmits = b.retransmits;
+        this.bytesAcked = b.bytesAcked;
+        this.path = b.path;
+        this.keyHash = b.keyHash;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String protocol(int row) {
+        return PROTOCOLS[protocol[row]];
+    }
+
+    String state(int row) {
+        return STATES[state[row]];
+    }
+
+    String localHost(int row) {
+        String[] hosts = localHosts;
+        if (hosts == null) {
+            hosts = new String[size];
+            localHosts = hosts;
+        }
+        String host = hosts[row];
+        if (host == null && protocol[row] == UNIX) {
+            host = path[row] != null ? path[row] : "*";
+            hosts[row] = host;
+        }
+        if (host == null) {
+            host = Addresses.format(localAddressHi[row], localAddressLo[row]);
+            hosts[row] = host;
+        }
+        return host;
+    }
+
+    String remoteHost(int row) {
+        return Addresses.format(remoteAddressHi[row], remoteAddressLo[row]);
+    }
+
+    /**
+     * @return the port, pid and state index of this snapshot, built on
+     * first use and shared by all readers
+     */
+    PortIndex index() {
+        return index(null);
+    }
+
+    /**
+     * Same as {@link #index()}, but a new index shares what it can with the
+     * index of an earlier snapshot.
+     */
+    PortIndex index(PortIndex previous) {
+        PortIndex result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = new PortIndex(this, previous);
+                    index = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a snapshot of the given rows, with the same sequence and time
+     */
+    PortSnapshot select(int[] rows) {
+        Builder builder = new Builder();
+        for (int row : rows) {
+            builder.add(this, row);
+        }
+        return builder.build(sequence, timestamp, scanNanos);
+    }
+
+    /**
+     * Copies one row into <code>port</code>.
+     */
+    void read(int row, PortMon.Port port) {
+        port.protocol = protocol(row);
+        port.setLocal(localAddressHi[row], localAddressLo[row], localPort[row]);
+        port.setRemote(remoteAddressHi[row], remoteAddressLo[row], remotePort[row]);
+        port.pid = pid[row];
+        port.state = state(row);
+        port.inode = inode[row];
+        port.path = path[row];
+        port.rxQueue = rxQueue[row];
+        port.txQueue = txQueue[row];
+        port.rttMicros = rttMicros[row];
+        port.retransmits = retransmits[row];
+        port.bytesAcked = bytesAcked[row];
+    }
+
+    PortMon.Port port(int row) {
+        PortMon.Port port = new PortMon.Port();
+        read(row, port);
+        return port;
+    }
+
+    List<PortMon.Port> toList() {
+        List<PortMon.Port> ports = new ArrayList<>(size);
+        for (int row = 0; row < size; row++) {
+            ports.add(port(row));
+        }
+        return ports;
+    }
+
+    /**
+     * Rows are identified by protocol, local and remote endpoint, pid and
+     * inode, see {@link PortMon.Port#equals(Object)}.
+     */
+    boolean sameKey(int row, PortSnapshot other, int otherRow) {
+        return keyHash[row] == other.keyHash[otherRow]
+                && localPort[row] == other.localPort[otherRow]
+                && pid[row] == other.pid[otherRow]
+                && remotePort[row] == other.remotePort[otherRow]
+                && localAddressLo[row] == other.localAddressLo[otherRow]
+                && localAddressHi[row] == other.localAddressHi[otherRow]
+                && remoteAddressLo[row] == other.remoteAddressLo[otherRow]
+                && remoteAddressHi[row] == other.remoteAddressHi[otherRow]
+                && inode[row] == other.inode[otherRow]
+                && protocol[row] == other.protocol[otherRow];
+    }
+
+    /**
+     * @return true if the non-key columns shown to the user are the same
+     */
+    boolean sameValues(int row, PortSnapshot other, int otherRow) {
+        return state[row] == other.state[otherRow];
+    }
+
+    static int stateOrdinal(String state) {
+        for (int i = 0; i < STATES.length; i++) {
+            // Sources use the constants, so identity almost always hits
+            if (STATES[i] == state || STATES[i].equals(state)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    static int protocolOrdinal(String protocol) {
+        for (int i = 0; i < PROTOCOLS.length; i++) {
+            if (PROTOCOLS[i] == protocol || PROTOCOLS[i].equals(protocol)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + size + " sockets in " + (scanNanos / 1000000) + " ms";
+    }
+
+    /**
+     * Collects the rows of a scan. A builder can be reused after
+     * {@link #build(long, long, long)}.
+     */
+    static class Builder implements PortSink {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        private int size;
+        private byte[] protocol;
+        private byte[] state;
+        private long[] localAddressHi;
+        private long[] localAddressLo;
+        private int[] localPort;
+        private long[] remoteAddressHi;
+        private long[] remoteAddressLo;
+        private int[] remotePort;
+        private int[] pid;
+        private long[] inode;
+        private int[] rxQueue;
+        private int[] txQueue;
+        private int[] rttMicros;
+        private int[] retransmits;
+        private long[] bytesAcked;
+        private String[] path;
+        private int[] keyHash;
+
+        Builder() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Drops the rows of a scan that failed.
+         */
+        void clear() {
+            size = 0;
+        }
+
+        private void allocate(int capacity) {
+            size = 0;
+            protocol = new byte[capacity];
+            state = new byte[capacity];
+            localAddressHi = new long[capacity];
+            localAddressLo = new long[capacity];
+            localPort = new int[capacity];
+            remoteAddressHi = new long[capacity];
+            remoteAddressLo = new long[capacity];
+            remotePort = new int[capacity];
+            pid = new int[capacity];
+            inode = new long[capacity];
+            rxQueue = new int[capacity];
+            txQueue = new int[capacity];
+            rttMicros = new int[capacity];
+            retransmits = new int[capacity];
+            bytesAcked = new long[capacity];
+            path = new String[capacity];
+            keyHash = new int[capacity];
+        }
+
+        private void grow() {
+            int capacity = Math.max(INITIAL_CAPACITY, protocol.length * 2);
+            protocol = Arrays.copyOf(protocol, capacity);
+            state = Arrays.copyOf(state, capacity);
+            localAddressHi = Arrays.copyOf(localAddressHi, capacity);
+            localAddressLo = Arrays.copyOf(localAddressLo, capacity);
+            localPort = Arrays.copyOf(localPort, capacity);
+            remoteAddressHi = Arrays.copyOf(remoteAddressHi, capacity);
+            remoteAddressLo = Arrays.copyOf(remoteAddressLo, capacity);
+            remotePort = Arrays.copyOf(remotePort, capacity);
+            pid = Arrays.copyOf(pid, capacity);
+            inode = Arrays.copyOf(inode, capacity);
+            rxQueue = Arrays.copyOf(rxQueue, capacity);
+            txQueue = Arrays.copyOf(txQueue, capacity);
+            rttMicros = Arrays.copyOf(rttMicros, capacity);
+            retransmits = Arrays.copyOf(retransmits, capacity);
+            bytesAcked = Arrays.copyOf(bytesAcked, capacity);
+            path = Arrays.copyOf(path, capacity);
+            keyHash = Arrays.copyOf(keyHash, capacity);
+        }
+
+        int size() {
+            return size;
+        }
+
+        @Override
+        public void accept(PortMon.Port port) {
+            add((byte) protocolOrdinal(port.protocol), (byte) stateOrdinal(port.state),
+                    port.localAddressHi, port.localAddressLo, port.localPort,
+                    port.remoteAddressHi, port.remoteAddressLo, port.remotePort,
+                    port.pid, port.inode);
+            int row = size - 1;
+            rxQueue[row] = port.rxQueue;
+            txQueue[row] = port.txQueue;
+            rttMicros[row] = port.rttMicros;
+            retransmits[row] = port.retransmits;
+            bytesAcked[row] = port.bytesAcked;
+            path[row] = port.path;
+        }
+
+        /**
+         * Appends a row given by its columns.
+         */
+        void add(byte protocol, byte state,
+                long localAddressHi, long localAddressLo, int localPort,
+                long remoteAddressHi, long remoteAddressLo, int remotePort,
+                int pid, long inode) {
+            if (size == this.protocol.length) {
+                grow();
+            }
+            int row = size++;
+            this.protocol[row] = protocol;
+            this.state[row] = state;
+            this.localAddressHi[row] = localAddressHi;
+            this.localAddressLo[row] = localAddressLo;
+            this.localPort[row] = localPort;
+            this.remoteAddressHi[row] = remoteAddressHi;
+            this.remoteAddressLo[row] = remoteAddressLo;
+            this.remotePort[row] = remotePort;
+            this.pid[row] = pid;
+            this.inode[row] = inode;
+            this.path[row] = null;
+            this.keyHash[row] = hash(row);
+        }
+
+        /**
+         * Overwrites the state of a collected row, the state is not part of
+         * the row key.
+         */
+        void setState(int row, byte state) {
+            this.state[row] = state;
+        }
+
+        /**
+         * Appends a row of another snapshot.
+         */
+        void add(PortSnapshot snapshot, int source) {
+            if (size == protocol.length) {
+                grow();
+            }
+            int row = size++;
+            protocol[row] = snapshot.protocol[source];
+            state[row] = snapshot.state[source];
+            localAddressHi[row] = snapshot.localAddressHi[source];
+            localAddressLo[row] = snapshot.localAddressLo[source];
+            localPort[row] = snapshot.localPort[source];
+            remoteAddressHi[row] = snapshot.remoteAddressHi[source];
+            remoteAddressLo[row] = snapshot.remoteAddressLo[source];
+            remotePort[row] = snapshot.remotePort[source];
+            pid[row] = snapshot.pid[source];
+            inode[row] = snapshot.inode[source];
+            rxQueue[row] = snapshot.rxQueue[source];
+            txQueue[row] = snapshot.txQueue[source];
+            rttMicros[row] = snapshot.rttMicros[source];
+            retransmits[row] = snapshot.retransmits[source];
+            bytesAcked[row] = snapshot.bytesAcked[source];
+            path[row] = snapshot.path[source];
+            keyHash[row] = snapshot.keyHash[source];
+        }
+
+        private int hash(int row) {
+            long h = localPort[row];
+            h = h * 31 + pid[row];
+            h = h * 31 + remotePort[row];
+            h = h * 31 + localAddressLo[row];
+            h = h * 31 + localAddressHi[row];
+            h = h * 31 + remoteAddressLo[row];
+            h = h * 31 + remoteAddressHi[row];
+            h = h * 31 + inode[row];
+            h = h * 31 + protocol[row];
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /**
+         * Hands the collected rows to a new snapshot and starts over.
+         */
+        PortSnapshot build(long sequence, long timestamp, long scanNanos) {
+            PortSnapshot snapshot = new PortSnapshot(this, sequence, timestamp, scanNanos);
+            allocate(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, size))));
+            return snapshot;
+        }
+    }
+}
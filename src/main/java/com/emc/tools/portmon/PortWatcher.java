@@ -0,0 +1,185 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Watches the socket table and tells listeners what changed. Neither
+ * /proc nor netstat can notify about new sockets, so the table is polled
+ * with an adaptive interval: right after a change it is polled every
+ * <code>minMillis</code>, and every quiet poll doubles the interval up to
+ * <code>maxMillis</code>. A poll never starts sooner than four scan
+ * durations after the previous one, which caps the cost of watching a large
+ * table. Scans run on the {@link ScanPipeline} of the process, together with
+ * those of other watchers.
+ */
+class PortWatcher {
+
+    static interface Listener {
+
+        /**
+         * Called on a pipeline thread after a change, and after every scan
+         * asked for with {@link #poke()} even if nothing changed.
+         */
+        void portsChanged(PortDiff diff);
+    }
+
+    private static final int SCAN_COST_FACTOR = 4;
+
+    private final ScanPipeline pipeline;
+
+    private final ScanPipeline.Subscription subscription;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean poked = new AtomicBoolean();
+
+    private final long minMillis;
+    private volatile long maxMillis;
+
+    /**
+     * Guarded by this.
+     */
+    private long intervalMillis;
+    private ScheduledFuture<?> next;
+    private boolean polling;
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            subscription.request();
+        }
+    };
+
+    PortWatcher(PortFilter filter, long minMillis, long maxMillis) {
+        this(PortMon.pipeline, filter, minMillis, maxMillis);
+    }
+
+    PortWatcher(ScanPipeline pipeline, PortFilter filter, long minMillis, long maxMillis) {
+        this.pipeline = pipeline;
+        this.minMillis = minMillis;
+        this.maxMillis = Math.max(minMillis, maxMillis);
+        this.intervalMillis = minMillis;
+        this.subscription = pipeline.subscribe(filter, new ScanPipeline.Subscriber() {
+            @Override
+            public void scanned(PortDiff diff, boolean requested) {
+                PortWatcher.this.scanned(diff, requested);
+            }
+
+            @Override
+            public void scanFailed(RuntimeException ex) {
+                PortWatcher.this.scanFailed();
+            }
+        });
+    }
+
+    void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * @return the result of the most recent scan, never null
+     */
+    PortSnapshot latest() {
+        return subscription.latest();
+    }
+
+    /**
+     * Starts polling, beginning with a scan right away.
+     */
+    synchronized void start() {
+        polling = true;
+        intervalMillis = minMillis;
+        subscription.request();
+    }
+
+    /**
+     * Stops polling; {@link #poke()} still scans.
+     */
+    synchronized void stop() {
+        polling = false;
+        cancelNext();
+    }
+
+    void shutdown() {
+        stop();
+        subscription.cancel();
+    }
+
+    /**
+     * Scans as soon as possible. Pokes arriving while one is pending are
+     * merged into it.
+     */
+    void poke() {
+        poked.set(true);
+        subscription.request();
+    }
+
+    /**
+     * Changes what is scanned and scans right away.
+     */
+    void setFilter(PortFilter filter) {
+        poked.set(true);
+        subscription.setFilter(filter);
+    }
+
+    void setMaxInterval(long maxMillis) {
+        this.maxMillis = Math.max(minMillis, maxMillis);
+    }
+
+    private void scanned(PortDiff diff, boolean requested) {
+        synchronized (this) {
+            if (diff.isEmpty()) {
+                intervalMillis = Math.min(maxMillis, intervalMillis * 2);
+            } else {
+                intervalMillis = minMillis;
+            }
+            intervalMillis = Math.max(intervalMillis,
+                    TimeUnit.NANOSECONDS.toMillis(diff.after.scanNanos) * SCAN_COST_FACTOR);
+            if (polling) {
+                cancelNext();
+                next = pipeline.schedule(poll, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if ((requested && poked.getAndSet(false)) || !diff.isEmpty()) {
+            for (Listener l : listeners) {
+                try {
+                    l.portsChanged(diff);
+                } catch (RuntimeException ex) {
+                    PortMon.logger.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Polls on at the longest interval, a scan that failed usually fails
+     * again right away.
+     */
+    private synchronized void scanFailed() {
+        intervalMillis = maxMillis;
+        if (polling) {
+            cancelNext();
+            next = pipeline.schedule(poll, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelNext() {
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Socket source that reads the Linux <code>/proc/net/tcp</code>,
+ * <code>/proc/net/udp</code> (and their IPv6 twins) and
+ * <code>/proc/net/unix</code> tables directly, without forking netstat.
+ * Socket inodes of all tables are mapped to PIDs together by scanning
+ * <code>/proc/&lt;pid&gt;/fd</code> once.
+ * <p>
+ * Without a port filter the inodes of all processes are mapped first, and
+ * every row goes to the sink as soon as it is parsed. A port filter keeps
+ * few rows, so those are kept and only their inodes are looked for, which
+ * stops the walk once they are all found.
+ */
+class ProcNetSocketSource implements SocketSource {
+
+    static final String PROC = "/proc";
+
+    private static final String[] INET_TABLES = {
+        "/proc/net/tcp", "/proc/net/tcp6", "/proc/net/udp", "/proc/net/udp6"
+    };
+
+    private static final String[] INET_PROTOCOLS = {"TCP", "TCPv6", "UDP", "UDPv6"};
+
+    private static final String UNIX_TABLE = "/proc/net/unix";
+
+    /**
+     * TCP_CLOSE, the state of a UDP socket that is bound but not connected.
+     */
+    private static final int UDP_UNCONNECTED = 7;
+
+    /**
+     * __SO_ACCEPTCON in the flags of /proc/net/unix.
+     */
+    private static final int UNIX_ACCEPTING = 0x10000;
+
+    /**
+     * State names indexed by the st column of /proc/net/unix, SS_FREE
+     * through SS_DISCONNECTING.
+     */
+    private static final String[] UNIX_STATES = {
+        "UNKNOWN", "CLOSED", "SYN_SENT", "ESTABLISHED", "CLOSING"
+    };
+
+    private static final String SOCKET_LINK_PREFIX = "socket:[";
+
+    /**
+     * State names indexed by the kernel's TCP state number, named like the
+     * Windows netstat output the rest of portmon expects.
+     */
+    static final String[] STATES = {
+        "UNKNOWN",
+        "ESTABLISHED",
+        "SYN_SENT",
+        "SYN_RECEIVED",
+        "FIN_WAIT_1",
+        "FIN_WAIT_2",
+        "TIME_WAIT",
+        "CLOSED",
+        "CLOSE_WAIT",
+        "LAST_ACK",
+        PortMon.LISTENING,
+        "CLOSING"
+    };
+
+    private final LineReader reader = new LineReader();
+
+    private final PortMon.Port scratch = new PortMon.Port();
+
+    private final PidResolver keep = new PidResolver();
+
+    private final InodePids pids = new InodePids();
+
+    /**
+     * The sink of the scan in progress, rows get their pid from
+     * {@link #pids} on the way.
+     */
+    private PortSink target;
+
+    private final PortSink stream = new PortSink() {
+        @Override
+        public void accept(PortMon.Port port) {
+            port.pid = port.inode == 0 ? 0 : pids.get(port.inode);
+            target.accept(port);
+        }
+    };
+
+    static boolean isAvailable() {
+        return new File(INET_TABLES[0]).canRead();
+    }
+
+    @Override
+    public synchronized void scan(PortFilter filter, PortSink sink) throws IOException {
+        if (filter.ports.length > 0) {
+            // Rows are kept until their pids are known
+            parseTables(filter, keep);
+            keep.resolveTo(sink);
+            return;
+        }
+        pids.clear();
+        long resolveStart = System.nanoTime();
+        mapPids(pids);
+        ScanStats.sample().resolveNanos += System.nanoTime() - resolveStart;
+        target = sink;
+        try {
+            parseTables(filter, stream);
+        } finally {
+            target = null;
+        }
+    }
+
+    private void parseTables(PortFilter filter, PortSink sink) throws IOException {
+        for (int i = 0; i < INET_TABLES.length; i++) {
+            File table = new File(INET_TABLES[i]);
+            if (!table.canRead()) {
+                continue;
+            }
+            try (InputStream in = new FileInputStream(table)) {
+                parse(in, INET_PROTOCOLS[i], filter, sink);
+            }
+        }
+        // Unix domain sockets have no port, a port filter never keeps them
+        File unix = new File(UNIX_TABLE);
+        if (filter.ports.length == 0 && unix.canRead()) {
+            try (InputStream in = new FileInputStream(unix)) {
+                parseUnix(in, filter, sink);
+            }
+        }
+    }
+
+    /**
+     * Keeps the rows of a scan until {@link #resolveTo(PortSink)} has found
+     * the pids of their inodes, for sources that only know the inode.
+     */
+    static class PidResolver implements PortSink {
+
+        /**
+         * Rows of the current scan are kept[0, keptCount), the rest are
+         * pooled for the next scans.
+         */
+        private final List<PortMon.Port> kept = new ArrayList<>();
+
+        private int keptCount;
+
+        private final InodeTable inodes = new InodeTable();
+
+        @Override
+        public void accept(PortMon.Port port) {
+            if (keptCount < kept.size()) {
+                kept.get(keptCount).copyFrom(port);
+            } else {
+                kept.add(port.copy());
+            }
+            keptCount++;
+        }
+
+        /**
+         * Fills in the pids of the kept rows, passes them on and starts over.
+         */
+        void resolveTo(PortSink sink) {
+            inodes.clear();
+            for (int i = 0; i < keptCount; i++) {
+                PortMon.Port p = kept.get(i);
+                if (p.inode != 0) {
+                    inodes.put(p.inode, p);
+                }
+            }
+            long resolveStart = System.nanoTime();
+            resolvePids(inodes);
+            ScanStats.sample().resolveNanos += System.nanoTime() - resolveStart;
+            inodes.clear();
+            int count = keptCount;
+            keptCount = 0;
+            for (int i = 0; i < count; i++) {
+                sink.accept(kept.get(i));
+            }
+        }
+    }
+
+    /**
+     * Parses one /proc/net/tcp{,6} or /proc/net/udp{,6} table; rows look like
+     * <pre>0: 0100007F:1F90 00000000:0000 0A 00000000:00000000 00:00000000 00000000  1000 0 12345 ...</pre>
+     * A bound UDP socket without a peer is shown as listening, like
+     * <code>ss state listening</code> does. The pid of the rows passed to
+     * the sink is not resolved.
+     */
+    synchronized void parse(InputStream in, String protocol, PortFilter filter, PortSink sink) throws IOException {
+        LineReader r = reader;
+        PortMon.Port p = scratch;
+        boolean udp = protocol.startsWith("UDP");
+        r.reset(in);
+        // Skip header
+        r.nextLine();
+        while (r.nextLine()) {
+            r.field();
+            r.skipBlanks();
+            int local = r.pos;
+            r.field();
+            r.skipBlanks();
+            int remote = r.pos;
+            r.field();
+            r.skipBlanks();
+            int state = (int) r.hex();
+            String stateName = udp && state == UDP_UNCONNECTED ? PortMon.LISTENING
+                    : state < STATES.length ? STATES[state] : STATES[0];
+            if (!filter.acceptsState(stateName)) {
+                continue;
+            }
+            byte[] b = r.buffer();
+            int localColon = indexOf(r, local, ':');
+            if (localColon < 0) {
+                continue;
+            }
+            int localPort = (int) hex(b, localColon + 1, 4);
+            if (!filter.acceptsPort(localPort)) {
+                continue;
+            }
+            int remoteColon = indexOf(r, remote, ':');
+            if (remoteColon < 0) {
+                continue;
+            }
+            p.protocol = protocol;
+            p.state = stateName;
+            decodeAddress(b, local, localColon, p, localPort, true);
+            decodeAddress(b, remote, remoteColon, p, (int) hex(b, remoteColon + 1, 4), false);
+            // tx_queue:rx_queue, for a listener rx_queue is the accept queue
+            r.skipBlanks();
+            p.txQueue = (int) r.hex();
+            r.skip(':');
+            p.rxQueue = (int) r.hex();
+            r.skipFields(4);
+            r.skipBlanks();
+            p.inode = Math.max(0, r.decimal());
+            p.path = null;
+            p.pid = 0;
+            sink.accept(p);
+        }
+    }
+
+    /**
+     * Parses /proc/net/unix; rows look like
+     * <pre>0000000000000000: 00000002 00000000 00010000 0001 01 15226 /run/dbus/system_bus_socket</pre>
+     * with the flags, type, state, inode and optional path. A socket that
+     * accepts connections is shown as listening, and so is an unconnected
+     * socket with a path, which is how datagram servers wait.
+     */
+    synchronized void parseUnix(InputStream in, PortFilter filter, PortSink sink) throws IOException {
+        LineReader r = reader;
+        PortMon.Port p = scratch;
+        r.reset(in);
+        // Skip header
+        r.nextLine();
+        while (r.nextLine()) {
+            r.skipFields(3);
+            r.skipBlanks();
+            int flags = (int) r.hex();
+            r.skipFields(1);
+            r.skipBlanks();
+            int state = (int) r.hex();
+            r.skipBlanks();
+            long inode = r.decimal();
+            r.skipBlanks();
+            boolean named = r.pos < r.lineEnd;
+            String stateName = (flags & UNIX_ACCEPTING) != 0 || (named && state == 1) ? PortMon.LISTENING
+                    : state < UNIX_STATES.length ? UNIX_STATES[state] : UNIX_STATES[0];
+            if (inode <= 0 || !filter.acceptsState(stateName)) {
+                continue;
+            }
+            p.protocol = "UNIX";
+            p.state = stateName;
+            p.setLocal(0, 0, 0);
+            p.setRemote(0, 0, 0);
+            p.path = named ? new String(r.buffer(), r.pos, r.lineEnd - r.pos, StandardCharsets.UTF_8) : null;
+            p.inode = inode;
+            p.rxQueue = 0;
+            p.txQueue = 0;
+            p.pid = 0;
+            sink.accept(p);
+        }
+    }
+
+    private static int indexOf(LineReader r, int from, char c) {
+        byte[] b = r.buffer();
+        for (int i = from; i < r.lineEnd; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+            if (b[i] == ' ') {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    private static long hex(byte[] b, int from, int length) {
+        long value = 0;
+        for (int i = from; i < from + length; i++) {
+            value = (value << 4) | Character.digit(b[i], 16);
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the hex address of /proc/net/tcp{,6}. Addresses are printed as
+     * 32 bit words in host byte order, which is little endian on the
+     * platforms we run on.
+     */
+    private static void decodeAddress(byte[] b, int from, int to, PortMon.Port p, int port, boolean local) {
+        long hi;
+        long lo;
+        if (to - from == 8) {
+            hi = Addresses.IPV4_MAPPED_HI;
+            lo = Addresses.ipv4Lo(Integer.reverseBytes((int) hex(b, from, 8)));
+        } else {
+            long w0 = Integer.reverseBytes((int) hex(b, from, 8)) & 0xffffffffL;
+            long w1 = Integer.reverseBytes((int) hex(b, from + 8, 8)) & 0xffffffffL;
+            long w2 = Integer.reverseBytes((int) hex(b, from + 16, 8)) & 0xffffffffL;
+            long w3 = Integer.reverseBytes((int) hex(b, from + 24, 8)) & 0xffffffffL;
+            hi = (w0 << 32) | w1;
+            lo = (w2 << 32) | w3;
+        }
+        if (local) {
+            p.setLocal(hi, lo, port);
+        } else {
+            p.setRemote(hi, lo, port);
+        }
+    }
+
+    /**
+     * Called for every socket descriptor of the processes we are allowed to
+     * inspect.
+     */
+    private static interface SocketVisitor {
+
+        /**
+         * @return true to stop the walk
+         */
+        boolean visit(long inode, int pid);
+    }
+
+    /**
+     * Fills in the pid of every port whose inode is open by a process we are
+     * allowed to inspect.
+     */
+    static void resolvePids(final InodeTable inodes) {
+        if (inodes.size() == 0) {
+            return;
+        }
+        walkSockets(new SocketVisitor() {
+
+            private int remaining = inodes.size();
+
+            @Override
+            public boolean visit(long inode, int pid) {
+                PortMon.Port p = inodes.get(inode);
+                if (p != null && p.pid == 0) {
+                    p.pid = pid;
+                    return --remaining == 0;
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Maps the inode of every socket open by a process we are allowed to
+     * inspect to the first such process.
+     */
+    static void mapPids(final InodePids pids) {
+        walkSockets(new SocketVisitor() {
+            @Override
+            public boolean visit(long inode, int pid) {
+                if (inode != 0) {
+                    pids.putIfAbsent(inode, pid);
+                }
+                return false;
+            }
+        });
+    }
+
+    private static void walkSockets(SocketVisitor visitor) {
+        try (DirectoryStream<Path> pids = Files.newDirectoryStream(Paths.get(PROC))) {
+            for (Path pidDir : pids) {
+                int pid = parsePid(pidDir.getFileName().toString());
+                if (pid <= 0) {
+                    continue;
+                }
+                try (DirectoryStream<Path> fds = Files.newDirectoryStream(pidDir.resolve("fd"))) {
+                    for (Path fd : fds) {
+                        String link;
+                        try {
+                            link = Files.readSymbolicLink(fd).toString();
+                        } catch (IOException ex) {
+                            continue;
+                        }
+                        if (link.startsWith(SOCKET_LINK_PREFIX) && visitor.visit(parseInode(link), pid)) {
+                            return;
+                        }
+                    }
+                } catch (IOException | SecurityException ex) {
+                    // Process exited or is not ours
+                }
+            }
+        } catch (IOException ex) {
+            PortMon.logger.log(Level.FINE, null, ex);
+        }
+    }
+
+    private static int parsePid(String name) {
+        int pid = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+
+    private static long parseInode(String link) {
+        long inode = 0;
+        for (int i = SOCKET_LINK_PREFIX.length(); i < link.length(); i++) {
+            char c = link.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            inode = inode * 10 + (c - '0');
+        }
+        return inode;
+    }
+
+    /**
+     * Open addressing map from socket inode to port, avoids boxing the
+     * inode of every open file descriptor.
+     */
+    static class InodeTable {
+
+        private long[] keys = new long[64];
+        private PortMon.Port[] values = new PortMon.Port[64];
+        private int size;
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(keys, 0);
+                Arrays.fill(values, null);
+                size = 0;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param inode a non zero inode
+         */
+        void put(long inode, PortMon.Port port) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int i = slot(keys, inode);
+            if (keys[i] == 0) {
+                size++;
+            }
+            keys[i] = inode;
+            values[i] = port;
+        }
+
+        PortMon.Port get(long inode) {
+            int i = slot(keys, inode);
+            return keys[i] == inode ? values[i] : null;
+        }
+
+        private static int slot(long[] keys, long inode) {
+            int mask = keys.length - 1;
+            int i = (int) ((inode * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (keys[i] != 0 && keys[i] != inode) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            PortMon.Port[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new PortMon.Port[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Open addressing map from socket inode to pid, reused from scan to
+     * scan.
+     */
+    static class InodePids {
+
+        private long[] keys = new long[1024];
+        private int[] pids = new int[1024];
+        private int size;
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(keys, 0);
+                size = 0;
+            }
+        }
+
+        /**
+         * @param inode a non zero inode
+         */
+        void putIfAbsent(long inode, int pid) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int i = InodeTable.slot(keys, inode);
+            if (keys[i] == 0) {
+                keys[i] = inode;
+                pids[i] = pid;
+                size++;
+            }
+        }
+
+        /**
+         * @return the pid, 0 if no process we can inspect has the inode open
+         */
+        int get(long inode) {
+            int i = InodeTable.slot(keys, inode);
+            return keys[i] == inode ? pids[i] : 0;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldPids = pids;
+            keys = new long[oldKeys.length * 2];
+            pids = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = InodeTable.slot(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    pids[slot] = oldPids[i];
+                }
+            }
+        }
+    }
+}
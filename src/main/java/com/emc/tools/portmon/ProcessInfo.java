@@ -0,0 +1,193 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * What we know about the process owning a socket.
+ */
+class ProcessInfo {
+
+    // tasklist /V /FO LIST /FI "PID eq 36588"
+    private static final List<String> pidInfoPrefix = new LinkedList<>(
+            Arrays.<String>asList(
+                    "cmd", "/C", "tasklist", "/V", "/FO", "LIST", "/FI"));
+
+    private static final String IMAGE_NAME = "Image Name:";
+
+    final int pid;
+
+    /**
+     * Start time of the process as told by {@link Platform#startTime(int)},
+     * 0 if unknown. A different start time for the same pid means the pid
+     * was reused.
+     */
+    final long startTime;
+
+    final String name;
+
+    /**
+     * Multi line description shown by the info button.
+     */
+    final String details;
+
+    ProcessInfo(int pid, long startTime, String name, String details) {
+        this.pid = pid;
+        this.startTime = startTime;
+        this.name = name;
+        this.details = details;
+    }
+
+    static final boolean HAS_PROC = Files.isDirectory(Paths.get(ProcNetSocketSource.PROC, "self"));
+
+    static ProcessInfo load(int pid) {
+        if (HAS_PROC) {
+            return loadProc(pid);
+        }
+        ProcessInfo info = Platform.processInfo(pid);
+        return info != null ? info : loadTasklist(pid);
+    }
+
+    /**
+     * @return the start time of a running process, -1 if it is gone
+     */
+    static long startTime(int pid) {
+        return Platform.startTime(pid);
+    }
+
+    /**
+     * @return the start time of a running process in clock ticks since boot,
+     * -1 if it is gone, 0 without /proc
+     */
+    static long procStartTime(int pid) {
+        if (!HAS_PROC) {
+            return 0;
+        }
+        try {
+            String stat = new String(Files.readAllBytes(procFile(pid, "stat")), StandardCharsets.US_ASCII);
+            // A zombie has exited, it only waits for its parent
+            if (stat.startsWith("Z", stat.lastIndexOf(')') + 2)) {
+                return -1;
+            }
+            return parseStartTime(stat);
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    private static Path procFile(int pid, String name) {
+        return Paths.get(ProcNetSocketSource.PROC, Integer.toString(pid), name);
+    }
+
+    /**
+     * The start time is field 22 of /proc/&lt;pid&gt;/stat. The command name
+     * in field 2 may hold blanks and parentheses, so fields are counted from
+     * its closing parenthesis.
+     */
+    private static long parseStartTime(String stat) {
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        return fields.length > 19 ? Long.parseLong(fields[19]) : 0;
+    }
+
+    private static ProcessInfo loadProc(int pid) {
+        StringBuilder details = new StringBuilder();
+        String name = "";
+        long startTime;
+        try {
+            String stat = new String(Files.readAllBytes(procFile(pid, "stat")), StandardCharsets.US_ASCII);
+            startTime = Math.max(0, startTime(pid));
+            name = stat.substring(stat.indexOf('(') + 1, stat.lastIndexOf(')'));
+        } catch (IOException | RuntimeException ex) {
+            return new ProcessInfo(pid, -1, "", "PID:          " + pid + "\nProcess not found.");
+        }
+        line(details, "Image Name:", name);
+        line(details, "PID:", Integer.toString(pid));
+        try {
+            byte[] cmdline = Files.readAllBytes(procFile(pid, "cmdline"));
+            for (int i = 0; i < cmdline.length; i++) {
+                if (cmdline[i] == 0) {
+                    cmdline[i] = ' ';
+                }
+            }
+            line(details, "Command Line:", new String(cmdline, StandardCharsets.UTF_8).trim());
+        } catch (IOException ex) {
+            line(details, "Command Line:", "N/A");
+        }
+        try {
+            line(details, "User Name:", Files.getOwner(procFile(pid, "status").getParent()).getName());
+        } catch (IOException | UnsupportedOperationException ex) {
+            line(details, "User Name:", "N/A");
+        }
+        try {
+            for (String status : Files.readAllLines(procFile(pid, "status"), StandardCharsets.UTF_8)) {
+                if (status.startsWith("State:")) {
+                    line(details, "Status:", status.substring(6).trim());
+                } else if (status.startsWith("PPid:")) {
+                    line(details, "Parent PID:", status.substring(5).trim());
+                } else if (status.startsWith("Threads:")) {
+                    line(details, "Threads:", status.substring(8).trim());
+                } else if (status.startsWith("VmRSS:")) {
+                    line(details, "Mem Usage:", status.substring(6).trim());
+                }
+            }
+        } catch (IOException ex) {
+            // Process exited meanwhile
+        }
+        return new ProcessInfo(pid, startTime, name, details.toString());
+    }
+
+    static void line(StringBuilder details, String label, String value) {
+        details.append(label);
+        for (int i = label.length(); i < 14; i++) {
+            details.append(' ');
+        }
+        details.append(value).append('\n');
+    }
+
+    private static ProcessInfo loadTasklist(int pid) {
+        List<String> pidInfo = new LinkedList<>(pidInfoPrefix);
+        pidInfo.add("PID eq " + pid);
+        ProcessBuilder pidInfoProcessBuilder = new ProcessBuilder(pidInfo);
+        StringBuilder info = new StringBuilder();
+        String name = "";
+        try {
+            final Process pidInfoProcess = pidInfoProcessBuilder.start();
+            InputStream inputStream = pidInfoProcess.getInputStream();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(inputStream))) {
+                String raw;
+                while ((raw = br.readLine()) != null) {
+                    if (info.length() == 0 && raw.isEmpty()) {
+                        continue;
+                    }
+                    if (raw.startsWith(IMAGE_NAME)) {
+                        name = raw.substring(IMAGE_NAME.length()).trim();
+                    }
+                    info.append(raw).append('\n');
+                }
+            }
+            pidInfoProcess.waitFor();
+        } catch (IOException | InterruptedException ex) {
+            PortMon.logger.log(Level.SEVERE, null, ex);
+        }
+        return new ProcessInfo(pid, 0, name, info.toString());
+    }
+
+    @Override
+    public String toString() {
+        return details;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+
+/**
+ * Bounded LRU cache of {@link ProcessInfo} by pid. Lookups run on a small
+ * pool of background threads, concurrent lookups of one pid share a single
+ * load. Every hit compares the start time of the pid with the cached one, a
+ * single read of /proc/&lt;pid&gt;/stat, so a reused pid is loaded again as
+ * soon as it is seen. Entries older than the time to live are reloaded unless
+ * the start time shows the same process.
+ */
+class ProcessInfoCache {
+
+    static interface Listener {
+
+        /**
+         * Called on a lookup thread after a pid was loaded.
+         */
+        void processInfoLoaded(ProcessInfo info);
+    }
+
+    private static class Cached {
+
+        final ProcessInfo info;
+        final long checked;
+
+        Cached(ProcessInfo info, long checked) {
+            this.info = info;
+            this.checked = checked;
+        }
+    }
+
+    private final long ttlMillis;
+
+    private final Map<Integer, Cached> entries;
+
+    private final Map<Integer, Future<ProcessInfo>> pending = new HashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final ExecutorService executor;
+
+    ProcessInfoCache(final int capacity, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<Integer, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Cached> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(2, Platform.workerThreads("Process Info"));
+    }
+
+    void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Never blocks: returns what is cached, possibly out of date, and starts
+     * a lookup when the entry is missing or expired.
+     *
+     * @return the cached info or null
+     */
+    ProcessInfo getIfPresent(int pid) {
+        Cached entry;
+        synchronized (this) {
+            entry = entries.get(pid);
+        }
+        if (entry == null || isReused(pid, entry)) {
+            submit(pid, null);
+            return null;
+        }
+        if (isExpired(entry)) {
+            submit(pid, entry);
+        }
+        return entry.info;
+    }
+
+    /**
+     * @return the info of a pid, loaded in the background if it is not cached
+     */
+    Future<ProcessInfo> lookup(int pid) {
+        final Cached entry;
+        synchronized (this) {
+            entry = entries.get(pid);
+        }
+        if (entry == null || isReused(pid, entry)) {
+            return submit(pid, null);
+        }
+        if (isExpired(entry)) {
+            return submit(pid, entry);
+        }
+        FutureTask<ProcessInfo> done = new FutureTask<>(new Callable<ProcessInfo>() {
+            @Override
+            public ProcessInfo call() {
+                return entry.info;
+            }
+        });
+        done.run();
+        return done;
+    }
+
+    /**
+     * Starts loading a pid unless a load is already pending.
+     *
+     * @param previous the entry to keep if the process is still the same, null
+     * to load it again
+     */
+    private Future<ProcessInfo> submit(final int pid, final Cached previous) {
+        synchronized (this) {
+            Future<ProcessInfo> future = pending.get(pid);
+            if (future == null) {
+                future = executor.submit(new Callable<ProcessInfo>() {
+                    @Override
+                    public ProcessInfo call() {
+                        return load(pid, previous);
+                    }
+                });
+                pending.put(pid, future);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Blocks until the info of a pid is available.
+     */
+    ProcessInfo get(int pid) {
+        try {
+            return lookup(pid).get();
+        } catch (InterruptedException | ExecutionException ex) {
+            PortMon.logger.log(Level.SEVERE, null, ex);
+            return new ProcessInfo(pid, -1, "", "");
+        }
+    }
+
+    synchronized void invalidate(int pid) {
+        entries.remove(pid);
+    }
+
+    private boolean isExpired(Cached entry) {
+        return System.currentTimeMillis() - entry.checked > ttlMillis;
+    }
+
+    /**
+     * @return true if the pid now belongs to another process than the cached
+     * one, false if it is the same, gone, or processes can't be told apart
+     */
+    private static boolean isReused(int pid, Cached entry) {
+        if (!Platform.tracksProcesses()) {
+            return false;
+        }
+        long startTime = ProcessInfo.startTime(pid);
+        return startTime >= 0 && startTime != entry.info.startTime;
+    }
+
+    private ProcessInfo load(int pid, Cached previous) {
+        ProcessInfo info = null;
+        try {
+            if (previous != null && Platform.tracksProcesses()
+                    && ProcessInfo.startTime(pid) == previous.info.startTime) {
+                info = previous.info;
+            } else {
+                info = ProcessInfo.load(pid);
+            }
+        } finally {
+            synchronized (this) {
+                if (info != null) {
+                    entries.put(pid, new Cached(info, System.currentTimeMillis()));
+                }
+                pending.remove(pid);
+            }
+        }
+        if (previous == null || info != previous.info) {
+            for (Listener l : listeners) {
+                l.processInfoLoaded(info);
+            }
+        }
+        return info;
+    }
+}
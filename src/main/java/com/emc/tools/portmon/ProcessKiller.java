@@ -0,0 +1,247 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Terminates a batch of processes and waits until their sockets are gone.
+ * All pids are signalled with one command, first politely (SIGTERM, or
+ * taskkill without /F), then by force for those still running after the
+ * grace period. Exit and release are confirmed by polling /proc and the
+ * socket source instead of waiting a fixed time.
+ */
+class ProcessKiller {
+
+    static enum Result {
+
+        /**
+         * Exited after the polite signal.
+         */
+        TERMINATED,
+        /**
+         * Exited after the forced signal.
+         */
+        KILLED,
+        /**
+         * Was not running when the batch started.
+         */
+        NOT_RUNNING,
+        /**
+         * Still running or still holding sockets at the deadline.
+         */
+        FAILED
+    }
+
+    static class Outcome {
+
+        final int pid;
+
+        Result result = Result.FAILED;
+
+        /**
+         * Nanoseconds from the first signal until the process was gone and
+         * until it held no more watched sockets, -1 if that did not happen.
+         */
+        long exitNanos = -1;
+        long releaseNanos = -1;
+
+        private long startTime;
+
+        Outcome(int pid) {
+            this.pid = pid;
+        }
+
+        boolean isDone() {
+            return result == Result.NOT_RUNNING || (exitNanos >= 0 && releaseNanos >= 0);
+        }
+
+        @Override
+        public String toString() {
+            return pid + " " + result
+                    + (exitNanos < 0 ? "" : " exited in " + TimeUnit.NANOSECONDS.toMillis(exitNanos) + " ms")
+                    + (releaseNanos < 0 ? "" : " released in " + TimeUnit.NANOSECONDS.toMillis(releaseNanos) + " ms");
+        }
+    }
+
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    private static final long POLL_MILLIS = 50;
+
+    private final long graceMillis;
+    private final long timeoutMillis;
+
+    /**
+     * @param graceMillis time between the polite and the forced signal
+     * @param timeoutMillis time after the forced signal before giving up
+     */
+    ProcessKiller(long graceMillis, long timeoutMillis) {
+        this.graceMillis = graceMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    ProcessKiller() {
+        this(3000, 2000);
+    }
+
+    /**
+     * Kills the owners of the given local ports and waits until the ports
+     * are released.
+     */
+    List<Outcome> killPorts(int... ports) {
+        if (ports.length == 0) {
+            // An empty filter would match every socket
+            return new ArrayList<>();
+        }
+        PortFilter filter = new PortFilter(false, ports);
+        PortSnapshot snapshot = PortMon.snapshot(filter, new PortSnapshot.Builder());
+        int[] pids = snapshot.index().pidsOfPorts(0, 65535);
+        int count = 0;
+        for (int pid : pids) {
+            // Sockets of other users have no pid without privileges
+            if (pid > 0) {
+                pids[count++] = pid;
+            }
+        }
+        return kill(filter, Arrays.copyOf(pids, count));
+    }
+
+    /**
+     * Kills processes and waits until they and all their sockets are gone.
+     */
+    List<Outcome> killPids(int... pids) {
+        return kill(PortFilter.ALL, pids);
+    }
+
+    /**
+     * @param filter the sockets that must be released
+     */
+    List<Outcome> kill(PortFilter filter, int... pids) {
+        List<Outcome> outcomes = new ArrayList<>(pids.length);
+        List<Outcome> pending = new ArrayList<>(pids.length);
+        for (int pid : pids) {
+            Outcome outcome = new Outcome(pid);
+            outcome.startTime = ProcessInfo.startTime(pid);
+            if (outcome.startTime < 0) {
+                outcome.result = Result.NOT_RUNNING;
+            } else {
+                pending.add(outcome);
+            }
+            outcomes.add(outcome);
+        }
+        if (pending.isEmpty()) {
+            return outcomes;
+        }
+
+        long start = System.nanoTime();
+        long forceAt = start + TimeUnit.MILLISECONDS.toNanos(graceMillis);
+        long deadline = forceAt + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean forced = false;
+        signal(pending, false);
+        PortSnapshot.Builder builder = new PortSnapshot.Builder();
+        try {
+            while (!pending.isEmpty()) {
+                Thread.sleep(POLL_MILLIS);
+                long now = System.nanoTime();
+                PortIndex index = PortMon.snapshot(filter, builder).index();
+                for (int i = pending.size() - 1; i >= 0; i--) {
+                    Outcome outcome = pending.get(i);
+                    if (outcome.releaseNanos < 0 && index.countPid(outcome.pid) == 0) {
+                        outcome.releaseNanos = now - start;
+                    }
+                    if (outcome.exitNanos < 0 && !isRunning(outcome)) {
+                        outcome.exitNanos = now - start;
+                        outcome.result = forced ? Result.KILLED : Result.TERMINATED;
+                    }
+                    if (outcome.isDone()) {
+                        pending.remove(i);
+                    }
+                }
+                if (now >= deadline) {
+                    break;
+                }
+                if (!forced && now >= forceAt) {
+                    List<Outcome> running = new ArrayList<>();
+                    for (Outcome outcome : pending) {
+                        if (outcome.exitNanos < 0) {
+                            running.add(outcome);
+                        }
+                    }
+                    if (!running.isEmpty()) {
+                        signal(running, true);
+                    }
+                    forced = true;
+                }
+            }
+        } catch (InterruptedException ex) {
+            PortMon.logger.log(Level.SEVERE, null, ex);
+        }
+        for (Outcome outcome : pending) {
+            outcome.result = Result.FAILED;
+        }
+        return outcomes;
+    }
+
+    /**
+     * Without a way to tell processes apart a process counts as gone once its sockets are.
+     */
+    private static boolean isRunning(Outcome outcome) {
+        if (!Platform.tracksProcesses()) {
+            return outcome.releaseNanos < 0;
+        }
+        return ProcessInfo.startTime(outcome.pid) == outcome.startTime;
+    }
+
+    private static void signal(List<Outcome> outcomes, boolean force) {
+        int[] pids = new int[outcomes.size()];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = outcomes.get(i).pid;
+        }
+        if (Platform.signal(pids, force)) {
+            return;
+        }
+        List<String> command = new ArrayList<>();
+        if (WINDOWS) {
+            command.addAll(Arrays.asList("cmd", "/C", "taskkill"));
+            if (force) {
+                command.add("/F");
+            }
+            for (Outcome outcome : outcomes) {
+                command.add("/PID");
+                command.add(Integer.toString(outcome.pid));
+            }
+        } else {
+            command.add("kill");
+            command.add(force ? "-KILL" : "-TERM");
+            for (Outcome outcome : outcomes) {
+                command.add(Integer.toString(outcome.pid));
+            }
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        try {
+            Process process = processBuilder.start();
+            StringBuilder output = new StringBuilder();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String raw;
+                while ((raw = br.readLine()) != null) {
+                    output.append(raw).append('\n');
+                }
+            }
+            if (process.waitFor() != 0) {
+                PortMon.logger.log(Level.WARNING, output.toString().trim());
+            }
+        } catch (IOException | InterruptedException ex) {
+            PortMon.logger.log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The query of <code>portmon [options] [ports and addresses]</code>. Sockets
+ * are matched and written as the socket source passes them on, nothing is
+ * collected here. The /proc source maps socket inodes to pids first and then
+ * passes on each row as it is parsed, so without a port filter the first
+ * rows show up once the map is built, and memory grows with the number of
+ * open sockets, not with the rows. With a port filter it keeps the matching
+ * rows until their pids are found. Output is flushed at least every
+ * {@link #FLUSH_MILLIS}, and at the end.
+ *
+ * <pre>
+ * --state S[,S]   states, netstat or ss names (LISTEN, ESTAB, TIME_WAIT...)
+ *                 or all, LISTENING when left out
+ * --pid N[,N]     owning processes
+ * --process NAME  process name, case insensitive
+ * --proto P[,P]   TCP, TCPv6, UDP, UDPv6, UNIX
+ * --table | --json | --csv | --binary | --pids (default)
+ * </pre>
+ */
+class QueryCommand implements PortSink {
+
+    enum Format {
+        PIDS, TABLE, JSON, CSV, BINARY
+    }
+
+    static final long FLUSH_MILLIS = 100;
+
+    /**
+     * Rows per frame of the binary format.
+     */
+    private static final int BATCH = 1024;
+
+    private static final String[][] STATE_ALIASES = {
+        {"LISTEN", PortMon.LISTENING},
+        {"ESTAB", "ESTABLISHED"},
+        {"SYN-SENT", "SYN_SENT"},
+        {"SYN-RECV", "SYN_RECEIVED"},
+        {"UNCONN", "CLOSED"}
+    };
+
+    final PortQuery query;
+
+    final Format format;
+
+    /**
+     * Accepted state and protocol ordinals of {@link PortSnapshot}, null
+     * for all.
+     */
+    private final boolean[] states;
+    private final boolean[] protocols;
+
+    private final int[] pids;
+
+    private final String process;
+
+    private OutputStream out;
+    private Writer writer;
+    private final StringBuilder line = new StringBuilder(160);
+    private final PortSnapshot.Builder batch = new PortSnapshot.Builder();
+    private final SnapshotCodec codec = new SnapshotCodec();
+    private long flushed;
+    private long rows;
+
+    private QueryCommand(PortQuery query, Format format, boolean[] states, boolean[] protocols,
+            int[] pids, String process) {
+        this.query = query;
+        this.format = format;
+        this.states = states;
+        this.protocols = protocols;
+        this.pids = pids;
+        this.process = process;
+    }
+
+    /**
+     * @throws IllegalArgumentException for unknown options and values
+     */
+    static QueryCommand parse(String... args) {
+        Format format = Format.PIDS;
+        boolean[] states = new boolean[PortSnapshot.STATES.length];
+        states[PortSnapshot.LISTENING] = true;
+        boolean[] protocols = null;
+        int[] pids = null;
+        String process = null;
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                terms.add(arg);
+                continue;
+            }
+            switch (arg) {
+                case "--table":
+                    format = Format.TABLE;
+                    continue;
+                case "--json":
+                    format = Format.JSON;
+                    continue;
+                case "--csv":
+                    format = Format.CSV;
+                    continue;
+                case "--binary":
+                    format = Format.BINARY;
+                    continue;
+                case "--pids":
+                    format = Format.PIDS;
+                    continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--state":
+                    if (value.equalsIgnoreCase("all")) {
+                        states = null;
+                        break;
+                    }
+                    states = new boolean[PortSnapshot.STATES.length];
+                    for (String state : value.split(",")) {
+                        states[stateOrdinal(state.trim())] = true;
+                    }
+                    break;
+                case "--proto":
+                    protocols = new boolean[PortSnapshot.PROTOCOLS.length];
+                    for (String protocol : value.split(",")) {
+                        protocols[protocolOrdinal(protocol.trim())] = true;
+                    }
+                    break;
+                case "--pid":
+                    String[] values = value.split(",");
+                    pids = new int[values.length];
+                    for (int p = 0; p < values.length; p++) {
+                        try {
+                            pids[p] = Integer.parseInt(values[p].trim());
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("Not a pid: " + values[p]);
+                        }
+                    }
+                    break;
+                case "--process":
+                    process = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        return new QueryCommand(PortQuery.parse(terms.toArray(new String[terms.size()])),
+                format, states, protocols, pids, process);
+    }
+
+    private static int stateOrdinal(String name) {
+        for (String[] alias : STATE_ALIASES) {
+            if (alias[0].equalsIgnoreCase(name)) {
+                name = alias[1];
+            }
+        }
+        for (int i = 0; i < PortSnapshot.STATES.length; i++) {
+            if (PortSnapshot.STATES[i].equalsIgnoreCase(name.replace('-', '_'))) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown state " + name);
+    }
+
+    private static int protocolOrdinal(String name) {
+        for (int i = 0; i < PortSnapshot.PROTOCOLS.length; i++) {
+            if (PortSnapshot.PROTOCOLS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown protocol " + name);
+    }
+
+    /**
+     * The part of the query the socket source applies while scanning, which
+     * includes the state when only listening sockets are asked for.
+     */
+    PortFilter sourceFilter() {
+        boolean listeningOnly = states != null;
+        for (int i = 0; states != null && i < states.length; i++) {
+            listeningOnly &= states[i] == (i == PortSnapshot.LISTENING);
+        }
+        return query.sourceFilter(listeningOnly);
+    }
+
+    /**
+     * Writes to <code>out</code> until {@link #finish()}. Failed writes, like
+     * the reader closing the pipe, are thrown as UncheckedIOException.
+     */
+    void start(OutputStream out) {
+        this.out = out;
+        this.writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        line.setLength(0);
+        if (format == Format.CSV) {
+            line.append("protocol,local,port,remote,remotePort,state,pid,process\n");
+        } else if (format == Format.TABLE) {
+            pad(line, "PROTO", 6);
+            pad(line, "LOCAL", 46);
+            pad(line, "REMOTE", 46);
+            pad(line, "STATE", 13);
+            pad(line, "PID", 8);
+            line.append("PROCESS\n");
+        }
+        try {
+            writer.append(line);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void accept(PortMon.Port port) {
+        if (!matches(port)) {
+            return;
+        }
+        try {
+            write(port);
+            rows++;
+            long now = System.currentTimeMillis();
+            if (now - flushed >= FLUSH_MILLIS) {
+                flush();
+                flushed = now;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    boolean matches(PortMon.Port port) {
+        if (states != null && !states[PortSnapshot.stateOrdinal(port.state)]) {
+            return false;
+        }
+        if (protocols != null && !protocols[PortSnapshot.protocolOrdinal(port.protocol)]) {
+            return false;
+        }
+        if (pids != null) {
+            boolean found = false;
+            for (int pid : pids) {
+                found |= pid == port.pid;
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        if (process != null && !process.equalsIgnoreCase(processName(port.pid))) {
+            return false;
+        }
+        return query.matches(port);
+    }
+
+    private static String processName(int pid) {
+        if (pid <= 0) {
+            return "";
+        }
+        ProcessInfo info = PortMon.processInfoCache.get(pid);
+        return info == null ? "" : info.name;
+    }
+
+    private void write(PortMon.Port port) throws IOException {
+        StringBuilder l = line;
+        l.setLength(0);
+        switch (format) {
+            case PIDS:
+                l.append(port.pid).append('\n');
+                break;
+            case TABLE:
+                pad(l, port.protocol, 6);
+                int start = l.length();
+                l.append(port.getLocalHost()).append(':').append(port.localPort);
+                pad(l, "", 46 - (l.length() - start));
+                start = l.length();
+                l.append(port.getRemoteHost()).append(':').append(port.remotePort);
+                pad(l, "", 46 - (l.length() - start));
+                pad(l, port.state, 13);
+                start = l.length();
+                l.append(port.pid);
+                pad(l, "", 8 - (l.length() - start));
+                l.append(processName(port.pid)).append('\n');
+                break;
+            case JSON:
+                l.append("{\"protocol\":\"").append(port.protocol);
+                l.append("\",\"local\":");
+                json(l, port.getLocalHost());
+                l.append(",\"port\":").append(port.localPort);
+                l.append(",\"remote\":");
+                json(l, port.getRemoteHost());
+                l.append(",\"remotePort\":").append(port.remotePort);
+                l.append(",\"state\":\"").append(port.state);
+                l.append("\",\"pid\":").append(port.pid);
+                l.append(",\"process\":");
+                json(l, processName(port.pid));
+                l.append("}\n");
+                break;
+            case CSV:
+                l.append(port.protocol).append(',');
+                csv(l, port.getLocalHost());
+                l.append(',').append(port.localPort).append(',');
+                csv(l, port.getRemoteHost());
+                l.append(',').append(port.remotePort);
+                l.append(',').append(port.state);
+                l.append(',').append(port.pid).append(',');
+                csv(l, processName(port.pid));
+                l.append('\n');
+                break;
+            case BINARY:
+                batch.accept(port);
+                if (batch.size() == BATCH) {
+                    writeBatch();
+                }
+                return;
+        }
+        writer.append(l);
+    }
+
+    private void writeBatch() throws IOException {
+        ByteBuffer frame = codec.rows(batch.build(0, 0, 0));
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    private void flush() throws IOException {
+        if (format == Format.BINARY) {
+            if (batch.size() > 0) {
+                writeBatch();
+            }
+        } else {
+            writer.flush();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes what is left.
+     *
+     * @return the number of rows written
+     */
+    long finish() {
+        try {
+            flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return rows;
+    }
+
+    private static void pad(StringBuilder l, String text, int width) {
+        l.append(text);
+        for (int i = text.length(); i < width; i++) {
+            l.append(' ');
+        }
+        if (text.length() >= width) {
+            l.append(' ');
+        }
+    }
+
+    static void json(StringBuilder l, String text) {
+        l.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                l.append('\\').append(c);
+            } else if (c < 0x20) {
+                l.append(String.format("\\u%04x", (int) c));
+            } else {
+                l.append(c);
+            }
+        }
+        l.append('"');
+    }
+
+    private static void csv(StringBuilder l, String text) {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0) {
+            l.append(text);
+            return;
+        }
+        l.append('"').append(text.replace("\"", "\"\"")).append('"');
+    }
+}
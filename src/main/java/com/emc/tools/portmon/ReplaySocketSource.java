@@ -0,0 +1,190 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Socket source that plays back a recording made with
+ * <code>portmon --record</code>, so the pipeline and the GUI can be driven
+ * with the same sockets again and again without a network. A recording is
+ * a file of {@link SnapshotCodec} frames like a {@link PortHistory} segment:
+ * a FULL keyframe, DELTA frames, and a keyframe every
+ * {@value PortHistory#KEYFRAME_DELTAS} deltas.
+ * <p>
+ * The recorded time passes <code>speed</code> times as fast as real time,
+ * and a scan returns the last snapshot recorded before the replay time. At
+ * speed 0 every scan returns the next snapshot, whatever the time, which
+ * makes a run repeatable. The recording starts over at its end when looping.
+ * Queue samples and socket paths are not recorded.
+ */
+class ReplaySocketSource implements SocketSource {
+
+    /**
+     * Writes snapshots to a recording. Every snapshot is written, also when
+     * nothing changed, so a replay at speed 0 takes as many scans as the
+     * recording did. Deltas address rows of the state a replay rebuilds,
+     * which is not the order of the scan, so the recorder keeps that state
+     * like {@link PortAgent} does and checks it against every scan.
+     */
+    static class Recorder implements Closeable {
+
+        private final FileChannel channel;
+
+        private final SnapshotCodec codec = new SnapshotCodec();
+
+        private PortSnapshot previous;
+        private int deltas;
+
+        Recorder(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * @throws IOException also when the replayed state would not hold
+         * the rows of the snapshot
+         */
+        void record(PortSnapshot snapshot) throws IOException {
+            ByteBuffer frame;
+            if (previous == null || deltas == PortHistory.KEYFRAME_DELTAS) {
+                frame = codec.full(snapshot);
+                previous = snapshot;
+                deltas = 0;
+            } else {
+                SnapshotDelta delta = SnapshotDelta.of(PortDiff.compute(previous, snapshot));
+                frame = codec.delta(delta);
+                previous = delta.applyTo(previous);
+                deltas++;
+                if (!PortDiff.compute(previous, snapshot).isEmpty()) {
+                    throw new IOException("Replay of " + snapshot + " would differ from the scan");
+                }
+            }
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private final Path file;
+
+    private final double speed;
+
+    private final boolean loop;
+
+    private ByteBuffer frames;
+
+    private final PortMon.Port scratch = new PortMon.Port();
+
+    /**
+     * Guarded by this.
+     */
+    private PortSnapshot current;
+    private PortSnapshot next;
+    private long startMillis;
+    private long firstTimestamp;
+
+    ReplaySocketSource(Path file, double speed, boolean loop) {
+        this.file = file;
+        this.speed = speed;
+        this.loop = loop;
+    }
+
+    @Override
+    public synchronized void scan(PortFilter filter, PortSink sink) throws IOException {
+        if (frames == null) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                frames = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            rewind();
+            if (next == null) {
+                throw new IOException(file + " holds no snapshot");
+            }
+        }
+        advance();
+        PortSnapshot snapshot = current;
+        PortMon.Port p = scratch;
+        for (int row = 0; row < snapshot.size(); row++) {
+            if ((filter.listeningOnly && snapshot.state[row] != PortSnapshot.LISTENING)
+                    || !filter.acceptsPort(snapshot.localPort[row])) {
+                continue;
+            }
+            snapshot.read(row, p);
+            sink.accept(p);
+        }
+    }
+
+    private void rewind() {
+        frames.position(0);
+        current = null;
+        next = read(null);
+        startMillis = System.currentTimeMillis();
+        firstTimestamp = next == null ? 0 : next.timestamp;
+    }
+
+    private void advance() {
+        if (current == null || speed <= 0) {
+            step();
+            return;
+        }
+        long replayTime = firstTimestamp + (long) ((System.currentTimeMillis() - startMillis) * speed);
+        while (next != null && next.timestamp <= replayTime) {
+            step();
+        }
+        if (next == null && loop) {
+            rewind();
+            step();
+        }
+    }
+
+    private void step() {
+        if (next == null) {
+            if (!loop) {
+                return;
+            }
+            rewind();
+        }
+        current = next;
+        next = read(current);
+    }
+
+    /**
+     * @return the snapshot after <code>state</code>, null at the end
+     */
+    private PortSnapshot read(PortSnapshot state) {
+        while (frames.remaining() >= SnapshotCodec.HEADER) {
+            int offset = frames.position();
+            int length = frames.getInt(offset);
+            if (length <= 0 || offset + 4 + length > frames.limit()) {
+                break;
+            }
+            ByteBuffer frame = frames.duplicate();
+            frame.position(offset + SnapshotCodec.HEADER);
+            frame.limit(offset + 4 + length);
+            byte type = frames.get(offset + 4);
+            frames.position(offset + 4 + length);
+            if (type == SnapshotCodec.FULL) {
+                return SnapshotCodec.readFull(frame);
+            }
+            if (type == SnapshotCodec.DELTA && state != null) {
+                SnapshotDelta delta = SnapshotCodec.readDelta(frame);
+                if (delta.baseSequence == state.sequence) {
+                    return delta.applyTo(state);
+                }
+            }
+        }
+        return null;
+    }
+}
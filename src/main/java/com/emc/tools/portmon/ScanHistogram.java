@@ -0,0 +1,66 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of scan durations in fixed buckets, updated without locks by
+ * every scan.
+ */
+class ScanHistogram {
+
+    /**
+     * Upper bounds of the buckets in seconds, the last bucket is unbounded.
+     */
+    static final double[] BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5
+    };
+
+    private final long[] boundsNanos = new long[BUCKETS.length];
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    ScanHistogram() {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            boundsNanos[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    void observe(long nanos) {
+        int bucket = 0;
+        while (bucket < boundsNanos.length && nanos > boundsNanos[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sumNanos.addAndGet(nanos);
+        count.incrementAndGet();
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    long sumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     * @return the number of scans in this bucket or a faster one
+     */
+    long cumulativeCount(int bucket) {
+        long cumulative = 0;
+        for (int i = 0; i <= bucket; i++) {
+            cumulative += counts.get(i);
+        }
+        return cumulative;
+    }
+}
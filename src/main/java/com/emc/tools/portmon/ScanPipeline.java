@@ -0,0 +1,318 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Runs the scans of all subscribers of a process. Scan requests that arrive
+ * while one is pending are merged into it, and a scan reads the socket table
+ * once with the union of all subscribers' filters.
+ *
+ * <p>
+ * The scan thread reads, parses and resolves pids. Its snapshot is handed
+ * to a small pool that prefetches process details and computes the diff of
+ * each subscriber, so the next scan can start while subscribers are still
+ * being served. The pool's queue is bounded; when it is full the scan thread
+ * does the work itself, which slows scanning down to what subscribers can
+ * take. Each subscriber is served in order, and one that falls behind skips
+ * to the latest snapshot with a diff against the last one it saw.
+ */
+class ScanPipeline {
+
+    /**
+     * Receives the scans of a subscription.
+     */
+    static interface Subscriber {
+
+        /**
+         * Called on a pipeline thread after a change, and after every scan
+         * asked for with {@link Subscription#request()} even if nothing
+         * changed.
+         *
+         * @param requested true if the subscription asked for a scan since
+         * the previous call
+         */
+        void scanned(PortDiff diff, boolean requested);
+
+        /**
+         * Called on the scan thread when a scan failed, so a subscriber that
+         * polls from {@link #scanned(PortDiff, boolean)} can schedule the
+         * next scan.
+         */
+        void scanFailed(RuntimeException ex);
+    }
+
+    private static final int QUEUE = 16;
+
+    private final ScheduledExecutorService scanner;
+
+    private final ThreadPoolExecutor workers;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final AtomicBoolean scanPending = new AtomicBoolean();
+
+    /**
+     * Only used on the scan thread.
+     */
+    private final PortSnapshot.Builder builder = new PortSnapshot.Builder();
+    private PortSnapshot previous = PortSnapshot.EMPTY;
+
+    private final Runnable scan = new Runnable() {
+        @Override
+        public void run() {
+            scanPending.set(false);
+            scan();
+        }
+    };
+
+    ScanPipeline() {
+        this(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    ScanPipeline(int threads) {
+        scanner = Executors.newSingleThreadScheduledExecutor(threadFactory("PortMon Scan"));
+        workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE), Platform.workerThreads("PortMon Pipeline"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    Subscription subscribe(PortFilter filter, Subscriber subscriber) {
+        Subscription subscription = new Subscription(filter, subscriber);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Runs a task on the scan thread after a delay, for subscribers that
+     * poll.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return scanner.schedule(task, delay, unit);
+    }
+
+    void shutdown() {
+        scanner.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void requestScan() {
+        if (scanPending.compareAndSet(false, true)) {
+            if (!scanner.isShutdown()) {
+                scanner.execute(scan);
+            }
+        } else {
+            PortMon.scanStats.coalesced();
+        }
+    }
+
+    private void scan() {
+        PortFilter filter = null;
+        for (Subscription s : subscriptions) {
+            // Taken before the scan, so a later request gets a later scan
+            s.requestedScan = s.requested.getAndSet(false);
+            filter = filter == null ? s.filter : filter.union(s.filter);
+        }
+        if (filter == null) {
+            return;
+        }
+        final PortSnapshot snapshot;
+        try {
+            snapshot = PortMon.snapshot(filter, builder);
+        } catch (RuntimeException ex) {
+            PortMon.logger.log(Level.SEVERE, null, ex);
+            builder.clear();
+            for (Subscription s : subscriptions) {
+                try {
+                    s.subscriber.scanFailed(ex);
+                } catch (RuntimeException failed) {
+                    PortMon.logger.log(Level.SEVERE, null, failed);
+                }
+            }
+            return;
+        }
+        final PortSnapshot before = previous;
+        previous = snapshot;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                enrich(before, snapshot);
+            }
+        });
+        Scan scan = new Scan(snapshot, filter);
+        for (Subscription s : subscriptions) {
+            s.offer(scan, s.requestedScan);
+        }
+    }
+
+    /**
+     * A snapshot and the merged filter it was read with.
+     */
+    private static class Scan {
+
+        final PortSnapshot snapshot;
+        final PortFilter filter;
+
+        Scan(PortSnapshot snapshot, PortFilter filter) {
+            this.snapshot = snapshot;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * Starts loading the details of processes that just showed up, so they
+     * are usually known by the time a table shows them. Also builds the
+     * index of the new snapshot from the one of the previous snapshot, which
+     * was built here one scan earlier.
+     */
+    private static void enrich(PortSnapshot before, PortSnapshot after) {
+        PortIndex known = before.index();
+        for (int pid : after.index(known).pids()) {
+            if (pid > 0 && known.countPid(pid) == 0) {
+                PortMon.processInfoCache.getIfPresent(pid);
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        if (!workers.isShutdown()) {
+            workers.execute(task);
+        }
+    }
+
+    /**
+     * The interest of one subscriber in the socket table.
+     */
+    class Subscription {
+
+        private final Subscriber subscriber;
+
+        private volatile PortFilter filter;
+
+        private final AtomicBoolean requested = new AtomicBoolean();
+
+        /**
+         * Only used on the scan thread.
+         */
+        private boolean requestedScan;
+
+        private final AtomicReference<Scan> pending = new AtomicReference<>();
+        private final AtomicBoolean pendingRequested = new AtomicBoolean();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        /**
+         * Only used while draining.
+         */
+        private PortSnapshot last = PortSnapshot.EMPTY;
+
+        private volatile PortSnapshot latest = PortSnapshot.EMPTY;
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private Subscription(PortFilter filter, Subscriber subscriber) {
+            this.filter = filter;
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Scans as soon as possible, together with the requests of other
+         * subscriptions.
+         */
+        void request() {
+            requested.set(true);
+            requestScan();
+        }
+
+        /**
+         * Changes what is scanned and scans right away.
+         */
+        void setFilter(PortFilter filter) {
+            this.filter = filter;
+            request();
+        }
+
+        /**
+         * @return the sockets of the most recent scan this subscription
+         * received, never null
+         */
+        PortSnapshot latest() {
+            return latest;
+        }
+
+        void cancel() {
+            subscriptions.remove(this);
+        }
+
+        private void offer(Scan scan, boolean requested) {
+            if (requested) {
+                pendingRequested.set(true);
+            }
+            pending.set(scan);
+            if (draining.compareAndSet(false, true)) {
+                execute(drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Scan scan = pending.getAndSet(null);
+                if (scan == null) {
+                    draining.set(false);
+                    if (pending.get() != null && draining.compareAndSet(false, true)) {
+                        continue;
+                    }
+                    return;
+                }
+                PortFilter filter = this.filter;
+                if (!scan.filter.covers(filter)) {
+                    // Scanned before setFilter, whose request brings a scan
+                    // with the new filter; the sockets it adds are missing
+                    continue;
+                }
+                boolean requested = pendingRequested.getAndSet(false);
+                PortSnapshot selected = filter.select(scan.snapshot);
+                PortDiff diff = PortDiff.compute(last, selected);
+                last = selected;
+                latest = selected;
+                if (requested || !diff.isEmpty()) {
+                    try {
+                        subscriber.scanned(diff, requested);
+                    } catch (RuntimeException ex) {
+                        PortMon.logger.log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }
+    }
+}
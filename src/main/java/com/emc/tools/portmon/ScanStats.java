@@ -0,0 +1,308 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Level;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Where scans spend their time: reading the socket table (the kernel or the
+ * netstat subprocess), parsing it and resolving pids, plus the lines read,
+ * the rows kept and the bytes allocated by the scanning thread. Also counts
+ * refresh requests merged into a pending one and the time the GUI spends
+ * applying a refresh on the EDT. Registered as
+ * <code>com.emc.tools.portmon:type=ScanStats</code>.
+ */
+class ScanStats implements ScanStatsMBean {
+
+    static final String OBJECT_NAME = "com.emc.tools.portmon:type=ScanStats";
+
+    /**
+     * What the stages of one scan measured, filled in by the scanning
+     * thread.
+     */
+    static class Sample {
+
+        long readNanos;
+        long resolveNanos;
+        long lines;
+
+        private void clear() {
+            readNanos = 0;
+            resolveNanos = 0;
+            lines = 0;
+        }
+    }
+
+    private static final ThreadLocal<Sample> SAMPLE = new ThreadLocal<Sample>() {
+        @Override
+        protected Sample initialValue() {
+            return new Sample();
+        }
+    };
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private long scans;
+    private long failures;
+    private String lastFailure = "";
+
+    private long lastScanNanos;
+    private long lastReadNanos;
+    private long lastResolveNanos;
+    private long lastLines;
+    private long lastRows;
+    private long lastAllocated;
+
+    private long totalScanNanos;
+    private long totalReadNanos;
+    private long totalResolveNanos;
+    private long totalLines;
+    private long totalRows;
+    private long totalAllocated;
+
+    private long coalesced;
+
+    private long applies;
+    private long lastApplyNanos;
+    private long totalApplyNanos;
+
+    /**
+     * @return the sample of the current thread, cleared for a new scan
+     */
+    static Sample begin() {
+        Sample sample = SAMPLE.get();
+        sample.clear();
+        return sample;
+    }
+
+    /**
+     * @return the sample of the current thread
+     */
+    static Sample sample() {
+        return SAMPLE.get();
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, -1 if the JVM
+     * does not tell
+     */
+    static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Registers with the platform MBean server, failures are only logged.
+     */
+    ScanStats register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, ScanStatsMBean.class), new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            PortMon.logger.log(Level.WARNING, null, ex);
+        }
+        return this;
+    }
+
+    synchronized void scanned(Sample sample, long scanNanos, int rows, long allocated) {
+        scans++;
+        lastScanNanos = scanNanos;
+        lastReadNanos = sample.readNanos;
+        lastResolveNanos = sample.resolveNanos;
+        lastLines = sample.lines;
+        lastRows = rows;
+        lastAllocated = allocated;
+        totalScanNanos += scanNanos;
+        totalReadNanos += sample.readNanos;
+        totalResolveNanos += sample.resolveNanos;
+        totalLines += sample.lines;
+        totalRows += rows;
+        totalAllocated += Math.max(0, allocated);
+    }
+
+    synchronized void failed(Exception ex) {
+        failures++;
+        lastFailure = String.valueOf(ex);
+    }
+
+    synchronized void coalesced() {
+        coalesced++;
+    }
+
+    synchronized void applied(long nanos) {
+        applies++;
+        lastApplyNanos = nanos;
+        totalApplyNanos += nanos;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    @Override
+    public synchronized long getScans() {
+        return scans;
+    }
+
+    @Override
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    @Override
+    public synchronized String getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public synchronized double getLastScanMillis() {
+        return millis(lastScanNanos);
+    }
+
+    @Override
+    public synchronized double getLastReadMillis() {
+        return millis(lastReadNanos);
+    }
+
+    /**
+     * Parsing is what remains of a scan after reading and resolving pids.
+     */
+    @Override
+    public synchronized double getLastParseMillis() {
+        return millis(lastScanNanos - lastReadNanos - lastResolveNanos);
+    }
+
+    @Override
+    public synchronized double getLastResolveMillis() {
+        return millis(lastResolveNanos);
+    }
+
+    @Override
+    public synchronized long getLastLinesScanned() {
+        return lastLines;
+    }
+
+    @Override
+    public synchronized long getLastRowsKept() {
+        return lastRows;
+    }
+
+    @Override
+    public synchronized long getLastAllocatedBytes() {
+        return lastAllocated;
+    }
+
+    @Override
+    public synchronized double getTotalScanMillis() {
+        return millis(totalScanNanos);
+    }
+
+    @Override
+    public synchronized double getTotalReadMillis() {
+        return millis(totalReadNanos);
+    }
+
+    @Override
+    public synchronized double getTotalParseMillis() {
+        return millis(totalScanNanos - totalReadNanos - totalResolveNanos);
+    }
+
+    @Override
+    public synchronized double getTotalResolveMillis() {
+        return millis(totalResolveNanos);
+    }
+
+    @Override
+    public synchronized long getTotalLinesScanned() {
+        return totalLines;
+    }
+
+    @Override
+    public synchronized long getTotalRowsKept() {
+        return totalRows;
+    }
+
+    @Override
+    public synchronized long getTotalAllocatedBytes() {
+        return totalAllocated;
+    }
+
+    @Override
+    public synchronized long getCoalescedRequests() {
+        return coalesced;
+    }
+
+    @Override
+    public synchronized long getApplies() {
+        return applies;
+    }
+
+    @Override
+    public synchronized double getLastApplyMillis() {
+        return millis(lastApplyNanos);
+    }
+
+    @Override
+    public synchronized double getTotalApplyMillis() {
+        return millis(totalApplyNanos);
+    }
+
+    @Override
+    public synchronized void reset() {
+        scans = 0;
+        failures = 0;
+        lastFailure = "";
+        lastScanNanos = 0;
+        lastReadNanos = 0;
+        lastResolveNanos = 0;
+        lastLines = 0;
+        lastRows = 0;
+        lastAllocated = 0;
+        totalScanNanos = 0;
+        totalReadNanos = 0;
+        totalResolveNanos = 0;
+        totalLines = 0;
+        totalRows = 0;
+        totalAllocated = 0;
+        coalesced = 0;
+        applies = 0;
+        lastApplyNanos = 0;
+        totalApplyNanos = 0;
+    }
+
+    /**
+     * One line for a status bar.
+     */
+    @Override
+    public synchronized String toString() {
+        if (scans == 0) {
+            return "No scans yet";
+        }
+        StringBuilder status = new StringBuilder();
+        status.append(String.format("%d of %d lines kept | scan %.1f ms: read %.1f, parse %.1f, pids %.1f",
+                lastRows, lastLines, getLastScanMillis(), getLastReadMillis(), getLastParseMillis(), getLastResolveMillis()));
+        if (lastAllocated >= 0) {
+            status.append(String.format(" | %d KB allocated", lastAllocated / 1024));
+        }
+        if (applies > 0) {
+            status.append(String.format(" | EDT %.1f ms", getLastApplyMillis()));
+        }
+        status.append(" | ").append(coalesced).append(" coalesced");
+        if (failures > 0) {
+            status.append(" | ").append(failures).append(" failed");
+        }
+        return status.toString();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+/**
+ * JMX view of {@link ScanStats}. Times are in milliseconds; "last" values
+ * belong to the most recent scan, the others are totals since start.
+ */
+public interface ScanStatsMBean {
+
+    long getScans();
+
+    long getFailures();
+
+    String getLastFailure();
+
+    double getLastScanMillis();
+
+    double getLastReadMillis();
+
+    double getLastParseMillis();
+
+    double getLastResolveMillis();
+
+    long getLastLinesScanned();
+
+    long getLastRowsKept();
+
+    long getLastAllocatedBytes();
+
+    double getTotalScanMillis();
+
+    double getTotalReadMillis();
+
+    double getTotalParseMillis();
+
+    double getTotalResolveMillis();
+
+    long getTotalLinesScanned();
+
+    long getTotalRowsKept();
+
+    long getTotalAllocatedBytes();
+
+    long getCoalescedRequests();
+
+    long getApplies();
+
+    double getLastApplyMillis();
+
+    double getTotalApplyMillis();
+
+    void reset();
+}
@@ -0,0 +1,79 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Socket source that subscribes to the snapshot service of a local
+ * <code>portmon --daemon --service</code> instead of reading the socket
+ * table. The daemon scans once for every window and tool on the host and
+ * streams a FULL frame and then one DELTA per change to each subscriber
+ * (see {@link PortAgent}), so a scan here only copies the latest snapshot
+ * and the cost of scanning stays the same however many are watching.
+ * <p>
+ * When the service cannot be reached the sockets are read by the fallback
+ * source, and the subscription is retried in the background.
+ */
+class ServiceSocketSource implements SocketSource {
+
+    static final int DEFAULT_PORT = 7655;
+
+    private static final long CONNECT_MILLIS = 2000;
+
+    private final InetSocketAddress address;
+
+    private final SocketSource fallback;
+
+    private PortCollector collector;
+
+    private boolean fellBack;
+
+    private final PortMon.Port scratch = new PortMon.Port();
+
+    ServiceSocketSource(InetSocketAddress address, SocketSource fallback) {
+        this.address = address;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public synchronized void scan(PortFilter filter, PortSink sink) throws IOException {
+        if (collector == null) {
+            collector = new PortCollector(Collections.singletonList(address));
+            collector.start();
+            try {
+                collector.awaitConnected(CONNECT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        PortSnapshot snapshot = collector.fleet().snapshot(0);
+        if (snapshot == null) {
+            if (!fellBack) {
+                PortMon.logger.log(Level.INFO, "No snapshot service on {0}, scanning locally", address);
+                fellBack = true;
+            }
+            fallback.scan(filter, sink);
+            return;
+        }
+        if (fellBack) {
+            PortMon.logger.log(Level.INFO, "Subscribed to the snapshot service on {0}", address);
+            fellBack = false;
+        }
+        PortMon.Port p = scratch;
+        for (int row = 0; row < snapshot.size(); row++) {
+            if ((filter.listeningOnly && snapshot.state[row] != PortSnapshot.LISTENING)
+                    || !filter.acceptsPort(snapshot.localPort[row])) {
+                continue;
+            }
+            snapshot.read(row, p);
+            sink.accept(p);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary frames exchanged between a {@link PortAgent} and a
+ * {@link PortCollector}, and written by <code>portmon --binary</code> as a
+ * stream of ROWS frames. A frame is a 4 byte length, a type byte and the
+ * payload. Counts, row numbers and pids are varints and IPv4 addresses take
+ * 4 bytes instead of 16, so an established connection costs about 25 bytes
+ * in a full frame and a delta carries only what changed.
+ *
+ * <pre>
+ * HELLO  name (UTF-8, varint length)
+ * FULL   sequence timestamp scanNanos count row*
+ * DELTA  baseSequence sequence timestamp scanNanos
+ *        removed: count row* (varint gaps)
+ *        changed: count (row state)*
+ *        added:   count row*
+ * ROWS   count row*
+ * row    protocol state flags local[4|16] localPort remote[4|16] remotePort pid inode
+ * </pre>
+ */
+class SnapshotCodec {
+
+    static final byte HELLO = 1;
+    static final byte FULL = 2;
+    static final byte DELTA = 3;
+    static final byte ROWS = 4;
+
+    /**
+     * Length and type.
+     */
+    static final int HEADER = 5;
+
+    /**
+     * Frames longer than this are treated as a broken stream.
+     */
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    private static final int LOCAL_IPV4 = 1;
+    private static final int REMOTE_IPV4 = 2;
+
+    private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * @return the frame, valid until the next call
+     */
+    ByteBuffer hello(String name) {
+        begin(HELLO);
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        out.put(bytes);
+        return end();
+    }
+
+    /**
+     * @return the frame, valid until the next call
+     */
+    ByteBuffer full(PortSnapshot snapshot) {
+        begin(FULL);
+        ensure(24);
+        out.putLong(snapshot.sequence);
+        out.putLong(snapshot.timestamp);
+        out.putLong(snapshot.scanNanos);
+        writeRows(snapshot);
+        return end();
+    }
+
+    /**
+     * @return a frame of the rows alone, valid until the next call
+     */
+    ByteBuffer rows(PortSnapshot snapshot) {
+        begin(ROWS);
+        writeRows(snapshot);
+        return end();
+    }
+
+    /**
+     * @return the frame, valid until the next call
+     */
+    ByteBuffer delta(SnapshotDelta delta) {
+        begin(DELTA);
+        ensure(32);
+        out.putLong(delta.baseSequence);
+        out.putLong(delta.sequence);
+        out.putLong(delta.timestamp);
+        out.putLong(delta.scanNanos);
+        writeVarint(delta.removed.length);
+        int previous = 0;
+        for (int row : delta.removed) {
+            writeVarint(row - previous);
+            previous = row;
+        }
+        writeVarint(delta.changed.length);
+        for (int i = 0; i < delta.changed.length; i++) {
+            writeVarint(delta.changed[i]);
+            ensure(1);
+            out.put(delta.changedState[i]);
+        }
+        writeRows(delta.added);
+        return end();
+    }
+
+    private void begin(byte type) {
+        out.clear();
+        out.putInt(0);
+        out.put(type);
+    }
+
+    private ByteBuffer end() {
+        out.putInt(0, out.position() - 4);
+        out.flip();
+        return out;
+    }
+
+    private void ensure(int bytes) {
+        if (out.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+    }
+
+    private void writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private void writeRows(PortSnapshot snapshot) {
+        int size = snapshot.size();
+        writeVarint(size);
+        for (int row = 0; row < size; row++) {
+            boolean localIPv4 = Addresses.isIPv4(snapshot.localAddressHi[row], snapshot.localAddressLo[row]);
+            boolean remoteIPv4 = Addresses.isIPv4(snapshot.remoteAddressHi[row], snapshot.remoteAddressLo[row]);
+            ensure(3 + 16 + 2 + 16 + 2);
+            out.put(snapshot.protocol[row]);
+            out.put(snapshot.state[row]);
+            out.put((byte) ((localIPv4 ? LOCAL_IPV4 : 0) | (remoteIPv4 ? REMOTE_IPV4 : 0)));
+            writeAddress(localIPv4, snapshot.localAddressHi[row], snapshot.localAddressLo[row]);
+            out.putChar((char) snapshot.localPort[row]);
+            writeAddress(remoteIPv4, snapshot.remoteAddressHi[row], snapshot.remoteAddressLo[row]);
+            out.putChar((char) snapshot.remotePort[row]);
+            writeVarint(snapshot.pid[row] & 0xFFFFFFFFL);
+            writeVarint(snapshot.inode[row]);
+        }
+    }
+
+    private void writeAddress(boolean ipv4, long hi, long lo) {
+        if (ipv4) {
+            out.putInt((int) lo);
+        } else {
+            out.putLong(hi);
+            out.putLong(lo);
+        }
+    }
+
+    /**
+     * Reads the name of a HELLO payload.
+     */
+    static String readHello(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a FULL payload.
+     */
+    static PortSnapshot readFull(ByteBuffer in) {
+        long sequence = in.getLong();
+        long timestamp = in.getLong();
+        long scanNanos = in.getLong();
+        PortSnapshot.Builder builder = new PortSnapshot.Builder();
+        readRows(in, builder);
+        return builder.build(sequence, timestamp, scanNanos);
+    }
+
+    /**
+     * Reads a ROWS payload.
+     */
+    static PortSnapshot readBatch(ByteBuffer in) {
+        PortSnapshot.Builder builder = new PortSnapshot.Builder();
+        readRows(in, builder);
+        return builder.build(0, 0, 0);
+    }
+
+    /**
+     * Reads a DELTA payload.
+     */
+    static SnapshotDelta readDelta(ByteBuffer in) {
+        long baseSequence = in.getLong();
+        long sequence = in.getLong();
+        long timestamp = in.getLong();
+        long scanNanos = in.getLong();
+        int[] removed = new int[count(in)];
+        int row = 0;
+        for (int i = 0; i < removed.length; i++) {
+            row += (int) readVarint(in);
+            removed[i] = row;
+        }
+        int[] changed = new int[count(in)];
+        byte[] changedState = new byte[changed.length];
+        for (int i = 0; i < changed.length; i++) {
+            changed[i] = (int) readVarint(in);
+            changedState[i] = in.get();
+        }
+        PortSnapshot.Builder builder = new PortSnapshot.Builder();
+        readRows(in, builder);
+        return new SnapshotDelta(baseSequence, sequence, timestamp, scanNanos,
+                removed, changed, changedState, builder.build(sequence, timestamp, scanNanos));
+    }
+
+    private static void readRows(ByteBuffer in, PortSnapshot.Builder builder) {
+        int size = count(in);
+        for (int row = 0; row < size; row++) {
+            byte protocol = in.get();
+            byte state = in.get();
+            if (protocol < 0 || protocol >= PortSnapshot.PROTOCOLS.length
+                    || state < 0 || state >= PortSnapshot.STATES.length) {
+                throw new IllegalArgumentException("Bad row " + protocol + "/" + state);
+            }
+            int flags = in.get();
+            long localHi = (flags & LOCAL_IPV4) != 0 ? Addresses.IPV4_MAPPED_HI : in.getLong();
+            long localLo = (flags & LOCAL_IPV4) != 0 ? Addresses.ipv4Lo(in.getInt()) : in.getLong();
+            int localPort = in.getChar();
+            long remoteHi = (flags & REMOTE_IPV4) != 0 ? Addresses.IPV4_MAPPED_HI : in.getLong();
+            long remoteLo = (flags & REMOTE_IPV4) != 0 ? Addresses.ipv4Lo(in.getInt()) : in.getLong();
+            int remotePort = in.getChar();
+            int pid = (int) readVarint(in);
+            long inode = readVarint(in);
+            builder.add(protocol, state, localHi, localLo, localPort, remoteHi, remoteLo, remotePort, pid, inode);
+        }
+    }
+
+    /**
+     * A count can not exceed the bytes left, which stops a corrupt count
+     * from allocating huge arrays.
+     */
+    private static int count(ByteBuffer in) {
+        long count = readVarint(in);
+        if (count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return (int) count;
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
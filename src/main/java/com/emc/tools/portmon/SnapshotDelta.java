@@ -0,0 +1,88 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+/**
+ * The changes that turn one snapshot into the next, by row number of the
+ * base snapshot. Applying a delta always yields the rows in the same order,
+ * so a sender and a receiver that apply the same deltas to the same base
+ * hold identical snapshots and can keep addressing rows by number.
+ */
+class SnapshotDelta {
+
+    final long baseSequence;
+    final long sequence;
+    final long timestamp;
+    final long scanNanos;
+
+    /**
+     * Ascending rows of the base that are gone.
+     */
+    final int[] removed;
+
+    /**
+     * Rows of the base with a new state.
+     */
+    final int[] changed;
+    final byte[] changedState;
+
+    final PortSnapshot added;
+
+    SnapshotDelta(long baseSequence, long sequence, long timestamp, long scanNanos,
+            int[] removed, int[] changed, byte[] changedState, PortSnapshot added) {
+        this.baseSequence = baseSequence;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.scanNanos = scanNanos;
+        this.removed = removed;
+        this.changed = changed;
+        this.changedState = changedState;
+        this.added = added;
+    }
+
+    static SnapshotDelta of(PortDiff diff) {
+        PortSnapshot after = diff.after;
+        int[] changed = new int[diff.changed.length];
+        byte[] changedState = new byte[changed.length];
+        for (int i = 0; i < changed.length; i++) {
+            changed[i] = diff.afterToBefore[diff.changed[i]];
+            changedState[i] = after.state[diff.changed[i]];
+        }
+        return new SnapshotDelta(diff.before.sequence, after.sequence, after.timestamp, after.scanNanos,
+                diff.removed, changed, changedState, after.select(diff.added));
+    }
+
+    /**
+     * @return the kept rows of the base in their order, then the added rows
+     */
+    PortSnapshot applyTo(PortSnapshot base) {
+        byte[] states = null;
+        if (changed.length > 0) {
+            states = base.state.clone();
+            for (int i = 0; i < changed.length; i++) {
+                states[changed[i]] = changedState[i];
+            }
+        }
+        PortSnapshot.Builder builder = new PortSnapshot.Builder();
+        for (int row = 0, r = 0; row < base.size(); row++) {
+            if (r < removed.length && removed[r] == row) {
+                r++;
+                continue;
+            }
+            builder.add(base, row);
+            if (states != null) {
+                builder.setState(builder.size() - 1, states[row]);
+            }
+        }
+        for (int row = 0; row < added.size(); row++) {
+            builder.add(added, row);
+        }
+        return builder.build(sequence, timestamp, scanNanos);
+    }
+
+    boolean isEmpty() {
+        return removed.length == 0 && changed.length == 0 && added.size() == 0;
+    }
+}
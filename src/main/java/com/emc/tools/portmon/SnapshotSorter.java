@@ -0,0 +1,140 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the rows of a snapshot on primitive keys, without boxing a value or
+ * calling a comparator object per comparison. Meant to run off the event
+ * dispatch thread, the table then shows rows in the order handed to it.
+ */
+class SnapshotSorter {
+
+    static final int BY_HOST = 0;
+    static final int BY_PORT = 1;
+    static final int BY_PID = 2;
+    static final int BY_PROCESS = 3;
+    static final int BY_STATE = 4;
+    static final int BY_RX_QUEUE = 5;
+    static final int BY_TX_QUEUE = 6;
+    static final int BY_RTT = 7;
+    static final int BY_RETRANSMITS = 8;
+
+    private SnapshotSorter() {
+    }
+
+    /**
+     * @param sampler supplies the queue keys, null for the values of the
+     * snapshot
+     * @return the snapshot rows in order, ties ordered by port, then by row
+     */
+    static int[] sort(PortSnapshot snapshot, int key, boolean ascending, SocketSampler sampler) {
+        int size = snapshot.size();
+        long[] primary = new long[size];
+        long[] secondary = new long[size];
+        switch (key) {
+            case BY_HOST:
+                for (int row = 0; row < size; row++) {
+                    // Flip the sign bit so unsigned addresses compare as signed
+                    primary[row] = snapshot.localAddressHi[row] ^ Long.MIN_VALUE;
+                    secondary[row] = snapshot.localAddressLo[row] ^ Long.MIN_VALUE;
+                }
+                break;
+            case BY_PROCESS:
+                processRanks(snapshot, primary);
+                break;
+            default:
+                for (int row = 0; row < size; row++) {
+                    primary[row] = value(snapshot, row, key, sampler);
+                }
+        }
+        if (key != BY_HOST) {
+            for (int row = 0; row < size; row++) {
+                secondary[row] = snapshot.localPort[row];
+            }
+        }
+        int[] rows = new int[size];
+        for (int row = 0; row < size; row++) {
+            rows[row] = row;
+        }
+        mergeSort(rows, new int[size], 0, size, primary, secondary, ascending ? 1 : -1);
+        return rows;
+    }
+
+    private static long value(PortSnapshot snapshot, int row, int key, SocketSampler sampler) {
+        switch (key) {
+            case BY_PORT:
+                return snapshot.localPort[row];
+            case BY_PID:
+                return snapshot.pid[row];
+            case BY_STATE:
+                return snapshot.state[row];
+            case BY_RX_QUEUE:
+                return sampler == null ? snapshot.rxQueue[row] : sampler.peakRxQueue(snapshot, row);
+            case BY_TX_QUEUE:
+                return sampler == null ? snapshot.txQueue[row] : sampler.peakTxQueue(snapshot, row);
+            case BY_RTT:
+                return sampler == null ? snapshot.rttMicros[row] : sampler.averageRttMicros(snapshot, row);
+            case BY_RETRANSMITS:
+                return sampler == null ? 0 : sampler.retransmits(snapshot, row);
+        }
+        return 0;
+    }
+
+    /**
+     * Ranks rows by the names of their processes, names are only compared
+     * once per distinct pid. Unknown names sort first.
+     */
+    private static void processRanks(PortSnapshot snapshot, long[] rank) {
+        int[] pids = snapshot.index().pids();
+        String[] names = new String[pids.length];
+        for (int i = 0; i < pids.length; i++) {
+            ProcessInfo info = pids[i] > 0 ? PortMon.processInfoCache.getIfPresent(pids[i]) : null;
+            names[i] = (info == null ? "" : info.name) + '\0' + pids[i];
+        }
+        String[] sorted = names.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < pids.length; i++) {
+            long r = Arrays.binarySearch(sorted, names[i]);
+            for (int row : snapshot.index().pid(pids[i])) {
+                rank[row] = r;
+            }
+        }
+    }
+
+    /**
+     * Stable merge sort of <code>rows[from, to)</code>.
+     */
+    private static void mergeSort(int[] rows, int[] scratch, int from, int to,
+            long[] primary, long[] secondary, int direction) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(rows, scratch, from, middle, primary, secondary, direction);
+        mergeSort(rows, scratch, middle, to, primary, secondary, direction);
+        if (compare(rows[middle - 1], rows[middle], primary, secondary, direction) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, scratch, from, to - from);
+        for (int i = from, left = from, right = middle; i < to; i++) {
+            if (right >= to || (left < middle
+                    && compare(scratch[left], scratch[right], primary, secondary, direction) <= 0)) {
+                rows[i] = scratch[left++];
+            } else {
+                rows[i] = scratch[right++];
+            }
+        }
+    }
+
+    private static int compare(int a, int b, long[] primary, long[] secondary, int direction) {
+        int c = Long.compare(primary[a], primary[b]);
+        if (c == 0) {
+            c = Long.compare(secondary[a], secondary[b]);
+        }
+        return c * direction;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the queues and tcp_info of the sockets at a fixed rate and keeps
+ * the last samples of every socket in a ring. A backlog that fills up for a
+ * second shows up in the peak of the ring even if the table was refreshed
+ * before and after. Samples are scans of the {@link ScanPipeline}, so they
+ * also bring other subscribers up to date.
+ */
+class SocketSampler {
+
+    /**
+     * The last samples of one socket, oldest first from <code>next</code>.
+     */
+    private static class Ring {
+
+        final int[] rxQueue;
+        final int[] txQueue;
+        final int[] rttMicros;
+        final int[] retransmits;
+        final long[] bytesAcked;
+        final long[] time;
+        int next;
+        int count;
+        long seen;
+
+        Ring(int samples) {
+            rxQueue = new int[samples];
+            txQueue = new int[samples];
+            rttMicros = new int[samples];
+            retransmits = new int[samples];
+            bytesAcked = new long[samples];
+            time = new long[samples];
+        }
+
+        void add(PortSnapshot snapshot, int row) {
+            int i = next;
+            rxQueue[i] = snapshot.rxQueue[row];
+            txQueue[i] = snapshot.txQueue[row];
+            rttMicros[i] = snapshot.rttMicros[row];
+            retransmits[i] = snapshot.retransmits[row];
+            bytesAcked[i] = snapshot.bytesAcked[row];
+            time[i] = snapshot.timestamp;
+            next = (i + 1) % time.length;
+            count = Math.min(count + 1, time.length);
+            seen = snapshot.sequence;
+        }
+
+        int oldest() {
+            return (next - count + time.length) % time.length;
+        }
+
+        int newest() {
+            return (next - 1 + time.length) % time.length;
+        }
+    }
+
+    private final int samples;
+
+    private final ScanPipeline pipeline;
+
+    private final ScanPipeline.Subscription subscription;
+
+    private final Map<Long, Ring> rings = new HashMap<>();
+
+    private volatile long periodMillis;
+
+    /**
+     * Guarded by this.
+     */
+    private ScheduledFuture<?> next;
+    private boolean running;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SocketSampler.this) {
+                if (!running) {
+                    return;
+                }
+                next = pipeline.schedule(tick, periodMillis, TimeUnit.MILLISECONDS);
+            }
+            subscription.request();
+        }
+    };
+
+    /**
+     * @param samples samples kept per socket
+     */
+    SocketSampler(PortFilter filter, long periodMillis, int samples) {
+        this.pipeline = PortMon.pipeline;
+        this.periodMillis = periodMillis;
+        this.samples = samples;
+        this.subscription = pipeline.subscribe(filter, new ScanPipeline.Subscriber() {
+            @Override
+            public void scanned(PortDiff diff, boolean requested) {
+                sample(diff.after);
+            }
+
+            @Override
+            public void scanFailed(RuntimeException ex) {
+                // The next tick scans again
+            }
+        });
+    }
+
+    synchronized void start() {
+        if (!running) {
+            running = true;
+            next = pipeline.schedule(tick, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    void setFilter(PortFilter filter) {
+        subscription.setFilter(filter);
+    }
+
+    void setPeriod(long periodMillis) {
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Adds a sample for every socket of the snapshot and forgets sockets
+     * that are gone.
+     */
+    synchronized void sample(PortSnapshot snapshot) {
+        for (int row = 0; row < snapshot.size(); row++) {
+            Long key = key(snapshot, row);
+            Ring ring = rings.get(key);
+            if (ring == null) {
+                ring = new Ring(samples);
+                rings.put(key, ring);
+            }
+            ring.add(snapshot, row);
+        }
+        for (Iterator<Ring> i = rings.values().iterator(); i.hasNext();) {
+            if (i.next().seen != snapshot.sequence) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Sockets are told apart by inode where the source knows it, by their
+     * row key otherwise.
+     */
+    private static long key(PortSnapshot snapshot, int row) {
+        long inode = snapshot.inode[row];
+        return inode != 0 ? inode : Long.MIN_VALUE | (snapshot.keyHash[row] & 0xFFFFFFFFL);
+    }
+
+    private Ring ring(PortSnapshot snapshot, int row) {
+        Ring ring = rings.get(key(snapshot, row));
+        return ring == null || ring.count == 0 ? null : ring;
+    }
+
+    /**
+     * @return the highest receive queue (accept queue of a listener) in the
+     * samples of a socket, its current value if it was not sampled
+     */
+    synchronized int peakRxQueue(PortSnapshot snapshot, int row) {
+        Ring ring = ring(snapshot, row);
+        if (ring == null) {
+            return snapshot.rxQueue[row];
+        }
+        int peak = 0;
+        for (int i = 0; i < ring.count; i++) {
+            peak = Math.max(peak, ring.rxQueue[i]);
+        }
+        return peak;
+    }
+
+    /**
+     * @return the highest send queue (backlog of a listener) in the samples
+     * of a socket, its current value if it was not sampled
+     */
+    synchronized int peakTxQueue(PortSnapshot snapshot, int row) {
+        Ring ring = ring(snapshot, row);
+        if (ring == null) {
+            return snapshot.txQueue[row];
+        }
+        int peak = 0;
+        for (int i = 0; i < ring.count; i++) {
+            peak = Math.max(peak, ring.txQueue[i]);
+        }
+        return peak;
+    }
+
+    /**
+     * @return the mean round trip time of the samples of a socket
+     */
+    synchronized int averageRttMicros(PortSnapshot snapshot, int row) {
+        Ring ring = ring(snapshot, row);
+        if (ring == null) {
+            return snapshot.rttMicros[row];
+        }
+        long sum = 0;
+        for (int i = 0; i < ring.count; i++) {
+            sum += ring.rttMicros[i];
+        }
+        return (int) (sum / ring.count);
+    }
+
+    /**
+     * @return the retransmits of a socket during the sampled window
+     */
+    synchronized int retransmits(PortSnapshot snapshot, int row) {
+        Ring ring = ring(snapshot, row);
+        if (ring == null) {
+            return 0;
+        }
+        return ring.retransmits[ring.newest()] - ring.retransmits[ring.oldest()];
+    }
+
+    /**
+     * @return the acknowledged bytes per second of a socket during the
+     * sampled window
+     */
+    synchronized long bytesAckedPerSecond(PortSnapshot snapshot, int row) {
+        Ring ring = ring(snapshot, row);
+        if (ring == null) {
+            return 0;
+        }
+        int oldest = ring.oldest();
+        int newest = ring.newest();
+        long millis = ring.time[newest] - ring.time[oldest];
+        return millis <= 0 ? 0 : (ring.bytesAcked[newest] - ring.bytesAcked[oldest]) * 1000 / millis;
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.io.IOException;
+
+/**
+ * A backend that enumerates the sockets of the local machine.
+ */
+interface SocketSource {
+
+    /**
+     * Passes every socket accepted by the filter to the sink. Sources reuse
+     * one scratch {@link PortMon.Port} for all rows, rows that do not pass
+     * the filter are never materialised.
+     *
+     * @param filter sockets to keep
+     * @param sink receives the kept sockets
+     * @throws IOException when the socket table cannot be read
+     */
+    void scan(PortFilter filter, PortSink sink) throws IOException;
+}
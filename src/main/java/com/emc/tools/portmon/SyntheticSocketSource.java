@@ -0,0 +1,177 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Socket source that makes up a busy server, for load tests of the pipeline
+ * and the GUI without a network. One socket in a hundred listens, the rest
+ * are connections to the listeners from random 10.0.0.0/8 peers. Every
+ * simulated second <code>churn</code> connections close into TIME_WAIT and
+ * as many new ones are established; a TIME_WAIT socket is gone after
+ * {@value #TIME_WAIT_SECONDS} s. The table holds about <code>sockets</code>
+ * rows throughout.
+ * <p>
+ * Simulated time passes <code>speed</code> times as fast as real time. At
+ * speed 0 every scan advances one second. The same seed and the same scans
+ * always give the same sockets.
+ */
+class SyntheticSocketSource implements SocketSource {
+
+    static final int TIME_WAIT_SECONDS = 60;
+
+    private static final int FIRST_PORT = 8000;
+    private static final int FIRST_PID = 1000;
+    private static final int PIDS = 50;
+    private static final long LOCAL = Addresses.ipv4Lo(0x0a000001);
+
+    private final double speed;
+    private final int churn;
+    private final Random random;
+
+    private final int listeners;
+
+    /**
+     * Established connections, unordered, and TIME_WAIT sockets oldest
+     * first in a ring. A connection is its listener and its peer.
+     */
+    private int[] established;
+    private long[] establishedPeer;
+    private int establishedCount;
+    private final int[] timeWait;
+    private final long[] timeWaitPeer;
+    private final long[] timeWaitSince;
+    private int timeWaitFirst;
+    private int timeWaitCount;
+
+    private long second;
+    private long startMillis = -1;
+
+    private final PortMon.Port scratch = new PortMon.Port();
+
+    SyntheticSocketSource(int sockets, int churn, double speed, long seed) {
+        this.speed = speed;
+        this.random = new Random(seed);
+        this.listeners = Math.max(1, sockets / 100);
+        int connections = Math.max(0, sockets - listeners);
+        this.churn = Math.min(churn, connections / (TIME_WAIT_SECONDS + 1));
+        int waiting = this.churn * TIME_WAIT_SECONDS;
+        established = new int[Math.max(16, connections - waiting)];
+        establishedPeer = new long[established.length];
+        timeWait = new int[Math.max(1, waiting + this.churn)];
+        timeWaitPeer = new long[timeWait.length];
+        timeWaitSince = new long[timeWait.length];
+        for (int i = 0; i < connections - waiting; i++) {
+            open();
+        }
+        // Start in the steady state, with TIME_WAIT sockets of every age
+        for (long s = -TIME_WAIT_SECONDS + 1; s <= 0; s++) {
+            for (int i = 0; i < this.churn; i++) {
+                addTimeWait(random.nextInt(listeners), peer(), s);
+            }
+        }
+    }
+
+    private long peer() {
+        // 10.x.y.z and a port of 1024 and up
+        return ((long) (0x0a000000 | random.nextInt(1 << 24)) << 16) | (1024 + random.nextInt(65536 - 1024));
+    }
+
+    private void open() {
+        if (establishedCount == established.length) {
+            established = Arrays.copyOf(established, establishedCount * 2);
+            establishedPeer = Arrays.copyOf(establishedPeer, establishedCount * 2);
+        }
+        established[establishedCount] = random.nextInt(listeners);
+        establishedPeer[establishedCount] = peer();
+        establishedCount++;
+    }
+
+    private void addTimeWait(int listener, long peer, long since) {
+        int slot = (timeWaitFirst + timeWaitCount) % timeWait.length;
+        timeWait[slot] = listener;
+        timeWaitPeer[slot] = peer;
+        timeWaitSince[slot] = since;
+        timeWaitCount++;
+    }
+
+    /**
+     * Advances the simulation by one second.
+     */
+    private void tick() {
+        second++;
+        while (timeWaitCount > 0 && second - timeWaitSince[timeWaitFirst] >= TIME_WAIT_SECONDS) {
+            timeWaitFirst = (timeWaitFirst + 1) % timeWait.length;
+            timeWaitCount--;
+        }
+        for (int i = 0; i < churn && establishedCount > 0; i++) {
+            int closed = random.nextInt(establishedCount);
+            addTimeWait(established[closed], establishedPeer[closed], second);
+            establishedCount--;
+            established[closed] = established[establishedCount];
+            establishedPeer[closed] = establishedPeer[establishedCount];
+            open();
+        }
+    }
+
+    @Override
+    public synchronized void scan(PortFilter filter, PortSink sink) {
+        long now = System.currentTimeMillis();
+        if (startMillis < 0) {
+            startMillis = now;
+        } else if (speed <= 0) {
+            tick();
+        } else {
+            long target = (long) ((now - startMillis) * speed / 1000);
+            while (second < target) {
+                tick();
+            }
+        }
+        PortMon.Port p = scratch;
+        p.protocol = "TCP";
+        p.path = null;
+        p.inode = 0;
+        p.rxQueue = 0;
+        p.txQueue = 0;
+        p.rttMicros = 0;
+        p.retransmits = 0;
+        p.bytesAcked = 0;
+        p.state = PortMon.LISTENING;
+        p.setRemote(0, Addresses.ipv4Lo(0), 0);
+        for (int listener = 0; listener < listeners; listener++) {
+            if (filter.acceptsPort(FIRST_PORT + listener)) {
+                p.setLocal(0, Addresses.ipv4Lo(0), FIRST_PORT + listener);
+                p.pid = FIRST_PID + listener % PIDS;
+                sink.accept(p);
+            }
+        }
+        if (filter.listeningOnly) {
+            return;
+        }
+        p.state = "ESTABLISHED";
+        for (int i = 0; i < establishedCount; i++) {
+            connection(filter, sink, established[i], establishedPeer[i], true);
+        }
+        p.state = "TIME_WAIT";
+        for (int i = 0; i < timeWaitCount; i++) {
+            int slot = (timeWaitFirst + i) % timeWait.length;
+            // TIME_WAIT sockets belong to no process any more
+            connection(filter, sink, timeWait[slot], timeWaitPeer[slot], false);
+        }
+    }
+
+    private void connection(PortFilter filter, PortSink sink, int listener, long peer, boolean owned) {
+        if (!filter.acceptsPort(FIRST_PORT + listener)) {
+            return;
+        }
+        PortMon.Port p = scratch;
+        p.setLocal(0, LOCAL, FIRST_PORT + listener);
+        p.setRemote(0, Addresses.ipv4Lo((int) (peer >>> 16)), (int) (peer & 0xffff));
+        p.pid = owned ? FIRST_PID + listener % PIDS : 0;
+        sink.accept(p);
+    }
+}
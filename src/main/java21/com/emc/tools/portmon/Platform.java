@@ -0,0 +1,83 @@
+/*
+ * A simple port monitor.
+ *
+ */
+package com.emc.tools.portmon;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+/**
+ * Java 21 version of the platform services: virtual threads for blocking
+ * work, and {@link ProcessHandle} to identify, describe and signal processes
+ * on every operating system without forking commands.
+ * <p>
+ * Netlink is not opened through java.lang.foreign here: the API is a
+ * preview in Java 21, and classes using it only load on exactly that
+ * release with --enable-preview, so a jar could not light it up on its
+ * own. It is final from Java 22, which would need a versions/22 layer.
+ */
+class Platform {
+
+    private Platform() {
+    }
+
+    static ThreadFactory workerThreads(String name) {
+        return Thread.ofVirtual().name(name).factory();
+    }
+
+    static boolean tracksProcesses() {
+        return true;
+    }
+
+    /**
+     * @return the start time in milliseconds since the epoch, -1 if the
+     * process is not running, 0 if the system does not tell
+     */
+    static long startTime(int pid) {
+        Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+        if (handle.isEmpty() || !handle.get().isAlive()) {
+            return -1;
+        }
+        // isAlive is true for a zombie, /proc tells it apart
+        if (ProcessInfo.HAS_PROC && ProcessInfo.procStartTime(pid) < 0) {
+            return -1;
+        }
+        return handle.get().info().startInstant().map(Instant::toEpochMilli).orElse(0L);
+    }
+
+    static ProcessInfo processInfo(int pid) {
+        Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+        if (handle.isEmpty()) {
+            return new ProcessInfo(pid, -1, "", "PID:          " + pid + "\nProcess not found.");
+        }
+        ProcessHandle.Info info = handle.get().info();
+        String command = info.command().orElse("");
+        String name = command.substring(Math.max(command.lastIndexOf('/'), command.lastIndexOf('\\')) + 1);
+        StringBuilder details = new StringBuilder();
+        ProcessInfo.line(details, "Image Name:", name);
+        ProcessInfo.line(details, "PID:", Integer.toString(pid));
+        ProcessInfo.line(details, "Command Line:", info.commandLine().orElse("N/A"));
+        ProcessInfo.line(details, "User Name:", info.user().orElse("N/A"));
+        ProcessInfo.line(details, "Parent PID:",
+                handle.get().parent().map(p -> Long.toString(p.pid())).orElse("N/A"));
+        ProcessInfo.line(details, "CPU Time:",
+                info.totalCpuDuration().map(Duration::toString).orElse("N/A"));
+        return new ProcessInfo(pid, startTime(pid), name, details.toString());
+    }
+
+    static boolean signal(int[] pids, boolean force) {
+        for (int pid : pids) {
+            ProcessHandle.of(pid).ifPresent(handle -> {
+                boolean requested = force ? handle.destroyForcibly() : handle.destroy();
+                if (!requested && handle.isAlive()) {
+                    PortMon.logger.log(Level.WARNING, "Can not signal {0}", pid);
+                }
+            });
+        }
+        return true;
+    }
+}